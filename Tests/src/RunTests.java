@@ -3,18 +3,36 @@ import net.tofvesson.collections.*;
 import net.tofvesson.reflection.*;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("ALL")
 public class RunTests {
+    private static int failures = 0;
+
     public static void main(String[] args){
         asyncTest();
         collectionsTest();
         streamTest();
         reflectionTest();
+        if(failures != 0){
+            System.out.println(failures+" test(s) failed");
+            System.exit(1);                             // Fails the build when run from Maven
+        }
+    }
+
+    private static void failed(String message){
+        ++failures;
+        System.out.println(message);
     }
 
     public static void asyncTest(){
@@ -29,23 +47,324 @@ public class RunTests {
             if(async.await()!=Boolean.TRUE) throw new RuntimeException("Bad return value");
             System.out.println("Passed");
         }catch(Throwable t){
-            System.out.println("Failed ("+(t.getMessage().length()==0?"No reason given":t.getMessage())+")");
+            failed("Failed ("+(t.getMessage().length()==0?"No reason given":t.getMessage())+")");
+        }
+
+        System.out.print("Async executor test: ");
+        final ProxiedValue<Thread> ran = new ProxiedValue<>(null);
+        Async<Boolean> dedicated = new Async<>(AsyncPool.threadPerTask(), () -> {
+            ran.value = Thread.currentThread();
+            Async.current().postReturn(true);
+        });
+        try{
+            if(dedicated.await()!=Boolean.TRUE) throw new RuntimeException("Bad return value");
+            if(ran.value==null || ran.value==Thread.currentThread()) throw new RuntimeException("Task didn't run on its own thread");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+(t.getMessage().length()==0?"No reason given":t.getMessage())+")");
+        }
+
+        System.out.print("Timed await test: ");
+        Async<Object> slow = new Async<>(() -> Async.iSleep(1000));
+        try{
+            slow.await(10, TimeUnit.MILLISECONDS);
+            failed("Failed (await didn't time out)");
+        }catch(TimeoutException e){
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+        slow.cancel();
+
+        System.out.print("Async continuation test: ");
+        try{
+            Async<Integer> chained = new Async<>(2)
+                    .thenApply(i -> i * 3)
+                    .thenCompose(i -> new Async<Integer>(() -> Async.current().postReturn(i + 1)))
+                    .thenCombine(new Async<>(10), (a, b) -> a + b);
+            Async<Integer> recovered = chained.<Integer>thenApply(i -> { throw new IllegalStateException(); }).exceptionally(t -> -1);
+            Async<Integer> viaFuture = CompletableFutures.fromCompletableFuture(CompletableFutures.toCompletableFuture(chained).thenApply(i -> i * 2));
+            if(chained.await()!=17 || recovered.await()!=-1 || viaFuture.await()!=34) throw new RuntimeException("Bad return value");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Async cancellation test: ");
+        final ProxiedValue<Async<Object>> child = new ProxiedValue<>(null);
+        Async<Object> spinning = new Async<>(() -> {
+            child.value = new Async<>(() -> { while(!Async.cancellationRequested()) Thread.yield(); });
+            while(!Async.cancellationRequested()) Thread.yield();
+        });
+        while(child.value==null) Thread.yield();
+        spinning.cancel();
+        try{
+            if(spinning.await(1, TimeUnit.SECONDS)!=null || !spinning.isCancelled()) throw new RuntimeException("Task wasn't canceled");
+            child.value.await(1, TimeUnit.SECONDS); // Child must observe its parent's cancellation
+            if(!child.value.isCancelled()) throw new RuntimeException("Child wasn't canceled");
+            if(!spinning.thenApply(o -> o).isCancelled()) throw new RuntimeException("Cancellation didn't propagate to continuation");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Async locals test: ");
+        try{
+            final AsyncLocal<String> user = new AsyncLocal<>("user");
+            final AsyncLocal<Integer> request = new AsyncLocal<>("request", -1, false);
+            Async<String> outer = new Async<>(() -> {
+                user.set("alice");
+                request.set(7);
+                String inherited = new Async<String>(() -> {
+                    String seen = user.get()+":"+request.get();
+                    user.set("zed");                    // Must not leak into the parent
+                    Async.current().postReturn(seen);
+                }).await();
+                if(!"alice:-1".equals(inherited) || !"alice".equals(user.get())) throw new RuntimeException("Bad inheritance: "+inherited);
+
+                user.set("bob");
+                String continued = new Async<>(0).thenApply(i -> user.get(), AsyncPool.threadPerTask()).await();
+                if(!"bob".equals(continued)) throw new RuntimeException("Continuation didn't inherit locals");
+
+                AsyncLocal.Snapshot snapshot = AsyncLocal.capture();
+                user.set("carol");
+                final String[] hopped = new String[1];
+                Thread thread = new Thread(snapshot.wrap(() -> hopped[0] = user.get()));
+                thread.start();
+                try{ thread.join(); }catch(InterruptedException e){ throw new RuntimeException(e); }
+                if(!"bob".equals(hopped[0])) throw new RuntimeException("Snapshot wasn't carried over");
+                snapshot.restore();
+                if(!"bob".equals(user.get()) || request.get()!=7) throw new RuntimeException("Snapshot wasn't restored");
+
+                Map<String, Object> legacy = Async.current().getLocals();
+                legacy.put("legacy", 1);
+                if(!Integer.valueOf(1).equals(legacy.get("legacy")) || legacy.containsKey("user") || legacy.size()!=1) throw new RuntimeException("Bad map view");
+                legacy.remove("legacy");
+                if(!legacy.isEmpty()) throw new RuntimeException("Map view entry wasn't removed");
+                Async.current().postReturn("done");
+            });
+            if(!"done".equals(outer.await())) throw new RuntimeException("Bad return value");
+            try{
+                user.get();
+                throw new RuntimeException("Async local accessible outside of task");
+            }catch(IllegalCallerThreadException e){ /* Expected */ }
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Reactive stream test: ");
+        WorkerThread streamWorker = new WorkerThread(64);
+        try{
+            streamWorker.start();
+            List<Integer> evens = AsyncStream.range(0, 1000).map(i -> i * 3).filter(i -> (i & 1) == 0).map(i -> i / 3).toList().await();
+            if(evens.size()!=500 || evens.get(0)!=0 || evens.get(499)!=998) throw new RuntimeException("Bad fused stream: "+evens.size());
+
+            long sum = AsyncStream.range(0, 10000)
+                    .runOn(AsyncPool.threadPerTask(), 16)
+                    .map(i -> (long) i)
+                    .runOn(streamWorker)
+                    .reduce(0L, (a, b) -> a + b).await();
+            if(sum != 49995000L) throw new RuntimeException("Bad sum across boundaries: "+sum);
+
+            // A producer outrunning a slow subscriber is held back by the buffer
+            AsyncPublisher<Integer> publisher = new AsyncPublisher<>(4);
+            for(int i = 0; i<4; ++i) if(!publisher.offer(i)) throw new RuntimeException("Buffer rejected item early");
+            if(publisher.offer(4)) throw new RuntimeException("Buffer overflowed");
+            Async<List<Integer>> throttled = AsyncStream.from(publisher).runOn(AsyncPool.threadPerTask(), 2).map(i -> {
+                try{ Thread.sleep(1); }catch(InterruptedException e){ throw new RuntimeException(e); }
+                return i;
+            }).toList();
+            for(int i = 4; i<64; ++i) if(!publisher.submit(i)) throw new RuntimeException("Item rejected");
+            publisher.close();
+            List<Integer> received = throttled.await(5, TimeUnit.SECONDS);
+            if(received.size()!=64 || received.get(63)!=63) throw new RuntimeException("Bad backpressured stream: "+received);
+
+            // Canceling the terminal task cancels the subscription
+            AsyncPublisher<Integer> endless = new AsyncPublisher<>(8);
+            Async<Void> consumer = AsyncStream.from(endless).forEach(i -> {});
+            for(int i = 0; i<100; ++i) endless.submit(i);
+            consumer.cancel();
+            if(!endless.isCancelled() || endless.offer(0)) throw new RuntimeException("Subscription wasn't canceled");
+
+            // Requesting a non-positive amount fails the stream, even while items are buffered (rule 3.9)
+            for(int boundary = 0; boundary<2; ++boundary){
+                AsyncPublisher<Integer> buffered = new AsyncPublisher<>(4);
+                for(int i = 0; i<4; ++i) buffered.offer(i);
+                Publisher<Integer> source = boundary == 0 ? buffered : AsyncStream.from(buffered).runOn(AsyncPool.threadPerTask(), 4);
+                final CountDownLatch failed = new CountDownLatch(1);
+                final java.util.concurrent.atomic.AtomicReference<Object> signal = new java.util.concurrent.atomic.AtomicReference<>();
+                source.subscribe(new Subscriber<Integer>() {
+                    public void onSubscribe(Subscription subscription){ subscription.request(0); }
+                    public void onNext(Integer item){ signal.compareAndSet(null, item); }
+                    public void onError(Throwable failure){ signal.compareAndSet(null, failure); failed.countDown(); }
+                    public void onComplete(){ signal.compareAndSet(null, "complete"); failed.countDown(); }
+                });
+                if(!failed.await(5, TimeUnit.SECONDS) || !(signal.get() instanceof IllegalArgumentException))
+                    throw new RuntimeException("Invalid request wasn't signalled"+(boundary == 0 ? "" : " across a boundary")+": "+signal.get());
+            }
+
+            if(!FlowAdapters.supported()) System.out.println("Passed (Flow interop skipped)");
+            else{
+                Publisher<Integer> range = AsyncStream.range(0, 10);
+                if((Object) FlowAdapters.fromFlowPublisher(FlowAdapters.toFlowPublisher(range)) != range) throw new RuntimeException("Adapter wasn't unwrapped");
+
+                Class<?> submissionPublisher = Class.forName("java.util.concurrent.SubmissionPublisher");
+                Object flow = submissionPublisher.newInstance();
+                Async<List<Object>> fromFlow = AsyncStream.from(FlowAdapters.fromFlowPublisher(flow)).toList();
+                Method submit = submissionPublisher.getMethod("submit", Object.class);
+                for(int i = 0; i<100; ++i) submit.invoke(flow, i);
+                submissionPublisher.getMethod("close").invoke(flow);
+                List<Object> items = fromFlow.await(5, TimeUnit.SECONDS);
+                if(items.size()!=100 || !Integer.valueOf(99).equals(items.get(99))) throw new RuntimeException("Bad Flow stream: "+items.size());
+                System.out.println("Passed");
+            }
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }finally{
+            streamWorker.stopGraceful();
+        }
+
+        System.out.print("Virtual thread test: ");
+        if(!AsyncPool.supportsVirtualThreads()) System.out.println("Skipped (not supported)");
+        else try{
+            Async<Boolean> virtual = new Async<>(AsyncPool.virtual(), () -> {
+                Async.current().getLocals().put("virtual", Thread.currentThread().getName());
+                Async.current().postReturn(Async.current().getLocals().get("virtual").toString().startsWith("AsyncVirtual-"));
+            });
+            if(virtual.await()!=Boolean.TRUE) throw new RuntimeException("Task didn't run on a virtual thread");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
         }
 
         System.out.print("AsyncBatch test: ");
         AsyncBatch<Integer> batch = new AsyncBatch<>(batchSize, i -> Async.current().postReturn(i));
         Map<Integer, Integer> map = batch.awaitAll();
         map.forEach((k, v) -> success.value |= k.equals(v));
-        System.out.println(success.value?"Passed":"Failed");
+        if(success.value) System.out.println("Passed"); else failed("Failed");
 
         success.value = true;
 
+        System.out.print("Structured batch test: ");
+        try{
+            final int wide = 10000;
+            final java.util.concurrent.atomic.AtomicInteger heard = new java.util.concurrent.atomic.AtomicInteger();
+            StructuredBatch<Integer> structured = new StructuredBatch<>(wide, i -> Async.current().postReturn(i * 2), 4,
+                    StructuredBatch.ErrorPolicy.FAIL_FAST, Async.getDefaultExecutor(), (i, v, t) -> heard.incrementAndGet());
+            boolean[] seen = new boolean[wide];
+            int count = 0;
+            for(StructuredBatch.Completion<Integer> c : structured){
+                if(seen[c.getIndex()] || c.getValue()!=c.getIndex() * 2) throw new RuntimeException("Bad completion for "+c.getIndex());
+                seen[c.getIndex()] = true;
+                ++count;
+            }
+            if(count!=wide || structured.getFinished()!=wide || structured.awaitAll().get(wide - 1)!=(wide - 1) * 2) throw new RuntimeException("Missing completions");
+            if(heard.get()!=wide) throw new RuntimeException("Listener missed completions");
+
+            StructuredBatch<Object> failFast = new StructuredBatch<>(wide, i -> { if(i==10) throw new IllegalStateException(); }, 2);
+            try{
+                failFast.awaitAll();
+                throw new RuntimeException("Failure wasn't reported");
+            }catch(BatchException e){
+                if(!e.getFailures().containsKey(10) || failFast.getFinished()==wide) throw new RuntimeException("Batch didn't fail fast");
+            }
+
+            StructuredBatch<Object> collectAll = new StructuredBatch<>(wide, i -> { if(i%3==0) throw new IllegalStateException(); }, 2, StructuredBatch.ErrorPolicy.COLLECT_ALL);
+            try{
+                collectAll.awaitAll();
+                throw new RuntimeException("Failures weren't reported");
+            }catch(BatchException e){
+                if(e.getFailures().size()!=(wide + 2) / 3 || collectAll.getFinished()!=wide) throw new RuntimeException("Batch didn't collect all failures");
+            }
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Parallel loop test: ");
+        try{
+            final int range = 100000;
+            final java.util.concurrent.atomic.AtomicIntegerArray visits = new java.util.concurrent.atomic.AtomicIntegerArray(range);
+            Parallel.forRange(range, visits::incrementAndGet);
+            for(int i = 0; i<range; ++i) if(visits.get(i)!=1) throw new RuntimeException("Index "+i+" visited "+visits.get(i)+" times");
+            long sum = Parallel.<Long>reduce(range, 0L, (acc, i) -> acc + i, (a, b) -> a + b);
+            if(sum!=(long) range * (range - 1) / 2) throw new RuntimeException("Bad sum");
+            String digits = Parallel.<String>reduce(1000, "", (acc, i) -> acc + (i % 10), (a, b) -> a + b);
+            StringBuilder expected = new StringBuilder();
+            for(int i = 0; i<1000; ++i) expected.append(i % 10);
+            if(!expected.toString().equals(digits)) throw new RuntimeException("Chunks combined out of order");
+            try{
+                Parallel.forRange(range, i -> { if(i==range / 2) throw new IllegalStateException("expected"); });
+                throw new RuntimeException("Exception wasn't propagated");
+            }catch(IllegalStateException e){ /* Expected */ }
+            final java.util.concurrent.atomic.AtomicBoolean returned = new java.util.concurrent.atomic.AtomicBoolean(), reduced = new java.util.concurrent.atomic.AtomicBoolean();
+            final java.util.concurrent.atomic.AtomicInteger late = new java.util.concurrent.atomic.AtomicInteger();
+            try{
+                Parallel.forRange(256, i -> {
+                    if(returned.get()) late.incrementAndGet();
+                    if(i==0) throw new IllegalStateException("expected");
+                    Async.iSleep(1);
+                });
+                throw new RuntimeException("Exception wasn't propagated");
+            }catch(IllegalStateException e){ returned.set(true); }
+            try{
+                Parallel.<Integer>reduce(256, 0, (acc, i) -> {
+                    if(reduced.get()) late.incrementAndGet();
+                    if(i==255) throw new IllegalStateException("expected");
+                    Async.iSleep(1);
+                    return acc;
+                }, (a, b) -> a + b);
+                throw new RuntimeException("Exception wasn't propagated");
+            }catch(IllegalStateException e){ reduced.set(true); }
+            Async.iSleep(100);
+            if(late.get()!=0) throw new RuntimeException(late.get()+" invocations ran after the loop failed");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Scheduler test: ");
+        try{
+            long start = System.nanoTime();
+            Async.delay(50).await();
+            if(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50)) throw new RuntimeException("Delay expired early");
+
+            final java.util.concurrent.atomic.AtomicInteger runs = new java.util.concurrent.atomic.AtomicInteger();
+            Async<Object> canceled = Scheduler.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+            canceled.cancel();
+            Async<Void> periodic = Scheduler.scheduleAtFixedRate(runs::incrementAndGet, 0, 5, TimeUnit.MILLISECONDS);
+            while(runs.get() < 5) Async.iSleep(1);
+            periodic.cancel();
+            int stoppedAt = runs.get();
+            Async.sleep(50);
+            if(runs.get() > stoppedAt + 1) throw new RuntimeException("Periodic task kept running after cancel");
+
+            Async<Object> never = new Async<>(() -> { while(!Async.cancellationRequested()) Async.iSleep(1); });
+            try{
+                never.orTimeout(20, TimeUnit.MILLISECONDS).await();
+                throw new RuntimeException("Task didn't time out");
+            }catch(RuntimeException e){
+                if(!(e.getCause() instanceof TimeoutException)) throw e;
+            }
+            never.await(1, TimeUnit.SECONDS);
+            if(!never.isCancelled()) throw new RuntimeException("Timed out task wasn't canceled");
+
+            Async[] timers = new Async[100000];
+            for(int i = 0; i<timers.length; ++i) timers[i] = Async.delay(60000 + i);
+            for(Async a : timers) a.cancel();
+            if(Scheduler.pending() != 0) throw new RuntimeException(Scheduler.pending()+" timers still pending after cancel");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
         System.out.print("EcoAsync test: ");
         final String expected = "Hello Eco";
         EcoAsync<String> eco = new EcoAsync<>(false, SafeReflection.getConstructor(String.class, String.class), expected);
         try{
             eco.await();
-            System.out.println("Failed (could await uninitialized async)");
+            failed("Failed (could await uninitialized async)");
         }catch(Exception e){
             eco.start();
             success.value |= expected.equals(eco.await());
@@ -53,7 +372,24 @@ public class RunTests {
             eco.start();
             success.value |= expected.equals(eco.await());
 
-            System.out.println(success.value?"Passed":"Failed: (Awaited values did not match expected value)");
+            try{
+                final EcoAsync<Object> sleeper = new EcoAsync<>(true, (Object) null, Thread.class.getMethod("sleep", long.class), 200L);
+                Thread awaiter = new Thread(() -> { try{ sleeper.await(); }catch(Throwable ignored){} });
+                awaiter.start();
+                Thread.sleep(20);
+                sleeper.cancel();
+                awaiter.join(2000);
+                if(awaiter.isAlive()) throw new RuntimeException("Waiter wasn't released by cancel");
+                if(!sleeper.isCancelled()) throw new RuntimeException("Canceled state was reset");
+                sleeper.start();
+                sleeper.await();
+                if(sleeper.isCancelled()) throw new RuntimeException("Restart didn't reset the canceled state");
+            }catch(Throwable t){
+                success.value = false;
+                System.out.print("("+t+") ");
+            }
+
+            if(success.value) System.out.println("Passed"); else failed("Failed: (Awaited values did not match expected value)");
         }
 
         success.value = true;
@@ -70,9 +406,183 @@ public class RunTests {
         }
         for(Long id : check.keySet()) success.value |= check.get(id).equals(thread.pop(id));
 
-        thread.stopGraceful();
+        if(success.value) System.out.println("Passed"); else failed("Failed");
 
-        System.out.println(success.value?"Passed":"Failed");
+        System.out.print("Worker thread handle test: ");
+        try{
+            Async<Integer> handle = thread.submit((Supplier<Integer>)()->42, invoke);
+            if(handle.thenApply(i -> i + 1).await()!=43) throw new RuntimeException("Bad return value");
+            thread.stopGraceful();
+            thread.join();
+            for(int i = 0; i<=2 * batchSize; ++i) // More than the queue holds, so leaked slots would block
+                if(!thread.submit((Supplier<Integer>)()->0, invoke).isCancelled()) throw new RuntimeException("Instruction accepted by stopped worker");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Worker thread batch test: ");
+        WorkerThread batched = new WorkerThread(8);
+        batched.start();
+        try{
+            Method sum = Integer.class.getMethod("sum", int.class, int.class);
+            Object[][] params = new Object[100][];
+            for(int i = 0; i<params.length; ++i) params[i] = new Object[]{ i, 1 };
+            InvocationBatch<Integer> invocations = batched.submitAll(null, sum, params); // Larger than the queue, so it's appended in chunks
+            List<Integer> all = invocations.whenAll().await();
+            if(all.size()!=100 || !invocations.allFinished() || invocations.getFinished()!=100) throw new RuntimeException("Batch didn't finish");
+            for(int i = 0; i<all.size(); ++i) if(all.get(i)!=i + 1 || invocations.get(i).await()!=i + 1) throw new RuntimeException("Bad return value at "+i);
+            if(!all.equals(batched.<Integer>submitAll(null, sum, Arrays.asList(params)).awaitAll())) throw new RuntimeException("Bad collection batch");
+            InvocationBatch<Integer> failing = batched.submitAll(null, Integer.class.getMethod("parseInt", String.class), new Object[]{ "1" }, new Object[]{ "x" });
+            try{
+                failing.whenAll().await();
+                throw new RuntimeException("Failure wasn't propagated");
+            }catch(RuntimeException e){ if(!(e.getCause().getCause() instanceof NumberFormatException)) throw e; } // Wrapped in an InvocationTargetException
+            batched.stopGraceful();
+            batched.join();
+            if(!batched.submitAll(null, sum, params).get(99).isCancelled()) throw new RuntimeException("Batch accepted by stopped worker");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }finally{
+            batched.stopGraceful();
+        }
+
+        System.out.print("Worker thread lanes test: ");
+        WorkerThread laned = new WorkerThread(64, 2);
+        laned.start();
+        try{
+            final CountDownLatch gate = new CountDownLatch(1), started = new CountDownLatch(1);
+            final List<String> order = java.util.Collections.synchronizedList(new ArrayList<>());
+            final Supplier<Object> blocker = () -> {
+                started.countDown();
+                try{ gate.await(); }catch(InterruptedException e){ throw new RuntimeException(e); }
+                return null;
+            };
+            Async<Object> blocked = laned.submit(0, blocker, invoke);
+            started.await();                            // Otherwise the instructions below may be sorted before the blocker is taken
+            for(int i = 0; i<3; ++i){
+                final String name = "bulk"+i;
+                laned.submit((Supplier<Object>)() -> order.add(name), invoke);   // Last lane by default
+            }
+            laned.submit(0, (Supplier<Object>)() -> order.add("urgent"), invoke);
+            laned.submit(0, 300, TimeUnit.MILLISECONDS, (Supplier<Object>)() -> order.add("late"), invoke);
+            laned.submit(0, 100, TimeUnit.MILLISECONDS, (Supplier<Object>)() -> order.add("early"), invoke);
+            Async<Object> last = laned.submit(1, (Supplier<Object>)() -> order.add("end"), invoke);
+            gate.countDown();
+            last.await();
+            if(!Arrays.asList("early", "late", "urgent", "bulk0", "bulk1", "bulk2", "end").equals(order)) throw new RuntimeException("Bad order: "+order);
+            if(laned.getWaitTimes(1).getCount()!=4 || laned.getQueueDepth(0)!=0) throw new RuntimeException("Bad lane statistics");
+
+            // Expired instructions fail rather than run
+            laned.setExpiredPolicy(WorkerThread.ExpiredPolicy.FAIL);
+            final Supplier<Object> sleeper = () -> { Async.iSleep(30); return null; };
+            laned.submit(0, sleeper, invoke);
+            Async<Object> expired = laned.submit(1, 1, TimeUnit.MILLISECONDS, (Supplier<Object>)() -> "ran", invoke);
+            try{
+                expired.await();
+                throw new RuntimeException("Expired instruction ran");
+            }catch(RuntimeException e){ if(!(e.getCause() instanceof TimeoutException)) throw e; }
+            if(laned.getExpired(1)!=1) throw new RuntimeException("Expiry wasn't counted");
+
+            // Bulk work isn't starved by a steady stream of urgent work
+            laned.setStarvationThreshold(20, TimeUnit.MILLISECONDS);
+            final AtomicInteger urgentRan = new AtomicInteger();
+            final Supplier<Object> urgentWork = () -> { Async.iSleep(5); return urgentRan.incrementAndGet(); };
+            laned.submit(0, urgentWork, invoke);
+            Async<Integer> bulk = laned.submit(1, (Supplier<Object>)() -> urgentRan.get(), invoke);
+            Async<Object> lastUrgent = null;
+            for(int i = 0; i<20; ++i) lastUrgent = laned.submit(0, urgentWork, invoke);
+            if(bulk.await()>=21) throw new RuntimeException("Bulk instruction was starved");
+            lastUrgent.await();
+            if(laned.getPromoted(1)<1) throw new RuntimeException("Promotion wasn't counted");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }finally{
+            laned.stopGraceful();
+        }
+
+        System.out.print("Worker pool test: ");
+        WorkerPool pool = new WorkerPool(2, 4, batchSize);
+        try{
+            final Supplier<Thread> whoAmI = Thread::currentThread;
+            final Supplier<Integer> blocking = () -> { Async.iSleep(20); return 1; };
+            Async<Thread> first = pool.submitAffine("key", whoAmI, invoke);
+            for(int i = 0; i<batchSize; ++i)
+                if(pool.<Thread>submitAffine("key", whoAmI, invoke).await()!=first.await()) throw new RuntimeException("Affine instruction ran on another worker");
+            final Map<Long, Integer> expect = new HashMap<>();
+            for(int i = 0; i<batchSize; ++i){
+                final int value = random.nextInt();
+                expect.put(pool.push((Supplier<Integer>)()->value, invoke), value);
+            }
+            for(Long id : expect.keySet()) if(!expect.get(id).equals(pool.pop(id))) throw new RuntimeException("Bad return value");
+            Async[] slowTasks = new Async[batchSize];
+            for(int i = 0; i<batchSize; ++i) slowTasks[i] = pool.submit(blocking, invoke);
+            if(pool.size()<=2) throw new RuntimeException("Pool didn't grow");
+            for(Async a : slowTasks) if(!Integer.valueOf(1).equals(a.await())) throw new RuntimeException("Bad return value");
+            pool.stopGraceful();
+            for(int i = 0; i<=2 * batchSize; ++i) // More than the queues hold, so leaked slots would block
+                if(!pool.submit(whoAmI, invoke).isCancelled() || !pool.submitAffine("key", whoAmI, invoke).isCancelled())
+                    throw new RuntimeException("Instruction accepted by stopped pool");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+            pool.stopForced();
+        }
+
+        System.out.print("Async metrics test: ");
+        AsyncMetrics.setEnabled(true);
+        WorkerThread tracked = new WorkerThread(batchSize);
+        try{
+            AsyncMetrics.reset();
+            final int tasks = 1000;
+            Async[] all = new Async[tasks];
+            for(int i = 0; i<tasks; ++i) all[i] = new Async<>(() -> {});
+            for(Async a : all) a.await();
+            try{
+                new Async<>(() -> { throw new IllegalStateException(); }).await();
+            }catch(RuntimeException e){ /* Expected */ }
+            tracked.start();
+            for(int i = 0; i<batchSize; ++i) tracked.submit((Supplier<Integer>)()->1, invoke).await();
+
+            AsyncMetrics.Snapshot snapshot = AsyncMetrics.snapshot();
+            for(int i = 0; i<1000 && snapshot.getActiveTasks()!=0; ++i){ // Awaiters are released just before tasks are counted as done
+                Async.iSleep(1);
+                snapshot = AsyncMetrics.snapshot();
+            }
+            if(snapshot.getCompleted()<tasks + batchSize || snapshot.getFailed()<1) throw new RuntimeException("Tasks weren't counted: "+snapshot);
+            if(snapshot.getQueueWait().getCount()==0 || snapshot.getExecutionTime().getCount()==0) throw new RuntimeException("Tasks weren't timed");
+            AsyncMetrics.WorkerSnapshot ws = null;
+            for(AsyncMetrics.WorkerSnapshot w : snapshot.getWorkers()) if(w.getThreadId()==tracked.getId()) ws = w;
+            if(ws==null || ws.getProcessed()!=batchSize) throw new RuntimeException("Worker wasn't tracked");
+
+            AsyncMetrics.registerMBeans();
+            javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            if((Long) server.getAttribute(new javax.management.ObjectName("net.tofvesson.async:type=AsyncMetrics"), "Completed")<tasks)
+                throw new RuntimeException("MBean didn't report completed tasks");
+            if(server.queryNames(new javax.management.ObjectName("net.tofvesson.async:type=WorkerThread,*"), null).isEmpty())
+                throw new RuntimeException("Worker MBean wasn't registered");
+            tracked.stopGraceful();
+            tracked.join();
+
+            AsyncMetrics.setEnabled(false);
+            long submitted = AsyncMetrics.snapshot().getSubmitted();
+            new Async<>(() -> {}).await();
+            if(AsyncMetrics.snapshot().getSubmitted()!=submitted) throw new RuntimeException("Disabled metrics were recorded");
+
+            Histogram histogram = new Histogram();
+            for(int i = 1; i<=100000; ++i) histogram.record(i);
+            if(Math.abs(histogram.getValueAtPercentile(50) - 50000) > 50000 / 16 || histogram.getMax()!=100000 || histogram.getCount()!=100000)
+                throw new RuntimeException("Inaccurate histogram: "+histogram);
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }finally{
+            tracked.stopGraceful();
+            AsyncMetrics.setEnabled(false);
+            AsyncMetrics.unregisterMBeans();
+        }
     }
 
     public static void collectionsTest(){
@@ -83,7 +593,262 @@ public class RunTests {
         // TODO: Implement
     }
 
+    static class FieldBase {
+        private Object inherited = "inherited";
+        private static int counter = 7;
+    }
+
+    static class FieldHolder extends FieldBase {
+        private String reference = "value";
+        private long wide = 1;
+        private volatile char letter = 'a';
+    }
+
+    static class Primitives {
+        private int i = 1;
+        private long l = 2;
+        private double d = 3.5;
+        private float f = 4.5f;
+        private boolean z = true;
+        private byte b = 5;
+        private short s = 6;
+        private char c = 'c';
+        private volatile String text = "text";
+        private static long total = 0;
+    }
+
+    interface IntGetter { int get(Object target); }
+    interface IntSetter { void set(Primitives target, int value); }
+    interface LongGetter { long get(); }
+    interface Counter { int count(); }
+    interface Length { int length(String s); }
+    interface Maker { CharSequence make(String s); }
+    interface Check { Object check(String name, int value) throws Exception; }
+
+    @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+    @java.lang.annotation.Inherited
+    @interface Indexed { }
+
+    @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+    @interface Marked {
+        String value() default "";
+        int[] numbers() default {};
+        java.lang.annotation.ElementType kind() default java.lang.annotation.ElementType.FIELD;
+        Class<?> type() default Object.class;
+        Indexed nested() default @Indexed;
+    }
+
+    @Indexed
+    static class IndexedBase {
+        @Marked(value = "field", numbers = {1, 2}, type = String.class)
+        int marked;
+        int unmarked;
+
+        @Marked(kind = java.lang.annotation.ElementType.CONSTRUCTOR)
+        IndexedBase(int marked){ this.marked = marked; }
+        IndexedBase(){ }
+    }
+
+    static class IndexedChild extends IndexedBase {
+        @Marked void run(String s){ }
+        void run(int i){ }
+    }
+
+    static int counted = 0;
+
+    private static String check(String name, int value){
+        if(value < 0) throw new IllegalStateException(name);
+        return name+value;
+    }
+
     public static void reflectionTest(){
-        // TODO: Implement
+        System.out.print("Field accessor test: ");
+        try{
+            FieldHolder holder = new FieldHolder();
+            if(!"value".equals(SafeReflection.getValue(holder, "reference"))) throw new RuntimeException("Bad declared value");
+            if(!"inherited".equals(SafeReflection.getValue(holder, "inherited"))) throw new RuntimeException("Bad inherited value");
+            if(!Long.valueOf(1).equals(SafeReflection.getValue(holder, "wide"))) throw new RuntimeException("Primitive wasn't boxed");
+            if(!Integer.valueOf(7).equals(SafeReflection.getValue(FieldHolder.class, "counter"))) throw new RuntimeException("Bad static value");
+            if(SafeReflection.getValue(holder, "missing")!=null || SafeReflection.getValue(holder, "missing")!=null) throw new RuntimeException("Found missing field");
+
+            for(int i = 0; i<3; ++i){ // Later iterations go through the cached accessors
+                if(!SafeReflection.setValue(holder, "reference", "set"+i) || !("set"+i).equals(holder.reference)) throw new RuntimeException("Declared value wasn't set");
+                if(!SafeReflection.setValueVolatile(holder, "inherited", i) || !Integer.valueOf(i).equals(((FieldBase) holder).inherited)) throw new RuntimeException("Inherited value wasn't set");
+                if(!SafeReflection.setValue(holder, "wide", i) || holder.wide!=i) throw new RuntimeException("Primitive wasn't widened");
+                if(!SafeReflection.setValue(holder, FieldHolder.class, "letter", (char) ('b' + i)) || holder.letter!='b' + i) throw new RuntimeException("Volatile value wasn't set");
+                if(!SafeReflection.setValue(FieldHolder.class, "counter", i) || FieldBase.counter!=i) throw new RuntimeException("Static value wasn't set");
+            }
+            if(SafeReflection.setValue(holder, "reference", 5) || SafeReflection.setValue(holder, "wide", 1.5) || SafeReflection.setValue(holder, "wide", null))
+                throw new RuntimeException("Value of the wrong type was set");
+            if(SafeReflection.setValue(holder, "missing", 1)) throw new RuntimeException("Missing field was set");
+            if(SafeReflection.setValue(null, FieldHolder.class, "reference", "static")) throw new RuntimeException("Instance field was set without an instance");
+            if(SafeReflection.setValue(new Object(), FieldHolder.class, "reference", "foreign")) throw new RuntimeException("Field was set on a foreign object");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Field handle test: ");
+        try{
+            Primitives p = new Primitives();
+            FieldHandle i = SafeReflection.getFieldHandle(Primitives.class, "i"), l = FieldHandle.of(Primitives.class, "l"),
+                    d = FieldHandle.of(Primitives.class, "d"), f = FieldHandle.of(Primitives.class, "f"), text = FieldHandle.of(Primitives.class, "text"),
+                    total = FieldHandle.of(Primitives.class, "total");
+            if(i.getInt(p)!=1 || l.getLongVolatile(p)!=2 || d.getDoubleAcquire(p)!=3.5 || f.getFloat(p)!=4.5f) throw new RuntimeException("Bad primitive values");
+            if(!FieldHandle.of(Primitives.class, "z").getBoolean(p) || FieldHandle.of(Primitives.class, "b").getByte(p)!=5
+                    || FieldHandle.of(Primitives.class, "s").getShort(p)!=6 || FieldHandle.of(Primitives.class, "c").getChar(p)!='c')
+                throw new RuntimeException("Bad small primitive values");
+            if(SafeReflection.getFieldHandle(Primitives.class, "missing")!=null || FieldHandle.of(i.getField())!=i) throw new RuntimeException("Bad handle lookup");
+            if(!Double.valueOf(3.5).equals(SafeReflection.getFieldValue(d.getField(), p))) throw new RuntimeException("Primitive field value wasn't boxed");
+
+            i.putIntRelease(p, 10);
+            if(!i.compareAndSetInt(p, 10, 11) || i.compareAndSetInt(p, 10, 12) || i.getAndAddInt(p, 4)!=11 || p.i!=15) throw new RuntimeException("Bad int updates");
+            l.putLongVolatile(p, 20);
+            if(l.getAndSetLong(p, 21)!=20 || !l.compareAndSetLong(p, 21, 22) || p.l!=22) throw new RuntimeException("Bad long updates");
+            d.putDouble(p, -0.0);
+            if(d.compareAndSetDouble(p, 0.0, 1) || !d.compareAndSetDouble(p, -0.0, 1) || p.d!=1) throw new RuntimeException("Doubles weren't compared by their bits");
+            f.putFloatRelease(p, 2);
+            if(!f.compareAndSetFloat(p, 2, 3) || p.f!=3) throw new RuntimeException("Bad float updates");
+            text.putObjectRelease(p, "released");
+            if(!text.compareAndSetObject(p, "released", "swapped") || !"swapped".equals(text.getAndSetObject(p, "last")) || !"last".equals(p.text))
+                throw new RuntimeException("Bad object updates");
+
+            final CountDownLatch done = new CountDownLatch(4);
+            for(int t = 0; t<4; ++t)
+                new Thread(() -> {
+                    for(int n = 0; n<10000; ++n) total.getAndAddLong(null, 1);
+                    done.countDown();
+                }).start();
+            done.await();
+            if(Primitives.total!=40000) throw new RuntimeException("Lost static updates: "+Primitives.total);
+
+            try{
+                i.getLong(p);
+                throw new RuntimeException("Mismatched type was accepted");
+            }catch(IllegalArgumentException expected){}
+            try{
+                text.putObject(p, 5);
+                throw new RuntimeException("Mismatched value was accepted");
+            }catch(IllegalArgumentException expected){}
+            try{
+                i.getInt(new Object());
+                throw new RuntimeException("Foreign target was accepted");
+            }catch(IllegalArgumentException expected){}
+            try{
+                i.getInt(null);
+                throw new RuntimeException("Missing target was accepted");
+            }catch(NullPointerException expected){}
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Generated accessor test: ");
+        try{
+            final boolean generates = Classes.canGenerateAccessors(); // Otherwise every accessor has to keep working through reflection
+            Primitives p = new Primitives();
+            Classes.Accessor<IntGetter> get = Classes.getter(Primitives.class.getDeclaredField("i"), IntGetter.class, 3);
+            for(int n = 0; n<3; ++n){
+                if(get.isGenerated() || !java.lang.reflect.Proxy.isProxyClass(get.get().getClass())) throw new RuntimeException("Accessor was generated before the threshold");
+                if(get.get().get(p)!=1) throw new RuntimeException("Bad reflective value");
+            }
+            if(get.isGenerated()!=generates || java.lang.reflect.Proxy.isProxyClass(get.get().getClass())==generates) throw new RuntimeException("Accessor "+(generates ? "wasn't" : "was")+" generated");
+            p.i = 2;
+            if(get.get().get(p)!=2) throw new RuntimeException("Bad value after the threshold");
+
+            Classes.Accessor<IntSetter> set = Classes.setter(Primitives.class.getDeclaredField("i"), IntSetter.class, 0);
+            set.get().set(p, 3);
+            if(set.isGenerated()!=generates || p.i!=3) throw new RuntimeException("Private field wasn't set");
+
+            Primitives.total = 5;
+            if(Classes.getter(Primitives.class.getDeclaredField("total"), LongGetter.class, 0).get().get()!=5) throw new RuntimeException("Bad static value");
+            counted = 6;
+            Classes.Accessor<Counter> counter = Classes.getter(RunTests.class.getDeclaredField("counted"), Counter.class, 0);
+            if(counter.isGenerated()!=generates || counter.get().count()!=6) throw new RuntimeException("Static field wasn't read directly");
+
+            Classes.Accessor<Length> length = Classes.accessor(String.class.getMethod("length"), Length.class, 0);
+            if(length.isGenerated()!=generates || length.get().length("four")!=4) throw new RuntimeException("Public method wasn't called");
+            Classes.Accessor<Maker> maker = Classes.accessor(StringBuilder.class.getConstructor(String.class), Maker.class, 0);
+            if(maker.isGenerated()!=generates || !"made".equals(maker.get().make("made").toString())) throw new RuntimeException("Constructor wasn't called");
+
+            Classes.Accessor<Check> check = Classes.accessor(RunTests.class.getDeclaredMethod("check", String.class, int.class), Check.class, 1);
+            for(int n = 0; n<2; ++n){
+                if(!"a1".equals(check.get().check("a", 1))) throw new RuntimeException("Private method wasn't called");
+                try{
+                    check.get().check("b", -1);
+                    throw new RuntimeException("Exception wasn't propagated");
+                }catch(IllegalStateException expected){
+                    if(!"b".equals(expected.getMessage())) throw new RuntimeException("Wrong exception was propagated");
+                }
+            }
+            if(check.isGenerated()!=generates) throw new RuntimeException("Private method accessor "+(generates ? "wasn't" : "was")+" generated");
+
+            try{
+                Classes.getter(Primitives.class.getDeclaredField("l"), IntGetter.class);
+                throw new RuntimeException("Mismatched interface was accepted");
+            }catch(IllegalArgumentException expected){}
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Class definition test: ");
+        try{
+            ClassLoader loader = RunTests.class.getClassLoader();
+            java.lang.reflect.Field first = Classes.reference(loader, "first"), second = Classes.reference(loader, 2);
+            if(!"first".equals(first.get(null)) || !Integer.valueOf(2).equals(second.get(null))) throw new RuntimeException("Bad referenced values");
+            if(first.getDeclaringClass()==second.getDeclaringClass()) throw new RuntimeException("References share a class");
+
+            // Each backend is only checked where the runtime supports it
+            Class<?> unnamed = Classes.createClassWithStaticField("array", int[].class);
+            if(Classes.canDefineUnnamedClasses()){
+                if(unnamed==null || unnamed.getDeclaredField("array").getType()!=int[].class) throw new RuntimeException("Unnamed class wasn't defined");
+                if(Classes.classExists(loader, unnamed.getName())) throw new RuntimeException("Unnamed class can be found by name");
+            }else if(unnamed!=null) throw new RuntimeException("Unnamed class defined without support");
+
+            String name = Classes.generateNewRandomClassName(loader, "generated.", "", 1, 16);
+            if(Classes.classExists(loader, name)) throw new RuntimeException("Random name is taken");
+            Class<?> named = Classes.createClassWithStaticField(loader, name, "value", long.class);
+            if(Classes.canDefineNamedClasses()){
+                if(named==null || named.getDeclaredField("value").getType()!=long.class) throw new RuntimeException("Named class wasn't defined");
+                if(!Classes.classExists(loader, name) || Classes.createClassWithStaticField(loader, name, "value", long.class)!=null)
+                    throw new RuntimeException("Named class can be defined twice");
+            }else if(named!=null || Classes.classExists(loader, name)) throw new RuntimeException("Named class defined without support");
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
+
+        System.out.print("Annotation index test: ");
+        try{
+            java.io.File root = new java.io.File(RunTests.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            java.io.File file = java.io.File.createTempFile("annotations", ".idx");
+            try{
+                if(!file.delete()) throw new RuntimeException("Couldn't prepare index file");
+                AnnotationIndex scanned = AnnotationIndex.loadOrScan(file, root);
+                if(!file.isFile()) throw new RuntimeException("Index wasn't persisted");
+                AnnotationIndex loaded = AnnotationIndex.loadOrScan(file, root);
+                for(AnnotationIndex index : new AnnotationIndex[]{ scanned, loaded }){
+                    if(!index.getAnnotatedClassNames(Indexed.class.getName()).equals(Arrays.asList(IndexedBase.class.getName())))
+                        throw new RuntimeException("Bad class names: "+index.getAnnotatedClassNames(Indexed.class.getName()));
+                    List<Class<?>> classes = index.getAnnotatedClasses(Indexed.class);
+                    if(classes.size()!=2 || !classes.contains(IndexedBase.class) || !classes.contains(IndexedChild.class))
+                        throw new RuntimeException("Bad inherited classes: "+classes);
+                    if(!index.getAnnotatedFields(Marked.class).equals(Arrays.asList(IndexedBase.class.getDeclaredField("marked"))))
+                        throw new RuntimeException("Bad fields: "+index.getAnnotatedFields(Marked.class));
+                    if(!index.getAnnotatedMethods(Marked.class).equals(Arrays.asList(IndexedChild.class.getDeclaredMethod("run", String.class))))
+                        throw new RuntimeException("Bad methods: "+index.getAnnotatedMethods(Marked.class));
+                    if(!index.getAnnotatedConstructors(Marked.class).equals(Arrays.asList(IndexedBase.class.getDeclaredConstructor(int.class))))
+                        throw new RuntimeException("Bad constructors: "+index.getAnnotatedConstructors(Marked.class));
+                    if(!index.getAnnotatedClasses(Marked.class).isEmpty()) throw new RuntimeException("Member annotation found on a class");
+                }
+                if(!Annotations.getAllAnnotatedClasses(Indexed.class).contains(IndexedChild.class)) throw new RuntimeException("Class path index is incomplete");
+            }finally{
+                file.delete();
+            }
+            System.out.println("Passed");
+        }catch(Throwable t){
+            failed("Failed ("+t+")");
+        }
     }
 }
@@ -0,0 +1,82 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.Async;
+import net.tofvesson.async.AsyncLocal;
+import net.tofvesson.async.AsyncPool;
+import net.tofvesson.async.EcoAsync;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of spawning a task and awaiting its result, and of looking up the state of the running task.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AsyncBenchmark {
+
+    private static final int LOOKUPS = 1000;
+
+    private final Runnable body = () -> Async.current().postReturn(1);
+    private final Executor inline = Runnable::run;
+    private final AsyncLocal<Integer> local = new AsyncLocal<>("benchmark");
+    private EcoAsync<Thread> eco;
+
+    @Setup
+    public void setup() throws NoSuchMethodException { eco = new EcoAsync<>(false, Thread.class.getMethod("currentThread")); }
+
+    @Benchmark
+    public Object spawnAwait(){ return new Async<Integer>(body).await(); }
+
+    @Benchmark
+    public Object spawnAwaitInline(){ return new Async<Integer>(inline, body).await(); }
+
+    @Benchmark
+    public Object spawnAwaitThreadPerTask(){ return new Async<Integer>(AsyncPool.threadPerTask(), body).await(); }
+
+    @Benchmark
+    public Object thenApplyCompleted(){ return new Async<Integer>(1).thenApply(i -> i + 1).await(); }
+
+    @Benchmark
+    public Object ecoRestart(){
+        eco.start();
+        return eco.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public Object current(){
+        return new Async<Integer>(inline, () -> {
+            int found = 0;
+            for(int i = 0; i<LOOKUPS; ++i) if(Async.current() != null) ++found;
+            Async.current().postReturn(found);
+        }).await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public Object localGet(){
+        return new Async<Integer>(inline, () -> {
+            local.set(1);
+            int sum = 0;
+            for(int i = 0; i<LOOKUPS; ++i) sum += local.get();
+            Async.current().postReturn(sum);
+        }).await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public Object localsMapGet(){
+        return new Async<Integer>(inline, () -> {
+            Async.current().getLocals().put("benchmark", 1);
+            int sum = 0;
+            for(int i = 0; i<LOOKUPS; ++i) sum += (Integer) Async.current().getLocals().get("benchmark");
+            Async.current().postReturn(sum);
+        }).await();
+    }
+}
@@ -0,0 +1,33 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.Async;
+import net.tofvesson.async.AsyncMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead that collecting {@link AsyncMetrics} adds to spawning a task and awaiting it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncMetricsBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private final Runnable body = () -> Async.current().postReturn(1);
+
+    @Setup
+    public void setup(){ AsyncMetrics.setEnabled(metrics); }
+
+    @TearDown
+    public void tearDown(){ AsyncMetrics.setEnabled(false); }
+
+    @Benchmark
+    public Object spawnAwait(){ return new Async<Integer>(body).await(); }
+}
@@ -0,0 +1,43 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.Async;
+import net.tofvesson.async.AsyncPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of tasks that block for a millisecond. Pass -p executor=shared,virtual on JVMs with virtual threads to compare them to
+ * the shared pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockingTaskBenchmark {
+
+    private static final int TASKS = 1000;
+
+    @Param({"shared"})
+    public String executor;
+
+    private Executor pool;
+    private final Runnable body = () -> Async.iSleep(1);
+    private final Async<?>[] tasks = new Async<?>[TASKS];
+
+    @Setup
+    public void setup(){
+        if("virtual".equals(executor) && !AsyncPool.supportsVirtualThreads()) throw new IllegalStateException("Virtual threads aren't supported by this JVM");
+        pool = "virtual".equals(executor) ? AsyncPool.virtual() : AsyncPool.shared();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void sleepingTasks(){
+        for(int i = 0; i<TASKS; ++i) tasks[i] = new Async<Object>(pool, body);
+        for(Async<?> task : tasks) task.await();
+    }
+}
@@ -0,0 +1,39 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.collections.Collections;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Array insertion and reversal helpers in {@link Collections}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollectionsBenchmark {
+
+    @Param({"16", "1024"})
+    public int size;
+
+    private Integer[] values;
+    private ArrayList<Integer> list;
+
+    @Setup
+    public void setup(){
+        values = new Integer[size];
+        for(int i = 0; i<size; ++i) values[i] = i;
+        list = new ArrayList<Integer>(Arrays.asList(values));
+    }
+
+    @Benchmark
+    public ArrayList<Integer> addAll(){ return Collections.addAll(new ArrayList<Integer>(), values); }
+
+    @Benchmark
+    public ArrayList<Integer> flip(){ return Collections.flip(list); }
+}
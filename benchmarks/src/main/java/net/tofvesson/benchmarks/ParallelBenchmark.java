@@ -0,0 +1,57 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.AsyncBatch;
+import net.tofvesson.async.BatchRunnable;
+import net.tofvesson.async.Parallel;
+import net.tofvesson.async.StructuredBatch;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-index cost of a loop whose body does roughly 100 ns of work: run serially, split by {@link Parallel} and spawned as one task
+ * per index by the batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelBenchmark {
+
+    private static final int INDICES = 100000, ITEMS = 10000;
+
+    private final double[] out = new double[INDICES];
+    private final BatchRunnable body = i -> {
+        double d = i;
+        for(int j = 0; j<20; ++j) d = Math.sqrt(d + j);
+        out[i] = d;
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(INDICES)
+    public double[] serial(){
+        for(int i = 0; i<INDICES; ++i) body.run(i);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INDICES)
+    public double[] forRange(){
+        Parallel.forRange(INDICES, body);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INDICES)
+    public double reduce(){ return Parallel.<Double>reduce(INDICES, 0.0, (acc, i) -> acc + Math.sqrt(i), (a, b) -> a + b); }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public Object asyncBatch(){ return new AsyncBatch<Object>(ITEMS, body).awaitAll(); }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public Object structuredBatch(){ return new StructuredBatch<Object>(ITEMS, body, Runtime.getRuntime().availableProcessors()).awaitAll(); }
+}
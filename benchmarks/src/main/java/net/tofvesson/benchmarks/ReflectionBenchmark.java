@@ -0,0 +1,101 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.reflection.Classes;
+import net.tofvesson.reflection.FieldHandle;
+import net.tofvesson.reflection.Invoker;
+import net.tofvesson.reflection.SafeReflection;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Name-based field access through {@link SafeReflection}, typed access through {@link FieldHandle} and calls through reflection,
+ * {@link Invoker} and generated {@link Classes.Accessor}s, next to plain field access and calls for reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReflectionBenchmark {
+
+    public static class Base {
+        private Object inherited = "inherited";
+    }
+
+    public static class Holder extends Base {
+        private Object reference = "value";
+        private int primitive = 1;
+
+        public int twice(int value){ return value * 2; }
+    }
+
+    public interface Twice { int twice(Holder holder, int value); }
+    public interface IntGetter { int get(Holder holder); }
+
+    private final Holder holder = new Holder();
+    private final Object value = "value";
+    private final Integer boxed = 2;
+    private final FieldHandle primitive = FieldHandle.of(Holder.class, "primitive");
+    private int next = 0;
+    private Method twice;
+    private Invoker invoker;
+    private Classes.Accessor<Twice> accessor;
+    private Classes.Accessor<IntGetter> getter;
+
+    @Setup
+    public void setup() throws Exception {
+        twice = Holder.class.getMethod("twice", int.class);
+        invoker = Invoker.of(twice);
+        accessor = Classes.accessor(twice, Twice.class);
+        getter = Classes.getter(Holder.class.getDeclaredField("primitive"), IntGetter.class);
+    }
+
+    @Benchmark
+    public Object getValue(){ return SafeReflection.getValue(holder, "reference"); }
+
+    @Benchmark
+    public Object getValueInherited(){ return SafeReflection.getValue(holder, "inherited"); }
+
+    @Benchmark
+    public boolean setValue(){ return SafeReflection.setValue(holder, "reference", value); }
+
+    @Benchmark
+    public boolean setValuePrimitive(){ return SafeReflection.setValue(holder, "primitive", boxed); }
+
+    @Benchmark
+    public Object getValuePrimitive(){ return SafeReflection.getValue(holder, "primitive"); }
+
+    @Benchmark
+    public int handleGetInt(){ return primitive.getInt(holder); }
+
+    @Benchmark
+    public void handlePutInt(){ primitive.putInt(holder, ++next); }
+
+    @Benchmark
+    public boolean handleCompareAndSetInt(){ return primitive.compareAndSetInt(holder, holder.primitive, ++next); }
+
+    @Benchmark
+    public Object methodInvoke() throws InvocationTargetException, IllegalAccessException { return twice.invoke(holder, ++next); }
+
+    @Benchmark
+    public Object invokerInvoke() throws InvocationTargetException { return invoker.invoke(holder, ++next); }
+
+    @Benchmark
+    public int accessorInvoke(){ return accessor.get().twice(holder, ++next); }
+
+    @Benchmark
+    public int accessorGetInt(){ return getter.get().get(holder); }
+
+    @Benchmark
+    public int directInvoke(){ return holder.twice(++next); }
+
+    @Benchmark
+    public Object directGet(){ return holder.reference; }
+
+    @Benchmark
+    public int directGetInt(){ return holder.primitive; }
+}
@@ -0,0 +1,29 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.Async;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of arming a timer and canceling it before it fires.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SchedulerBenchmark {
+
+    private static final int TIMERS = 1000;
+
+    private final Async<?>[] timers = new Async<?>[TIMERS];
+
+    @Benchmark
+    @OperationsPerInvocation(TIMERS)
+    public void scheduleCancel(){
+        for(int i = 0; i<TIMERS; ++i) timers[i] = Async.delay(60000 + i);
+        for(Async<?> timer : timers) timer.cancel();
+    }
+}
@@ -0,0 +1,44 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.AsyncStream;
+import net.tofvesson.async.WorkerThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-item cost of a map/filter pipeline, fused on the calling thread and with an asynchronous boundary in front of it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamBenchmark {
+
+    private static final int ITEMS = 100000;
+
+    private WorkerThread worker;
+
+    @Setup
+    public void setup(){
+        worker = new WorkerThread(64);
+        worker.start();
+    }
+
+    @TearDown
+    public void tearDown(){ worker.stopGraceful(); }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long fused(){ return pipeline(AsyncStream.range(0, ITEMS)); }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long workerHop(){ return pipeline(AsyncStream.range(0, ITEMS).runOn(worker)); }
+
+    private static long pipeline(AsyncStream<Integer> source){
+        return source.map(i -> i + 1).filter(i -> (i & 3) != 0).map(i -> (long) i).reduce(0L, (a, b) -> a + b).await();
+    }
+}
@@ -0,0 +1,40 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.stream.TagStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link TagStream#print(String)} with a couple of tags applied, writing to a sink that discards everything.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TagStreamBenchmark {
+
+    private static final OutputStream sink = new OutputStream() {
+        @Override public void write(int b) {}
+        @Override public void write(byte[] b, int off, int len) {}
+    };
+
+    private final TagStream toStream = tagged(new TagStream(sink));
+    private final TagStream toPrintStream = tagged(new TagStream(new PrintStream(sink)));
+
+    private static TagStream tagged(TagStream stream){
+        stream.addTag(s -> "[bench] " + s);
+        stream.addTag(s -> s + "\n");
+        return stream;
+    }
+
+    @Benchmark
+    public void printToOutputStream(){ toStream.print("The quick brown fox jumps over the lazy dog"); }
+
+    @Benchmark
+    public void printToPrintStream(){ toPrintStream.print("The quick brown fox jumps over the lazy dog"); }
+}
@@ -0,0 +1,72 @@
+package net.tofvesson.benchmarks;
+
+import net.tofvesson.async.Async;
+import net.tofvesson.async.WorkerThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of an instruction through a {@link WorkerThread}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WorkerThreadBenchmark {
+
+    private static final int BATCH = 1000;
+
+    private WorkerThread worker, laned;
+    private Method method;
+    private final Target target = new Target();
+    private final Object[][] batchParams = new Object[BATCH][];
+
+    public static class Target {
+        private int calls;
+        public int call(){ return ++calls; }
+    }
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        worker = new WorkerThread(1024);
+        worker.start();
+        laned = new WorkerThread(1024, 2);
+        laned.start();
+        method = Target.class.getMethod("call");
+        for(int i = 0; i<BATCH; ++i) batchParams[i] = new Object[0];
+    }
+
+    @TearDown
+    public void tearDown(){
+        worker.stopGraceful();
+        laned.stopGraceful();
+    }
+
+    @Benchmark
+    public Object pushPop(){ return worker.pop(worker.push(target, method)); }
+
+    @Benchmark
+    public Object submitAwait(){ return worker.submit(target, method).await(); }
+
+    @Benchmark
+    public Object submitAwaitLane(){ return laned.submit(0, target, method).await(); }
+
+    @Benchmark
+    public Object submitAwaitDeadline(){ return laned.submit(0, 1, TimeUnit.SECONDS, target, method).await(); }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object submitEach(){
+        Async<Object> last = null;
+        for(int i = 0; i<BATCH; ++i) last = worker.submit(target, method);
+        return last.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object submitAll(){ return worker.submitAll(target, method, batchParams).whenAll().await(); }
+}
@@ -1,41 +1,62 @@
 package net.tofvesson.async;
 
+import net.tofvesson.collections.BiConsumer;
+import net.tofvesson.collections.BiFunction;
+import net.tofvesson.collections.Function;
 import net.tofvesson.collections.Pair;
 import net.tofvesson.reflection.Classes;
+import net.tofvesson.reflection.Invoker;
 import net.tofvesson.reflection.SafeReflection;
 import jdk.internal.org.objectweb.asm.ClassWriter;
 import jdk.internal.org.objectweb.asm.MethodVisitor;
 import jdk.internal.org.objectweb.asm.Opcodes;
 
 import java.lang.reflect.*;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 @SuppressWarnings({"WeakerAccess", "unused", "unchecked", "SameParameterValue", "JavaReflectionMemberAccess"})
-public class Async<T> implements Awaitable{
+public class Async<T> implements Awaitable<T>{
 
-    private static final Field threadLocals;
-    private static final boolean android;
+    /**
+     * Async task running on the current thread.
+     */
+    private static final ThreadLocal<Async> current = new ThreadLocal<Async>();
 
-    static{
-        Field f = null;
-        boolean $android = false;
-        try{
-            try{
-                f = Thread.class.getDeclaredField("threadLocals");
-            }catch(Exception ignored){ f = Thread.class.getDeclaredField("localValues"); $android = true; }
-        }catch(Exception e){ e.printStackTrace(); }
-        threadLocals = f;
-        android = $android;
-    }
 
+    private static final AtomicReferenceFieldUpdater<Async, Waiter> waitersUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Async.class, Waiter.class, "waiters");
+    private static final AtomicReferenceFieldUpdater<Async, Continuation> continuationsUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Async.class, Continuation.class, "continuations");
+
+    /**
+     * Executor used for tasks that aren't given one explicitly.
+     */
+    private static volatile Executor defaultExecutor;
+
+    /**
+     * Amount of times an awaiting thread polls for completion before parking.
+     */
+    private static volatile int awaitSpins = 0;
 
     /**
-     * Thread running background task.
+     * Thread currently running the background task. Null while the task is queued and after it has finished.
      */
     Thread task;
 
+    /**
+     * Executor the background task was dispatched to.
+     */
+    Executor executor;
+
     /**
      * Return value/ constructed object.
      */
@@ -51,59 +72,60 @@ public class Async<T> implements Awaitable{
      */
     volatile boolean complete = false, failed = false; // Used by anonymous class, therefore not private
 
+    /**
+     * Whether or not the task has been canceled.
+     */
+    volatile boolean cancelled = false;
+
     /**
      * Exception to throw in case something goes wrong.
      */
     volatile Throwable t;
 
-    private final LinkedHashMap<String, Object> asyncLocals = new LinkedHashMap<String, Object>();
-
-    /**
-     * Create Async object for sleeping for a while.
-     * @param millis Milliseconds to wait.
-     * @param micros Microseconds to wait.
-     */
-    private Async(final long millis, final int micros){
-        task = new Thread(new Runnable(){
-            public void run(){
-                new ThreadLocal<Async>().set(Async.this);
-                try {
-                    Thread.sleep(millis, micros);
-                    Async.this.complete = true;
-                } catch (InterruptedException t1) {
-                    if(!Async.this.failed) {
-                        Async.this.failed = true;
-                        Async.this.t=t1;
-                    }
-                }
-            }
-        });
-        task.setDaemon(true);
-        task.start();
-    }
+    /**
+     * Task that was running when this task was dispatched. Canceling it also cancels this task.
+     */
+    volatile Async<?> parent;
+
+    /**
+     * Stack of threads parked while awaiting this task.
+     */
+    private volatile Waiter waiters;
+
+    /**
+     * Stack of continuations to run when this task is done.
+     */
+    private volatile Continuation continuations;
+
+    /**
+     * Values of {@link AsyncLocal}s indexed by key. Allocated when the first value is set.
+     */
+    Object[] locals;
+
+    /**
+     * Whether the locals array is shared with another task or a snapshot and has to be copied before it's written to, and
+     * whether it may hold values that aren't inheritable.
+     */
+    boolean localsShared, localsPrivate;
 
     /**
      * Create Async process with runnable.
      * @param r Runnable to execute as new task.
      */
-    public Async(final Runnable r){
-        task = new Thread(new Runnable(){
-            public void run(){
-                try {
-                    new ThreadLocal<Async>()
-                            .set(Async.this);           // Store ThreadLocal reference to Async object
-                    r.run();                            // Execute runnable
-                    complete = true;                    // Notify all threads who are checking
-                } catch (Throwable t1) {                // Prepare for failure
-                    if(!failed) {                       // Checks if task was canceled
-                        failed = true;                  // Notifies all threads that task failed
-                        t=t1;                           // Makes error accessible to be thrown
-                    }
-                }
+    public Async(Runnable r){ this(getDefaultExecutor(), r); }
+
+    /**
+     * Create Async process with runnable.
+     * @param executor Executor to run task on.
+     * @param r Runnable to execute as new task.
+     */
+    public Async(Executor executor, final Runnable r){
+        dispatch(executor, new Callable<T>(){
+            public T call(){
+                r.run();                                // Execute runnable
+                return ret;                             // Runnables don't return anything, so keep whatever has been posted
             }
-        });                                         // Execute thread with runnable
-        task.setDaemon(true);                       // Ensure that process dies with program
-        task.start();                               // Start task
+        });
     }
 
     /**
@@ -113,25 +135,22 @@ public class Async<T> implements Awaitable{
      * @param method Method to invoke.
      * @param params Required parameters.
      */
-    public Async(final Object o, final Method method, final Object... params){
-        method.setAccessible(true); // Ensure that no crash occurs
-        task = new Thread(new Runnable(){ // Create a new thread
-            public void run(){
-                try {
-                    new ThreadLocal<Async>().set(Async.this);
-                    T ret = (T)method.invoke(o, params);// Invoke given method
-                    if(ovw) Async.this.ret = ret;       // Checks if a sticky value already has been posted
-                    complete = true;                    // Notify all threads who are checking
-                } catch (Throwable t1) {                // Prepare for failure
-                    if(!failed) {                       // Checks if task was canceled
-                        failed = true;                  // Notifies all threads that task failed
-                        t=t1;                           // Makes error accessible to be thrown
-                    }
-                }
+    public Async(Object o, Method method, Object... params){ this(getDefaultExecutor(), o, method, params); }
+
+    /**
+     * Initiates an async task that invokes the defined method on the given executor. If object is null, the method must be static.
+     * @param executor Executor to run task on.
+     * @param o Object to invoke method on.
+     * @param method Method to invoke.
+     * @param params Required parameters.
+     */
+    public Async(Executor executor, final Object o, final Method method, final Object... params){
+        final Invoker invoker = Invoker.of(method);     // Also ensures that no crash occurs
+        dispatch(executor, new Callable<T>(){
+            public T call() throws Exception {
+                return (T)invoker.invoke(o, params);    // Invoke given method
             }
         });
-        task.setDaemon(true);                       // Ensure that process dies with program
-        task.start();                               // Start task
     }
 
     /**
@@ -159,25 +178,21 @@ public class Async<T> implements Awaitable{
      * @param c Constructor to use when instantiating object.
      * @param params Parameters to use when instantiaing object.
      */
-    public Async(final Constructor<T> c, final Object... params){
-        c.setAccessible(true);                  // Ensure that constructor can be called
-        task = new Thread(new Runnable() {               // Creates a new thread for asynchronous execution
-            public void run(){
-                new ThreadLocal<Async>().set(Async.this);
-                try {
-                    T ret = c.newInstance(params);  // Create a new instance: invoke "<init>" method
-                    if(ovw) Async.this.ret = ret;   // Checks if a sticky value already has been posted
-                    complete = true;                // Notify all threads that async is finished
-                } catch (Throwable t1) {            // Handle crash
-                    if(!failed) {                   // Ensure that crash wasn't called by cancel()
-                        failed = true;              // Notify all threads that error has been encountered
-                        t=t1;                       // Make throwable accessible to be thrown in caller thread
-                    }
-                }
+    public Async(Constructor<T> c, Object... params){ this(getDefaultExecutor(), c, params); }
+
+    /**
+     * Create a new async task for instantiating an object on the given executor.
+     * @param executor Executor to run task on.
+     * @param c Constructor to use when instantiating object.
+     * @param params Parameters to use when instantiaing object.
+     */
+    public Async(Executor executor, final Constructor<T> c, final Object... params){
+        final Invoker invoker = Invoker.of(c);  // Also ensures that constructor can be called
+        dispatch(executor, new Callable<T>(){
+            public T call() throws Exception {
+                return (T)invoker.invoke(null, params); // Create a new instance: invoke "<init>" method
             }
         });
-        task.setDaemon(true);                   // Ensure that thread dies with program
-        task.start();                           // Start construction
     }
 
     /**
@@ -191,12 +206,93 @@ public class Async<T> implements Awaitable{
      * This won't even start a new thread. All it does is set it's current state to "finished" and allow for the return value to be read.
      * @param o Return value.
      */
-    public Async(T o){ complete = true; ret = o; }
+    public Async(T o){ ret = o; complete = true; }
     /**
      * WARNING: Package-scoped because it should only be used when overriding standard construction. Should not bw used haphazardly!
      */
-    Async() { task = null; }
+    Async() { AsyncLocal.inherit(current.get(), this); }
 
+    /**
+     * Queue the given task body on the supplied executor.
+     * @param executor Executor to run task on.
+     * @param body Task to run.
+     */
+    private void dispatch(Executor executor, final Callable<T> body){
+        if(executor == null) throw new NullPointerException("Executor cannot be null!");
+        this.executor = executor;
+        parent = current.get();
+        AsyncLocal.inherit(parent, this);
+        final long queuedAt = AsyncMetrics.enabled ? AsyncMetrics.queued() : AsyncMetrics.UNTRACKED;
+        try{
+            executor.execute(new Runnable(){
+                public void run(){
+                    if(queuedAt != AsyncMetrics.UNTRACKED) AsyncMetrics.dequeued(queuedAt);
+                    execute(body);
+                }
+            });
+        }catch(RuntimeException e){
+            if(queuedAt != AsyncMetrics.UNTRACKED) AsyncMetrics.discarded(); // Rejected by executor
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the task body in the calling thread and records the outcome.
+     * @param body Task to run.
+     */
+    void execute(Callable<T> body){
+        final boolean tracked = AsyncMetrics.enabled;
+        final long startedAt = tracked ? AsyncMetrics.started() : 0L;
+        if(isCancelled()){                              // Task (or the task that dispatched it) was canceled before it was started
+            cancel();
+            if(tracked) AsyncMetrics.finished(0L, AsyncMetrics.CANCELLED);
+            return;
+        }
+        Async previous = current.get();
+        synchronized (this){ task = Thread.currentThread(); }
+        try {
+            current.set(this);                          // Store ThreadLocal reference to Async object
+            T ret = body.call();                        // Execute task
+            if(isCancelled()) cancel();                 // Task returned early because it (or its parent) was canceled
+            else {
+                if(ovw) this.ret = ret;                 // Checks if a sticky value already has been posted
+                setComplete();                          // Notify all threads who are waiting
+            }
+        } catch (Throwable t1) {                        // Prepare for failure
+            if(isCancelled()) cancel();
+            else setFailed(t1);
+        } finally {
+            parent = null;                              // Don't keep parent alive once this task is done
+            if(previous == null) current.remove();      // Pooled threads outlive the task, so don't leave a stale reference behind
+            else current.set(previous);
+            synchronized (this){
+                task = null;
+                Thread.interrupted();                   // Clear interrupt from a cancellation before the thread runs another task
+            }
+            if(tracked) AsyncMetrics.finished(startedAt, cancelled ? AsyncMetrics.CANCELLED : failed ? AsyncMetrics.FAILED : AsyncMetrics.COMPLETED);
+        }
+    }
+
+
+    /**
+     * Marks the task as completed and wakes all threads awaiting it.
+     */
+    final void setComplete(){
+        complete = true;
+        release();
+    }
+
+    /**
+     * Marks the task as failed and wakes all threads awaiting it. Does nothing if the task has already failed (e.g. if it was canceled).
+     * @param t1 Cause of failure.
+     */
+    final void setFailed(Throwable t1){
+        if(!failed) {                                   // Checks if task was canceled
+            t = t1;                                     // Makes error accessible to be thrown
+            failed = true;                              // Notifies all threads that task failed
+        }
+        release();
+    }
 
     /**
      * Await completion of async task. Blocks thread if task isn't complete.
@@ -204,10 +300,43 @@ public class Async<T> implements Awaitable{
      */
     public T await(){
         checkDangerousThreadedAction();
-        //noinspection StatementWithEmptyBody
-        while(!failed && !complete); // Check using variables rather than checking if worker thread is alive since method calls are more computationally expensive
+        try {
+            AsyncPool.block(this, false, false, 0);
+        } catch (InterruptedException e) { throw new IllegalStateException(e); } // Unreachable: uninterruptible waits don't throw
+        return getResult();
+    }
+
+    /**
+     * Await completion of async task for at most the given amount of time.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout argument.
+     * @return Return value from async method call. Return is null if {@link #cancel()} is called before this method and async task wan't finished.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     * @throws TimeoutException If the task didn't finish in time.
+     */
+    public T await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        checkDangerousThreadedAction();
+        if(!AsyncPool.block(this, true, true, unit.toNanos(timeout))) throw new TimeoutException();
+        return getResult();
+    }
+
+    /**
+     * Await completion of async task. Blocks thread if task isn't complete, but gives up if the calling thread is interrupted.
+     * @return Return value from async method call. Return is null if {@link #cancel()} is called before this method and async task wan't finished.
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public T awaitInterruptibly() throws InterruptedException {
+        checkDangerousThreadedAction();
+        AsyncPool.block(this, true, false, 0);
+        return getResult();
+    }
+
+    /**
+     * Get the outcome of a finished task.
+     * @return Return value from async method call.
+     */
+    T getResult(){
         if(ret==null && t!=null) throw new RuntimeException(t); // Detect a unique error state, get error and throw in caller thread
-        //noinspection unchecked
         return ret; // Don't bother resetting values since this object is only intended to be recycled after value is gotten
     }
 
@@ -215,46 +344,418 @@ public class Async<T> implements Awaitable{
      * Checks if async task is still running.
      * @return True if it's still running.
      */
-    public boolean isAlive(){ return task.isAlive(); } // Check if thread is still alive which directly determines if process is alive since Async is a wrapper of Thread
+    public boolean isAlive(){ return !isDone(); } // Threads may be shared between tasks, so the thread itself can't tell us anything
 
+    /**
+     * Checks if async task has either completed or failed.
+     * @return True if task is no longer running.
+     */
+    final boolean isDone(){ return failed || complete; }
 
     /**
-     * Get async instance pertaining to current thread.
-     * @return Async owning current thread or null if thread isn't Async.
+     * Blocks the calling thread until the task is done. The thread briefly polls for completion (see {@link #setAwaitSpins(int)})
+     * and then parks until it's woken up by the task finishing.
+     * @param interruptible Whether or not to stop waiting if the calling thread is interrupted.
+     * @param timed Whether or not to give up after the given amount of nanoseconds.
+     * @param nanos Maximum time to wait if timed.
+     * @return True if task is done, false if the wait timed out.
+     * @throws InterruptedException If interruptible and the calling thread was interrupted.
      */
-    public static <T> Async<T> current(){
-        try{
-            Object holder;
-            Field f = threadLocals;
-            f = (holder= SafeReflection.getFieldValue(f, Thread.currentThread())).getClass().getDeclaredField("table");
-            for(Object o : (Object[]) SafeReflection.getFieldValue(f, holder))
-                if(o != null) {
-                    if(android) holder = o;
-                    else f = o.getClass().getDeclaredField("value");
-                    if((android?holder:(holder=SafeReflection.getFieldValue(f, o))) instanceof Async) return (Async<T>) holder;
+    boolean block(boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+        //noinspection StatementWithEmptyBody
+        for(int i = awaitSpins; i>0 && !isDone(); --i); // Check using variables rather than checking if worker thread is alive since method calls are more computationally expensive
+        if(isDone()) return true;
+        if(interruptible && Thread.interrupted()) throw new InterruptedException();
+
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        boolean interrupted = false;
+        Waiter w = new Waiter();
+        Waiter head;
+        do w.next = head = waiters; while(!waitersUpdater.compareAndSet(this, head, w));
+        try {
+            while(!isDone()){ // Re-check after pushing to guarantee that a concurrent release can't be missed
+                if(timed){
+                    if((nanos = deadline - System.nanoTime()) <= 0L) return false;
+                    LockSupport.parkNanos(this, nanos);
                 }
-        }catch(Exception e){}
-        return null;
+                else LockSupport.park(this);
+                if(Thread.interrupted()){
+                    if(interruptible) throw new InterruptedException();
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            w.thread = null;
+            if(!isDone()) unlinkWaiters(); // Clean up after timeouts and interrupts so long-running tasks don't accumulate dead waiters
+            if(interrupted) Thread.currentThread().interrupt(); // Restore interrupt status swallowed by uninterruptible wait
+        }
+    }
+
+    /**
+     * Wakes all threads awaiting this task and runs all registered continuations.
+     */
+    private void release(){
+        for(Waiter w = waitersUpdater.getAndSet(this, null); w != null; w = w.next){
+            Thread th = w.thread;
+            if(th != null){
+                w.thread = null;
+                LockSupport.unpark(th);
+            }
+        }
+        for(Continuation c = continuationsUpdater.getAndSet(this, null), next; c != null; c = next){
+            next = c.next;
+            c.next = null;
+            c.dispatch();
+        }
+    }
+
+    /**
+     * Completes a task that has no body of its own (e.g. a continuation). Does nothing if the task is already done.
+     * @param value Value to complete with.
+     * @param failure Cause of failure or null if task succeeded.
+     * @return True if this call completed the task.
+     */
+    final boolean finish(T value, Throwable failure){
+        synchronized (this){
+            if(isDone()) return false;
+            if(failure == null){
+                ret = value;
+                complete = true;
+            }else{
+                if(failure instanceof CancellationException) cancelled = true; // Propagate cancellation along chains
+                t = failure;
+                failed = true;
+            }
+        }
+        release();
+        return true;
+    }
+
+    /**
+     * Get the reason this task failed.
+     * @return Cause of failure or a {@link CancellationException} if the task was canceled.
+     */
+    final Throwable getFailure(){
+        Throwable t = this.t;
+        return t == null ? new CancellationException() : t;
     }
 
+    /**
+     * Registers a continuation to be run once this task is done. If the task is already done, the continuation is run immediately.
+     * @param c Continuation to register.
+     */
+    final void onDone(Continuation c){
+        Continuation head;
+        c.source = this;
+        do c.next = head = continuations; while(!continuationsUpdater.compareAndSet(this, head, c));
+        if(isDone()) release(); // Task may have finished before the continuation was pushed
+    }
+
+    /**
+     * Creates a task that completes with the result of the given function applied to the result of this task.
+     * The function is run by the thread that completes this task without blocking any thread in the meantime.
+     * If this task fails, the returned task fails with the same cause.
+     * @param fn Function to apply.
+     * @param <R> Return type of function.
+     * @return Dependent task.
+     */
+    public <R> Async<R> thenApply(Function<? super T, ? extends R> fn){ return thenApply(fn, null); }
+
+    /**
+     * Creates a task that completes with the result of the given function applied to the result of this task.
+     * If this task fails, the returned task fails with the same cause.
+     * @param fn Function to apply.
+     * @param executor Executor to run function on or null to run it on the completing thread.
+     * @param <R> Return type of function.
+     * @return Dependent task.
+     */
+    public <R> Async<R> thenApply(final Function<? super T, ? extends R> fn, Executor executor){
+        final Async<R> dep = new Async<R>();
+        onDone(new Continuation(executor, dep) {
+            void run(boolean success, Object value, Throwable failure) throws Throwable {
+                if(success) dep.finish(fn.apply((T) value), null);
+                else dep.finish(null, failure);
+            }
+            void fail(Throwable failure) { dep.finish(null, failure); }
+        });
+        return dep;
+    }
+
+    /**
+     * Creates a task that completes with the result of the task returned by the given function.
+     * Neither this task nor the returned task is awaited by any thread.
+     * If either task fails, the returned task fails with the same cause.
+     * @param fn Function that creates the next task from the result of this task.
+     * @param <R> Return type of next task.
+     * @return Dependent task.
+     */
+    public <R> Async<R> thenCompose(Function<? super T, ? extends Async<R>> fn){ return thenCompose(fn, null); }
+
+    /**
+     * Creates a task that completes with the result of the task returned by the given function.
+     * If either task fails, the returned task fails with the same cause.
+     * @param fn Function that creates the next task from the result of this task.
+     * @param executor Executor to run function on or null to run it on the completing thread.
+     * @param <R> Return type of next task.
+     * @return Dependent task.
+     */
+    public <R> Async<R> thenCompose(final Function<? super T, ? extends Async<R>> fn, Executor executor){
+        final Async<R> dep = new Async<R>();
+        onDone(new Continuation(executor, dep) {
+            void run(boolean success, Object value, Throwable failure) throws Throwable {
+                if(!success){
+                    dep.finish(null, failure);
+                    return;
+                }
+                Async<R> next = fn.apply((T) value);
+                if(next == null) throw new NullPointerException("Composed task cannot be null!");
+                next.onDone(new Continuation(null) {
+                    void run(boolean success, Object value, Throwable failure) { dep.finish((R) value, success ? null : failure); }
+                    void fail(Throwable failure) { dep.finish(null, failure); }
+                });
+            }
+            void fail(Throwable failure) { dep.finish(null, failure); }
+        });
+        return dep;
+    }
+
+    /**
+     * Creates a task that completes with the result of the given function applied to the results of this task and the other task.
+     * If either task fails, the returned task fails with the same cause.
+     * @param other Task to combine with.
+     * @param fn Function to combine results with.
+     * @param <U> Return type of other task.
+     * @param <R> Return type of function.
+     * @return Dependent task.
+     */
+    public <U, R> Async<R> thenCombine(Async<U> other, BiFunction<? super T, ? super U, ? extends R> fn){ return thenCombine(other, fn, null); }
+
+    /**
+     * Creates a task that completes with the result of the given function applied to the results of this task and the other task.
+     * If either task fails, the returned task fails with the same cause.
+     * @param other Task to combine with.
+     * @param fn Function to combine results with.
+     * @param executor Executor to run function on or null to run it on the thread that completes the last of the two tasks.
+     * @param <U> Return type of other task.
+     * @param <R> Return type of function.
+     * @return Dependent task.
+     */
+    public <U, R> Async<R> thenCombine(final Async<U> other, final BiFunction<? super T, ? super U, ? extends R> fn, Executor executor){
+        final Async<R> dep = new Async<R>();
+        final Async<Void> both = allOf(this, other);
+        both.onDone(new Continuation(executor, dep) {
+            void run(boolean success, Object value, Throwable failure) throws Throwable {
+                if(success) dep.finish(fn.apply(Async.this.ret, other.ret), null);
+                else dep.finish(null, failure);
+            }
+            void fail(Throwable failure) { dep.finish(null, failure); }
+        });
+        return dep;
+    }
+
+    /**
+     * Creates a task that completes with the same outcome as this task after the given action has been run.
+     * The action is passed the result of this task or the cause of failure. If the action throws, the returned task fails.
+     * @param action Action to run.
+     * @return Dependent task.
+     */
+    public Async<T> whenComplete(BiConsumer<? super T, ? super Throwable> action){ return whenComplete(action, null); }
+
+    /**
+     * Creates a task that completes with the same outcome as this task after the given action has been run.
+     * The action is passed the result of this task or the cause of failure. If the action throws, the returned task fails.
+     * @param action Action to run.
+     * @param executor Executor to run action on or null to run it on the completing thread.
+     * @return Dependent task.
+     */
+    public Async<T> whenComplete(final BiConsumer<? super T, ? super Throwable> action, Executor executor){
+        final Async<T> dep = new Async<T>();
+        onDone(new Continuation(executor, dep) {
+            void run(boolean success, Object value, Throwable failure) throws Throwable {
+                action.accept(success ? (T) value : null, success ? null : failure);
+                dep.finish((T) value, success ? null : failure);
+            }
+            void fail(Throwable failure) { dep.finish(null, failure); }
+        });
+        return dep;
+    }
+
+    /**
+     * Creates a task that completes with the result of this task or, if this task fails, with the result of the given function
+     * applied to the cause of failure.
+     * @param fn Function that recovers from a failure.
+     * @return Dependent task.
+     */
+    public Async<T> exceptionally(Function<Throwable, ? extends T> fn){ return exceptionally(fn, null); }
+
+    /**
+     * Creates a task that completes with the result of this task or, if this task fails, with the result of the given function
+     * applied to the cause of failure.
+     * @param fn Function that recovers from a failure.
+     * @param executor Executor to run function on or null to run it on the completing thread.
+     * @return Dependent task.
+     */
+    public Async<T> exceptionally(final Function<Throwable, ? extends T> fn, Executor executor){
+        final Async<T> dep = new Async<T>();
+        onDone(new Continuation(executor, dep) {
+            void run(boolean success, Object value, Throwable failure) throws Throwable {
+                dep.finish(success ? (T) value : fn.apply(failure), null);
+            }
+            void fail(Throwable failure) { dep.finish(null, failure); }
+        });
+        return dep;
+    }
+
+    /**
+     * Creates a task that completes with the result of this task or fails with a {@link TimeoutException} if this task doesn't
+     * finish in time. This task is canceled when it times out. No thread is blocked while waiting.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout argument.
+     * @return Dependent task.
+     */
+    public Async<T> orTimeout(long timeout, TimeUnit unit){ return Scheduler.timeout(this, timeout, unit, true); }
+
+    /**
+     * Creates a task that completes when all the given tasks have completed. If any of the tasks fails, the returned task fails
+     * with the same cause as soon as the failure is detected.
+     * @param all Tasks to wait for.
+     * @return Task that completes with null once all tasks have completed.
+     */
+    public static Async<Void> allOf(Async<?>... all){
+        final Async<Void> dep = new Async<Void>();
+        final AtomicInteger remaining = new AtomicInteger(all.length);
+        if(all.length == 0) dep.finish(null, null);
+        for(Async<?> a : all)
+            a.onDone(new Continuation(null) {
+                void run(boolean success, Object value, Throwable failure) {
+                    if(!success) dep.finish(null, failure);
+                    else if(remaining.decrementAndGet() == 0) dep.finish(null, null);
+                }
+                void fail(Throwable failure) { dep.finish(null, failure); }
+            });
+        return dep;
+    }
+
+    /**
+     * Creates a task that completes with the outcome of whichever of the given tasks finishes first.
+     * @param any Tasks to wait for.
+     * @return Task that completes with the result of the first task to finish.
+     */
+    public static Async<Object> anyOf(Async<?>... any){
+        final Async<Object> dep = new Async<Object>();
+        for(Async<?> a : any)
+            a.onDone(new Continuation(null) {
+                void run(boolean success, Object value, Throwable failure) { dep.finish(value, success ? null : failure); }
+                void fail(Throwable failure) { dep.finish(null, failure); }
+            });
+        return dep;
+    }
+
+    /**
+     * Removes waiters that have given up from the waiter stack.
+     */
+    private void unlinkWaiters(){
+        retry:
+        for(;;){
+            Waiter pred = null;
+            for(Waiter w = waiters, next; w != null; w = next){
+                next = w.next;
+                if(w.thread != null) pred = w;
+                else if(pred != null){
+                    pred.next = next;
+                    if(pred.thread == null) continue retry; // Predecessor was removed concurrently
+                }
+                else if(!waitersUpdater.compareAndSet(this, w, next)) continue retry;
+            }
+            return;
+        }
+    }
+
+
+    /**
+     * Get the executor used for tasks that aren't given one explicitly.
+     * @return Default executor. Unless changed, this is {@link AsyncPool#shared()}.
+     */
+    public static Executor getDefaultExecutor(){
+        Executor e = defaultExecutor;
+        return e == null ? AsyncPool.shared() : e;
+    }
+
+    /**
+     * Set the executor used for tasks that aren't given one explicitly.
+     * @param executor Executor to use or null to revert to {@link AsyncPool#shared()}.
+     */
+    public static void setDefaultExecutor(Executor executor){ defaultExecutor = executor; }
+
+    /**
+     * Set how many times an awaiting thread should poll for completion before parking. Polling avoids the cost of parking and
+     * unparking threads when tasks are expected to finish almost immediately, but wastes processor time otherwise.
+     * @param spins Amount of polls. Zero (the default) parks immediately.
+     */
+    public static void setAwaitSpins(int spins){ awaitSpins = Math.max(spins, 0); }
+
+    /**
+     * Get async instance pertaining to current thread.
+     * @return Async owning current thread or null if thread isn't Async.
+     */
+    public static <T> Async<T> current(){ return (Async<T>) current.get(); }
+
     /**
      * Method that must be called by the async thread of any class that
      * extends this one if they want to support {@link #current()} for their class.
      */
-    protected void setLocal(){ new ThreadLocal<Async>().set(this); }
+    protected void setLocal(){ current.set(this); }
 
     /**
-     * Cancels async operation if it's still alive.
+     * Method that should be called by the async thread of any class that extends this one once it has
+     * finished running the task if the thread may be reused.
+     */
+    protected void clearLocal(){ if(current.get() == this) current.remove(); }
+
+    /**
+     * Cancels async operation if it's still alive. Cancellation is cooperative: waiters are released immediately, a task that
+     * hasn't started yet will never run and a running task is interrupted. Running tasks should poll {@link #cancellationRequested()}
+     * (or {@link #throwIfCancelled()}) during long computations. Tasks dispatched from inside a canceled task are canceled along
+     * with it and dependent tasks created through continuations fail with a {@link CancellationException}.
      */
     public void cancel(){
-        if(task.isAlive()){
-                            // Set values before interrupting to prevent InterruptedException from
-                            // being propagated and thrown in the main thread
-            t=null;
-            failed = true;  // Creates a unique and identifiable state
-                            //noinspection deprecation
-            task.stop();    // Force-stop thread
+        if(isDone()) return;
+                                // Set values before interrupting to prevent InterruptedException from
+                                // being propagated and thrown in the main thread
+        cancelled = true;
+        t=null;
+        failed = true;          // Creates a unique and identifiable state
+        synchronized (this){
+            if(task != null) task.interrupt(); // Interrupt flag is cleared before the thread is reused
         }
+        release();
+    }
+
+    /**
+     * Checks whether this task, or the task that dispatched it, has been canceled.
+     * @return True if canceled.
+     */
+    public boolean isCancelled(){
+        if(cancelled) return true;
+        Async<?> p = parent;
+        return p != null && p.isCancelled();
+    }
+
+    /**
+     * Checks whether the task running on the current thread has been asked to stop.
+     * @return True if the current task has been canceled. False if it hasn't or if the current thread isn't running a task.
+     */
+    public static boolean cancellationRequested(){
+        Async<?> a = current.get();
+        return a != null && a.isCancelled();
+    }
+
+    /**
+     * Stops the current task by throwing a {@link CancellationException} if it has been canceled.
+     */
+    public static void throwIfCancelled(){
+        if(cancellationRequested()) throw new CancellationException();
     }
 
     /**
@@ -286,12 +787,14 @@ public class Async<T> implements Awaitable{
     }
 
     /**
-     * Get a map of values local to this async object.
+     * Get a map of values local to this async object. This is a String-keyed view of the task's {@link AsyncLocal} values: every
+     * key put into the map is backed by a non-inheritable AsyncLocal, and only such keys are visible in it.
+     * Prefer declaring an {@link AsyncLocal} directly, which is typed and avoids hashing the key on every access.
      * @return Map of values if called from this async task, otherwise throw exception
      */
     public Map<String, Object> getLocals(){
         if(!this.equals(Async.<T>current())) throw new IllegalCallerThreadException("Cannot get locals from another thread!");
-        return asyncLocals;
+        return AsyncLocal.view(this);
     }
 
     /**
@@ -306,7 +809,7 @@ public class Async<T> implements Awaitable{
      * @param millis Milliseconds to delay.
      * @param micros Microseconds to delay.
      */
-    public static void sleep(long millis, int micros){ new Async(millis, micros).await(); }
+    public static void sleep(long millis, int micros){ Scheduler.delay(millis * 1000 + micros, TimeUnit.MICROSECONDS).await(); }
 
     /**
      * Safe method for delaying the current thread.
@@ -314,7 +817,83 @@ public class Async<T> implements Awaitable{
      */
     public static void sleep(long millis){ sleep(millis, 0); }
 
+    /**
+     * Create a task that completes after the given delay. Unlike {@link #sleep(long)}, this doesn't block any thread, so it's suitable
+     * for delaying continuations, e.g. <code>task.thenCompose(r -&gt; Async.delay(100))</code>.
+     * @param millis Milliseconds to delay.
+     * @return Task that completes with null once the delay has passed.
+     */
+    public static Async<Void> delay(long millis){ return Scheduler.delay(millis, TimeUnit.MILLISECONDS); }
+
     public static void iSleep(long millis, int micros){ try{ Thread.sleep(millis, micros); } catch(Exception ignored) {} }
 
     public static void iSleep(long millis){ iSleep(millis, 0); }
+
+    /**
+     * Node in the stack of threads awaiting a task.
+     */
+    static final class Waiter {
+        volatile Thread thread = Thread.currentThread();
+        volatile Waiter next;
+    }
+
+    /**
+     * Action to run once a task is done.
+     */
+    static abstract class Continuation implements Runnable {
+        final Executor executor;
+
+        /**
+         * Task whose body this continuation is, if any. It's the current task while the continuation runs, so the continuation
+         * sees the async locals that the task inherited from the task that created it.
+         */
+        final Async<?> scope;
+        Async<?> source;
+        Continuation next;
+
+        Continuation(Executor executor){ this(executor, null); }
+
+        Continuation(Executor executor, Async<?> scope){
+            this.executor = executor;
+            this.scope = scope;
+        }
+
+        /**
+         * Run continuation on the designated executor, or on the calling thread if there is none.
+         */
+        final void dispatch(){
+            if(executor == null) run();
+            else
+                try{ executor.execute(this); }
+                catch(Throwable t1){ fail(t1); } // Executor rejected the continuation
+        }
+
+        public final void run(){
+            boolean success = source.complete && !source.failed;
+            Async<?> previous = scope == null ? null : current.get();
+            if(scope != null) current.set(scope);
+            try{ run(success, success ? source.ret : null, success ? null : source.getFailure()); }
+            catch(Throwable t1){ fail(t1); }
+            finally{
+                if(scope != null){
+                    if(previous == null) current.remove();
+                    else current.set(previous);
+                }
+            }
+        }
+
+        /**
+         * Handle the outcome of the task.
+         * @param success Whether or not the task completed successfully.
+         * @param value Result of the task if successful.
+         * @param failure Cause of failure if unsuccessful.
+         */
+        abstract void run(boolean success, Object value, Throwable failure) throws Throwable;
+
+        /**
+         * Handle a failure to run this continuation.
+         * @param failure Cause of failure.
+         */
+        abstract void fail(Throwable failure);
+    }
 }
@@ -1,18 +1,38 @@
 package net.tofvesson.async;
 
+import net.tofvesson.collections.BiConsumer;
+
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Creates a batch of similar async instructions.
+ * Creates a batch of similar async instructions. Every instruction is dispatched at once; see {@link StructuredBatch} for wide batches.
  */
 @SuppressWarnings("unused")
 public class AsyncBatch<T> {
 
     private final HashMap<Integer, Async<T>> all = new HashMap<Integer, Async<T>>();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final BiConsumer<T, Throwable> onFinished = new BiConsumer<T, Throwable>() {
+        public void accept(T value, Throwable failure) { finished.incrementAndGet(); }
+    };
+
+    public AsyncBatch(int count, final BatchRunnable r) { this(count, r, Async.getDefaultExecutor()); }
 
-    public AsyncBatch(int count, final BatchRunnable r) { for(int i = 0; i<count; ++i) add(r, i); }
+    /**
+     * Creates a batch of similar async instructions running on the given executor.
+     * @param count Amount of instructions.
+     * @param r Instruction to run. Passed the index of the instruction in the batch.
+     * @param executor Executor to run instructions on, e.g. {@link AsyncPool#virtual()} for wide batches of blocking tasks.
+     */
+    public AsyncBatch(int count, final BatchRunnable r, Executor executor) { for(int i = 0; i<count; ++i) add(r, i, executor); }
 
-    private void add(final BatchRunnable r, final int idx){ all.put(idx, new Async<T>(new Runnable() { public void run() { r.run(idx); } })); }
+    private void add(final BatchRunnable r, final int idx, Executor executor){
+        Async<T> a = new Async<T>(executor, new Runnable() { public void run() { r.run(idx); } });
+        a.whenComplete(onFinished);
+        all.put(idx, a);
+    }
     public HashMap<Integer, Async<T>> getAll(){ return all; }
     public HashMap<Integer, T> awaitAll(){
         HashMap<Integer, T> al = new HashMap<Integer, T>();
@@ -20,7 +40,7 @@ public class AsyncBatch<T> {
             al.put(a, all.get(a).await());
         return al;
     }
-    public int getFinished(){ int i = 0; for(Async<T> a : all.values()) if(!a.isAlive()) ++i; return i; }
+    public int getFinished(){ return finished.get(); }
     public int size(){ return all.size(); }
     public boolean allFinished(){ return getFinished()==all.size(); }
     public void cancelAll(){ for(Async<T> a : all.values()) a.cancel(); }
@@ -0,0 +1,331 @@
+package net.tofvesson.async;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A value local to the running {@link Async} task, much like a {@link ThreadLocal} is local to a thread. Since the value belongs
+ * to the task rather than to the thread running it, it stays with the task on whatever thread the task runs.
+ * Every key is assigned a fixed index when it's created, and each task keeps its values in an array indexed by key, so lookups
+ * neither hash nor allocate. The array is only allocated once a task sets a value.
+ * Values of inheritable keys are passed on to tasks dispatched from the task and to the dependent tasks of its continuations (see
+ * {@link Async#thenApply(net.tofvesson.collections.Function)} and friends). Inherited values are shared until either task writes
+ * to them, so inheriting is O(1).
+ * Keys are meant to be long-lived, typically static final fields: every key created occupies a slot for the lifetime of the JVM.
+ * @param <V> Type of value.
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "unchecked"})
+public class AsyncLocal<V> {
+
+    /**
+     * Stands in for null values so that a null slot means "not set".
+     */
+    private static final Object NULL = new Object();
+
+    private static final Object lock = new Object();
+
+    /**
+     * All keys by index.
+     */
+    private static volatile AsyncLocal<?>[] keys = new AsyncLocal<?>[0];
+
+    /**
+     * Keys created through the String-keyed {@link Map} view.
+     */
+    private static final ConcurrentHashMap<String, AsyncLocal<Object>> named = new ConcurrentHashMap<String, AsyncLocal<Object>>();
+
+    private final String name;
+    private final V initial;
+    private final boolean inheritable;
+    private final boolean mapped;
+    final int index;
+
+    /**
+     * Create an inheritable key without an initial value.
+     * @param name Name of key. Used for debugging only; names don't have to be unique.
+     */
+    public AsyncLocal(String name){ this(name, null, true); }
+
+    /**
+     * Create a key.
+     * @param name Name of key. Used for debugging only; names don't have to be unique.
+     * @param initial Value of the key in tasks that haven't set it.
+     * @param inheritable Whether or not tasks pass the value on to the tasks they dispatch.
+     */
+    public AsyncLocal(String name, V initial, boolean inheritable){ this(name, initial, inheritable, false); }
+
+    private AsyncLocal(String name, V initial, boolean inheritable, boolean mapped){
+        this.name = name;
+        this.initial = initial;
+        this.inheritable = inheritable;
+        this.mapped = mapped;
+        synchronized (lock){
+            AsyncLocal<?>[] k = keys;
+            AsyncLocal<?>[] n = new AsyncLocal<?>[k.length + 1];
+            System.arraycopy(k, 0, n, 0, k.length);
+            n[index = k.length] = this;
+            keys = n;
+        }
+    }
+
+    public String getName(){ return name; }
+    public boolean isInheritable(){ return inheritable; }
+
+    /**
+     * Get the value of this key in the current task.
+     * @return Value or the initial value if the current task hasn't set one.
+     * @throws IllegalCallerThreadException If the calling thread isn't running a task.
+     */
+    public V get(){ return get(task()); }
+
+    /**
+     * Set the value of this key in the current task.
+     * @param value New value.
+     * @throws IllegalCallerThreadException If the calling thread isn't running a task.
+     */
+    public void set(V value){ set(task(), value); }
+
+    /**
+     * Reset this key to its initial value in the current task.
+     * @throws IllegalCallerThreadException If the calling thread isn't running a task.
+     */
+    public void remove(){ remove(task()); }
+
+    /**
+     * Check whether the current task has set a value for this key.
+     * @throws IllegalCallerThreadException If the calling thread isn't running a task.
+     */
+    public boolean isSet(){ return isSet(task()); }
+
+    @Override
+    public String toString() { return "AsyncLocal("+name+")"; }
+
+    /**
+     * Capture the values of all keys in the current task. Capturing is O(1): the captured values are shared with the task until
+     * either is written to.
+     * @return Captured values. Empty if the calling thread isn't running a task.
+     */
+    public static Snapshot capture(){
+        Async<?> a = Async.current();
+        return new Snapshot(a == null ? null : share(a));
+    }
+
+    V get(Async<?> a){
+        Object[] l = a.locals;
+        Object o = l == null || index >= l.length ? null : l[index];
+        return o == null ? initial : o == NULL ? null : (V) o;
+    }
+
+    void set(Async<?> a, V value){
+        writable(a)[index] = value == null ? NULL : value;
+        if(!inheritable) a.localsPrivate = true;
+    }
+
+    void remove(Async<?> a){ if(isSet(a)) writable(a)[index] = null; }
+
+    boolean isSet(Async<?> a){
+        Object[] l = a.locals;
+        return l != null && index < l.length && l[index] != null;
+    }
+
+    /**
+     * Get the slots of the given task for writing, copying them first if they're shared.
+     */
+    private Object[] writable(Async<?> a){
+        Object[] l = a.locals;
+        if(l == null || index >= l.length || a.localsShared){
+            Object[] n = new Object[Math.max(keys.length, index + 1)];
+            if(l != null) System.arraycopy(l, 0, n, 0, l.length);
+            a.locals = l = n;
+            a.localsShared = false;
+        }
+        return l;
+    }
+
+    private static Async<?> task(){
+        Async<?> a = Async.current();
+        if(a == null) throw new IllegalCallerThreadException("Cannot access async locals outside of an async task!");
+        return a;
+    }
+
+    /**
+     * Mark the slots of the given task as shared and return them.
+     */
+    private static Object[] share(Async<?> a){
+        Object[] l = a.locals;
+        if(l != null) a.localsShared = true;
+        return l;
+    }
+
+    /**
+     * Pass the inheritable values of a task on to a task it dispatched. Must be called from the thread running the parent.
+     * @param parent Dispatching task or null.
+     * @param child Dispatched task.
+     */
+    static void inherit(Async<?> parent, Async<?> child){
+        if(parent == null || parent.locals == null) return;
+        if(!parent.localsPrivate){
+            child.locals = share(parent);
+            child.localsShared = true;
+            return;
+        }
+        Object[] l = parent.locals, n = null;
+        AsyncLocal<?>[] k = keys;
+        for(int i = 0; i<l.length; ++i)
+            if(l[i] != null && k[i].inheritable){
+                if(n == null) n = new Object[l.length];
+                n[i] = l[i];
+            }
+        child.locals = n;
+    }
+
+    /**
+     * Get a String-keyed view of the given task's values. Only keys created through the view are visible in it.
+     */
+    static Map<String, Object> view(final Async<?> a){
+        return new AbstractMap<String, Object>() {
+            @Override
+            public Object get(Object key) {
+                AsyncLocal<Object> k = key instanceof String ? named.get(key) : null;
+                return k == null ? null : k.get(a);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                AsyncLocal<Object> k = key instanceof String ? named.get(key) : null;
+                return k != null && k.isSet(a);
+            }
+
+            @Override
+            public Object put(String key, Object value) {
+                if(key == null) throw new NullPointerException("Key cannot be null!");
+                AsyncLocal<Object> k = named.get(key);
+                if(k == null){
+                    synchronized (lock){
+                        if((k = named.get(key)) == null) named.put(key, k = new AsyncLocal<Object>(key, null, false, true));
+                    }
+                }
+                Object previous = k.get(a);
+                k.set(a, value);
+                return previous;
+            }
+
+            @Override
+            public Object remove(Object key) {
+                AsyncLocal<Object> k = key instanceof String ? named.get(key) : null;
+                if(k == null) return null;
+                Object previous = k.get(a);
+                k.remove(a);
+                return previous;
+            }
+
+            @Override
+            public Set<Entry<String, Object>> entrySet() {
+                return new AbstractSet<Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Entry<String, Object>> iterator() { return new ViewIterator(a); }
+
+                    @Override
+                    public int size() {
+                        int size = 0;
+                        for(Iterator<?> i = iterator(); i.hasNext(); i.next()) ++size;
+                        return size;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates over the keys of the Map view that are set in a task, in order of creation.
+     */
+    private static final class ViewIterator implements Iterator<Map.Entry<String, Object>> {
+        private final Async<?> a;
+        private final AsyncLocal<?>[] k = keys;
+        private int next = -1, last = -1;
+
+        ViewIterator(Async<?> a){
+            this.a = a;
+            advance();
+        }
+
+        private void advance(){
+            while(++next < k.length && !(k[next].mapped && k[next].isSet(a)));
+        }
+
+        public boolean hasNext() { return next < k.length; }
+
+        public Map.Entry<String, Object> next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            final AsyncLocal<Object> key = (AsyncLocal<Object>) k[last = next];
+            advance();
+            return new Map.Entry<String, Object>() {
+                public String getKey() { return key.name; }
+                public Object getValue() { return key.get(a); }
+                public Object setValue(Object value) {
+                    Object previous = key.get(a);
+                    key.set(a, value);
+                    return previous;
+                }
+            };
+        }
+
+        public void remove() {
+            if(last < 0) throw new IllegalStateException();
+            k[last].remove(a);
+            last = -1;
+        }
+    }
+
+    /**
+     * Values of all keys in a task at the time they were captured.
+     */
+    public static final class Snapshot {
+        private final Object[] locals;
+
+        Snapshot(Object[] locals){ this.locals = locals; }
+
+        /**
+         * Replace all values of the current task with the captured ones.
+         * @throws IllegalCallerThreadException If the calling thread isn't running a task.
+         */
+        public void restore(){ restore(task()); }
+
+        /**
+         * Wrap a runnable so that it runs with the captured values, whether or not the thread that runs it is running a task.
+         * This is how values are carried over to work that is handed to plain executors or threads.
+         * @param r Runnable to wrap.
+         * @return Wrapped runnable.
+         */
+        public Runnable wrap(final Runnable r){
+            return new Runnable() {
+                public void run() {
+                    Async<?> a = Async.current();
+                    if(a == null){
+                        Async<Object> carrier = new Async<Object>();
+                        restore(carrier);
+                        carrier.setLocal();
+                        try{ r.run(); }
+                        finally{ carrier.clearLocal(); }
+                        return;
+                    }
+                    Snapshot previous = new Snapshot(share(a));
+                    restore(a);
+                    try{ r.run(); }
+                    finally{ previous.restore(a); }
+                }
+            };
+        }
+
+        private void restore(Async<?> a){
+            a.locals = locals;
+            a.localsShared = locals != null;            // Never write to the captured array itself
+            a.localsPrivate = locals != null;           // Conservatively assume that non-inheritable values were captured
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package net.tofvesson.async;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime-wide instrumentation of {@link Async}, {@link EcoAsync}, {@link AsyncBatch}, {@link WorkerThread} and {@link WorkerPool}.
+ * Counts tasks as they are submitted and finished, and records how long tasks spend queued and running in {@link Histogram}s.
+ * Workers additionally track how much of their time they spend idling.
+ * Metrics are disabled by default; enable them with {@link #setEnabled(boolean)} or by starting the JVM with
+ * <code>-Dnet.tofvesson.async.metrics=true</code>. While disabled, instrumented code only checks a flag. While enabled, every
+ * task updates a few thread-striped counters, and only every {@value #SAMPLE_RATE}th task reads the clock for the histograms.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AsyncMetrics {
+
+    /**
+     * Checked by instrumented code before touching any metric.
+     */
+    static volatile boolean enabled = Boolean.getBoolean("net.tofvesson.async.metrics");
+
+    /**
+     * Marks a task that was submitted while metrics were disabled.
+     */
+    static final long UNTRACKED = Long.MIN_VALUE;
+
+    /**
+     * One in this many tasks is timed.
+     */
+    public static final int SAMPLE_RATE = 32;
+
+    static final int COMPLETED = 0, FAILED = 1, CANCELLED = 2;
+
+    private static final Counter submitted = new Counter(), dequeued = new Counter(), started = new Counter();
+    private static final Counter[] outcomes = { new Counter(), new Counter(), new Counter() };
+    private static final Histogram queueWait = new Histogram(), executionTime = new Histogram();
+    private static final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+    private static volatile boolean jmx = false;
+
+    private AsyncMetrics(){}
+
+    public static boolean isEnabled(){ return enabled; }
+
+    /**
+     * Enable or disable metrics. Tasks that were submitted before metrics were enabled aren't counted.
+     */
+    public static void setEnabled(boolean enabled){ AsyncMetrics.enabled = enabled; }
+
+    /**
+     * Take a snapshot of all metrics.
+     * @return Snapshot that isn't affected by further tasks.
+     */
+    public static Snapshot snapshot(){
+        List<WorkerSnapshot> ws = new ArrayList<WorkerSnapshot>();
+        for(Worker w : workers) ws.add(new WorkerSnapshot(w.getName(), w.thread.getId(), w.getProcessed(), w.getQueueDepth(), w.getUtilisation()));
+        return new Snapshot(
+                submitted.sum(), outcomes[COMPLETED].sum(), outcomes[FAILED].sum(), outcomes[CANCELLED].sum(),
+                queueDepth(), activeTasks(), queueWait.copy(), executionTime.copy(), Collections.unmodifiableList(ws)
+        );
+    }
+
+    /**
+     * Reset all counters and histograms. Tasks that are queued or running while metrics are reset may make the queue depth and
+     * the amount of active tasks appear lower than they are until they have finished.
+     */
+    public static void reset(){
+        submitted.reset();
+        dequeued.reset();
+        started.reset();
+        for(Counter c : outcomes) c.reset();
+        queueWait.reset();
+        executionTime.reset();
+    }
+
+    /**
+     * Register the metrics with the platform MBean server under the <code>net.tofvesson.async</code> domain: one MBean for the
+     * runtime-wide metrics and one per tracked worker. Does nothing if they are already registered.
+     * @throws IllegalStateException If JMX isn't available or registration failed.
+     */
+    public static synchronized void registerMBeans(){
+        if(jmx) return;
+        try{
+            JmxSupport.register();
+        }catch(Throwable t){
+            throw new IllegalStateException("Couldn't register async metrics MBeans", t);
+        }
+        jmx = true;
+    }
+
+    /**
+     * Remove all MBeans registered by {@link #registerMBeans()}.
+     */
+    public static synchronized void unregisterMBeans(){
+        if(!jmx) return;
+        jmx = false;
+        JmxSupport.unregister();
+    }
+
+    private static long queueDepth(){ return Math.max(0, submitted.sum() - dequeued.sum()); }
+
+    private static long activeTasks(){
+        long done = 0;
+        for(Counter c : outcomes) done += c.sum();
+        return Math.max(0, started.sum() - done);
+    }
+
+    /**
+     * Called when a task is queued.
+     * @return Time at which the task was queued or zero if the task isn't timed.
+     */
+    static long queued(){ return (submitted.increment() & (SAMPLE_RATE - 1)) == 0 ? System.nanoTime() : 0L; }
+
+    /**
+     * Called when a queued task is picked up.
+     * @param queuedAt Value returned by {@link #queued()}.
+     */
+    static void dequeued(long queuedAt){
+        dequeued.increment();
+        if(queuedAt != 0L) queueWait.record(System.nanoTime() - queuedAt);
+    }
+
+    /**
+     * Called when a task starts running.
+     * @return Time at which the task started or zero if the task isn't timed.
+     */
+    static long started(){ return (started.increment() & (SAMPLE_RATE - 1)) == 0 ? System.nanoTime() : 0L; }
+
+    /**
+     * Called when a task that was started stops running.
+     * @param startedAt Value returned by {@link #started()}.
+     * @param outcome {@link #COMPLETED}, {@link #FAILED} or {@link #CANCELLED}.
+     */
+    static void finished(long startedAt, int outcome){
+        if(startedAt != 0L) executionTime.record(System.nanoTime() - startedAt);
+        outcomes[outcome].increment();
+    }
+
+    /**
+     * Called when a queued task is dropped without ever being picked up.
+     */
+    static void discarded(){
+        dequeued.increment();
+        started.increment();
+        outcomes[CANCELLED].increment();
+    }
+
+    /**
+     * Start tracking a worker. Called by the worker itself.
+     */
+    static Worker register(WorkerThread thread){
+        Worker w = new Worker(thread);
+        workers.add(w);
+        if(jmx) JmxSupport.register(w);
+        return w;
+    }
+
+    /**
+     * Stop tracking a worker. Called by the worker itself when it stops.
+     */
+    static void unregister(Worker w){
+        workers.remove(w);
+        if(w.name != null) JmxSupport.unregister(w);
+    }
+
+    /**
+     * Counter striped by thread so that concurrent increments rarely contend on the same cache line.
+     */
+    private static final class Counter {
+        private static final int STRIPES, PAD = 8;  // Eight longs per stripe keeps stripes on separate cache lines
+
+        static{
+            int s = 1;
+            while(s < Runtime.getRuntime().availableProcessors() * 2) s <<= 1;
+            STRIPES = s;
+        }
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        /**
+         * @return New value of the calling thread's stripe.
+         */
+        long increment(){ return cells.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD); }
+
+        long sum(){
+            long sum = 0;
+            for(int i = 0; i<STRIPES; ++i) sum += cells.get(i * PAD);
+            return sum;
+        }
+
+        void reset(){ for(int i = 0; i<STRIPES; ++i) cells.set(i * PAD, 0); }
+    }
+
+    /**
+     * Metrics of a single worker. Counters are only written by the worker itself, so they are plain fields that other threads may
+     * observe slightly late.
+     */
+    static final class Worker implements WorkerMetricsMBean {
+        final WorkerThread thread;
+        final long since = System.nanoTime();
+        long processed = 0, idleNanos = 0;
+
+        /**
+         * Time at which the worker started idling or zero if it's busy.
+         */
+        volatile long idleSince = 0;
+
+        /**
+         * JMX name of this worker if it has been registered.
+         */
+        volatile Object name;
+
+        Worker(WorkerThread thread){ this.thread = thread; }
+
+        void idle(){ idleSince = System.nanoTime(); }
+
+        void busy(){
+            long s = idleSince;
+            if(s != 0){
+                idleNanos += System.nanoTime() - s;
+                idleSince = 0;
+            }
+        }
+
+        public String getName(){ return thread.getName(); }
+        public long getProcessed(){ return processed; }
+        public int getQueueDepth(){ return thread.queueDepth(); }
+
+        public double getUtilisation(){
+            long now = System.nanoTime(), s = idleSince;
+            long idle = idleNanos + (s == 0 ? 0 : now - s); // Include the current idle period
+            long total = now - since;
+            return total <= 0 ? 0 : Math.max(0, Math.min(1, 1 - idle / (double) total));
+        }
+
+        public int[] getLaneQueueDepths(){
+            int[] depths = new int[thread.getLaneCount()];
+            for(int i = 0; i<depths.length; ++i) depths[i] = thread.getQueueDepth(i);
+            return depths;
+        }
+
+        public long[] getLaneWaitTimesP99(){
+            long[] waits = new long[thread.getLaneCount()];
+            for(int i = 0; i<waits.length; ++i) waits[i] = thread.getWaitTimes(i).getValueAtPercentile(99);
+            return waits;
+        }
+    }
+
+    /**
+     * Runtime-wide metrics at a point in time. All times are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private final long submitted, completed, failed, cancelled, queueDepth, activeTasks;
+        private final Histogram queueWait, executionTime;
+        private final List<WorkerSnapshot> workers;
+
+        Snapshot(long submitted, long completed, long failed, long cancelled, long queueDepth, long activeTasks,
+                 Histogram queueWait, Histogram executionTime, List<WorkerSnapshot> workers){
+            this.submitted = submitted;
+            this.completed = completed;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.queueDepth = queueDepth;
+            this.activeTasks = activeTasks;
+            this.queueWait = queueWait;
+            this.executionTime = executionTime;
+            this.workers = workers;
+        }
+
+        public long getSubmitted(){ return submitted; }
+        public long getCompleted(){ return completed; }
+        public long getFailed(){ return failed; }
+        public long getCancelled(){ return cancelled; }
+        public long getQueueDepth(){ return queueDepth; }
+        public long getActiveTasks(){ return activeTasks; }
+
+        /**
+         * Time sampled tasks spent queued before they started.
+         */
+        public Histogram getQueueWait(){ return queueWait; }
+
+        /**
+         * Time sampled tasks spent running.
+         */
+        public Histogram getExecutionTime(){ return executionTime; }
+
+        /**
+         * Workers that were running at the time of the snapshot.
+         */
+        public List<WorkerSnapshot> getWorkers(){ return workers; }
+
+        @Override
+        public String toString() {
+            return "submitted="+submitted+", completed="+completed+", failed="+failed+", cancelled="+cancelled+", queued="+queueDepth+
+                    ", active="+activeTasks+", queueWait=["+queueWait+"], executionTime=["+executionTime+"], workers="+workers;
+        }
+    }
+
+    /**
+     * Metrics of a single worker at a point in time.
+     */
+    public static final class WorkerSnapshot {
+        private final String name;
+        private final long threadId, processed;
+        private final int queueDepth;
+        private final double utilisation;
+
+        WorkerSnapshot(String name, long threadId, long processed, int queueDepth, double utilisation){
+            this.name = name;
+            this.threadId = threadId;
+            this.processed = processed;
+            this.queueDepth = queueDepth;
+            this.utilisation = utilisation;
+        }
+
+        public String getName(){ return name; }
+        public long getThreadId(){ return threadId; }
+        public long getProcessed(){ return processed; }
+        public int getQueueDepth(){ return queueDepth; }
+
+        /**
+         * Fraction of time spent running instructions rather than idling since metrics started tracking the worker.
+         */
+        public double getUtilisation(){ return utilisation; }
+
+        @Override
+        public String toString() {
+            return name+"(processed="+processed+", queued="+queueDepth+", utilisation="+String.format("%.2f", utilisation)+")";
+        }
+    }
+
+    /**
+     * Isolates all references to JMX so that they are only resolved on platforms that have it.
+     */
+    private static final class JmxSupport {
+        private static final String DOMAIN = "net.tofvesson.async";
+
+        static void register() throws JMException {
+            server().registerMBean(new StandardMBean(new AsyncMetricsMBean() {
+                public boolean isEnabled() { return enabled; }
+                public void setEnabled(boolean enabled) { AsyncMetrics.setEnabled(enabled); }
+                public long getSubmitted() { return submitted.sum(); }
+                public long getCompleted() { return outcomes[COMPLETED].sum(); }
+                public long getFailed() { return outcomes[FAILED].sum(); }
+                public long getCancelled() { return outcomes[CANCELLED].sum(); }
+                public long getQueueDepth() { return queueDepth(); }
+                public long getActiveTasks() { return activeTasks(); }
+                public double getQueueWaitMean() { return queueWait.getMean(); }
+                public long getQueueWaitP50() { return queueWait.getValueAtPercentile(50); }
+                public long getQueueWaitP99() { return queueWait.getValueAtPercentile(99); }
+                public long getQueueWaitMax() { return queueWait.getMax(); }
+                public double getExecutionTimeMean() { return executionTime.getMean(); }
+                public long getExecutionTimeP50() { return executionTime.getValueAtPercentile(50); }
+                public long getExecutionTimeP99() { return executionTime.getValueAtPercentile(99); }
+                public long getExecutionTimeMax() { return executionTime.getMax(); }
+                public void reset() { AsyncMetrics.reset(); }
+            }, AsyncMetricsMBean.class), new ObjectName(DOMAIN+":type=AsyncMetrics"));
+            for(Worker w : workers) register(w);
+        }
+
+        static void register(Worker w){
+            try{
+                ObjectName name = new ObjectName(DOMAIN+":type=WorkerThread,name="+ObjectName.quote(w.getName())+",id="+w.thread.getId());
+                server().registerMBean(new StandardMBean(w, WorkerMetricsMBean.class), name);
+                w.name = name;
+            }catch(Throwable ignored){}                 // Worker is still tracked through snapshots
+        }
+
+        static void unregister(){
+            try{ server().unregisterMBean(new ObjectName(DOMAIN+":type=AsyncMetrics")); }
+            catch(Throwable ignored){}
+            for(Worker w : workers) if(w.name != null) unregister(w);
+        }
+
+        static void unregister(Worker w){
+            try{ server().unregisterMBean((ObjectName) w.name); }
+            catch(Throwable ignored){}
+            w.name = null;
+        }
+
+        private static MBeanServer server(){ return ManagementFactory.getPlatformMBeanServer(); }
+    }
+}
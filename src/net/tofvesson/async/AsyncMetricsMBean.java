@@ -0,0 +1,30 @@
+package net.tofvesson.async;
+
+/**
+ * Management interface of the runtime-wide async metrics. Registered through {@link AsyncMetrics#registerMBeans()}.
+ * All times are in nanoseconds.
+ */
+@SuppressWarnings("unused")
+public interface AsyncMetricsMBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+
+    long getSubmitted();
+    long getCompleted();
+    long getFailed();
+    long getCancelled();
+    long getQueueDepth();
+    long getActiveTasks();
+
+    double getQueueWaitMean();
+    long getQueueWaitP50();
+    long getQueueWaitP99();
+    long getQueueWaitMax();
+
+    double getExecutionTimeMean();
+    long getExecutionTimeP50();
+    long getExecutionTimeP99();
+    long getExecutionTimeMax();
+
+    void reset();
+}
@@ -0,0 +1,182 @@
+package net.tofvesson.async;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execution backends for {@link Async} tasks.
+ * By default, all tasks are dispatched to a shared work-stealing pool so that threads are reused rather than created per task.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class AsyncPool {
+
+    private static final boolean forkJoin;
+    private static final ThreadFactory virtualFactory;
+
+    static{
+        boolean b;
+        try{
+            Class.forName("java.util.concurrent.ForkJoinPool");
+            b = true;
+        }catch(Throwable ignored){ b = false; } // Java 6 and older Android versions don't have a ForkJoinPool
+        forkJoin = b;
+
+        ThreadFactory f = null;
+        try{
+            // Equivalent to Thread.ofVirtual().name("AsyncVirtual-", 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class).invoke(builder, "AsyncVirtual-", 0L);
+            f = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }catch(Throwable ignored){} // Virtual threads require Java 21 (or preview features on Java 19-20)
+        virtualFactory = f;
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final Executor threadPerTask = new Executor() {
+        public void execute(Runnable command) { newThread(command, "Async-"+threadCount.incrementAndGet()).start(); }
+    };
+
+    private static final Executor virtual = new Executor() {
+        public void execute(Runnable command) { virtualFactory.newThread(command).start(); }
+    };
+
+    private static volatile Executor shared;
+    private static volatile boolean virtualThreads = false;
+
+    private AsyncPool(){}
+
+    /**
+     * Get the shared pool used by all async tasks that haven't been given an explicit executor.
+     * This is a work-stealing pool with one worker per available processor where supported. Otherwise, it's a cached pool of daemon threads.
+     * @return Shared executor.
+     */
+    public static Executor shared(){
+        Executor e = shared;
+        if(e == null)
+            synchronized (AsyncPool.class){
+                if((e = shared) == null) shared = e = forkJoin ? ForkJoinSupport.createPool() : createCachedPool();
+            }
+        return e;
+    }
+
+    /**
+     * Get an executor that starts a new daemon thread for every task. This is how async tasks used to be dispatched and should only
+     * be used for long-running tasks that would otherwise occupy a pooled thread indefinitely.
+     * @return Thread-per-task executor.
+     */
+    public static Executor threadPerTask(){ return threadPerTask; }
+
+    /**
+     * Get an executor that starts a new virtual thread for every task. Virtual threads are cheap to create and don't occupy a
+     * platform thread while blocked, which makes them suitable for large amounts of I/O-bound tasks.
+     * @return Virtual thread executor or {@link #shared()} if virtual threads aren't supported.
+     */
+    public static Executor virtual(){ return virtualFactory == null ? shared() : virtual; }
+
+    /**
+     * Checks whether the running JVM supports virtual threads.
+     * @return True if virtual threads are available.
+     */
+    public static boolean supportsVirtualThreads(){ return virtualFactory != null; }
+
+    /**
+     * Enable or disable virtual thread mode. In virtual thread mode, {@link Async} and {@link AsyncBatch} tasks that haven't been
+     * given an explicit executor run on {@link #virtual()} and all threads started by {@link EcoAsync} and {@link #threadPerTask()}
+     * are virtual. Has no effect if virtual threads aren't supported.
+     * Note that this replaces any executor set through {@link Async#setDefaultExecutor(Executor)}.
+     * @param enable Whether or not to use virtual threads.
+     * @return True if virtual thread mode is active.
+     */
+    public static boolean setVirtualThreads(boolean enable){
+        virtualThreads = enable = enable && virtualFactory != null;
+        Async.setDefaultExecutor(enable ? virtual : null);
+        return enable;
+    }
+
+    /**
+     * Checks whether virtual thread mode is active.
+     * @return True if threads created for async tasks are virtual.
+     */
+    public static boolean isVirtualThreads(){ return virtualThreads; }
+
+    /**
+     * Create a new, unstarted daemon thread for running an async task. The thread is virtual if virtual thread mode is active.
+     * @param r Runnable to execute.
+     * @param name Name of thread.
+     * @return New thread.
+     */
+    static Thread newThread(Runnable r, String name){
+        Thread t;
+        if(virtualThreads){
+            t = virtualFactory.newThread(r);
+            t.setName(name);
+        }else{
+            t = new Thread(r, name);
+            t.setDaemon(true);  // Ensure that process dies with program
+        }
+        return t;
+    }
+
+    /**
+     * Blocks the calling thread until the given task has either completed or failed. If the calling thread is a worker in a
+     * work-stealing pool, the pool is informed so that it can compensate for the blocked worker. This prevents pooled tasks
+     * that await other pooled tasks from starving the pool.
+     * @param a Task to wait for.
+     * @param interruptible Whether or not to stop waiting if the calling thread is interrupted.
+     * @param timed Whether or not to give up after the given amount of nanoseconds.
+     * @param nanos Maximum time to wait if timed.
+     * @return True if task is done, false if the wait timed out.
+     * @throws InterruptedException If interruptible and the calling thread was interrupted.
+     */
+    static boolean block(Async<?> a, boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+        if(a.isDone()) return true;
+        return forkJoin ? ForkJoinSupport.block(a, interruptible, timed, nanos) : a.block(interruptible, timed, nanos);
+    }
+
+    private static Executor createCachedPool(){
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AsyncPool-worker-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Isolates all references to fork-join classes so that they are only resolved on platforms that have them.
+     */
+    private static final class ForkJoinSupport {
+        static Executor createPool(){
+            return new ForkJoinPool(
+                    Math.max(Runtime.getRuntime().availableProcessors(), 2),
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                    null,
+                    true    // FIFO scheduling for tasks that are never joined
+            );
+        }
+
+        static boolean block(final Async<?> a, final boolean interruptible, final boolean timed, final long nanos) throws InterruptedException {
+            if(!(Thread.currentThread() instanceof ForkJoinWorkerThread)) return a.block(interruptible, timed, nanos);
+            final boolean[] done = { false };
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean blocked = false;
+                public boolean block() throws InterruptedException {
+                    blocked = true;
+                    done[0] = a.block(interruptible, timed, nanos);
+                    return true;
+                }
+                public boolean isReleasable() { return blocked || (done[0] = a.isDone()); }
+            });
+            return done[0];
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package net.tofvesson.async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A publisher that items are pushed into imperatively, for example from a callback-driven producer. Items are buffered until
+ * the subscriber requests them; the buffer is bounded, so {@link #offer(Object)} fails and {@link #submit(Object)} blocks once
+ * the subscriber falls behind, much like submitting to a {@link WorkerThread} with a full queue.
+ * Items are delivered on whichever thread happens to push an item or request more while there is demand, but never by more than
+ * one thread at a time.
+ * When used as a {@link Processor}, it requests as many items from upstream as fit in the buffer and requests more in batches as
+ * the buffer is drained.
+ * Only a single subscriber is supported.
+ * @param <T> Type of item.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class AsyncPublisher<T> implements Processor<T, T> {
+
+    private final int bufferSize, limit;
+    private final Semaphore slots;
+    private final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicReference<Subscriber<? super T>> subscriber = new AtomicReference<Subscriber<? super T>>();
+    private volatile Subscription upstream;
+    private volatile boolean ready = false, done = false, cancelled = false;
+    private volatile Throwable violation;               // Delivered ahead of any buffered items
+    private Throwable failure;
+
+    /**
+     * Owned by the drain.
+     */
+    private int consumed = 0;
+
+    /**
+     * Create a publisher with the default buffer size.
+     */
+    public AsyncPublisher(){ this(AsyncStream.DEFAULT_BUFFER_SIZE); }
+
+    /**
+     * Create a publisher.
+     * @param bufferSize Maximum amount of items to buffer while the subscriber hasn't requested them.
+     */
+    public AsyncPublisher(int bufferSize){
+        if(bufferSize <= 0) throw new IllegalArgumentException("Buffer size must be a positive, non-zero value!");
+        this.bufferSize = bufferSize;
+        limit = Math.max(1, bufferSize - (bufferSize >> 2));
+        slots = new Semaphore(bufferSize);
+    }
+
+    /**
+     * Push an item if there is room for it in the buffer.
+     * @param item Item to push.
+     * @return True if the item was accepted. False if the buffer is full, or if the publisher was closed or canceled.
+     */
+    public boolean offer(T item){
+        if(item == null) throw new NullPointerException("Streams cannot contain null items!");
+        if(done || cancelled || !slots.tryAcquire()) return false;
+        queue.offer(item);
+        drain();
+        return true;
+    }
+
+    /**
+     * Push an item. If the buffer is full, this blocks until the subscriber has made room for it.
+     * @param item Item to push.
+     * @return True if the item was accepted. False if the publisher was closed or canceled.
+     */
+    public boolean submit(T item){
+        if(item == null) throw new NullPointerException("Streams cannot contain null items!");
+        if(done || cancelled) return false;
+        slots.acquireUninterruptibly();
+        if(done || cancelled){
+            slots.release();                            // Wake the next blocked producer, if any
+            return false;
+        }
+        queue.offer(item);
+        drain();
+        return true;
+    }
+
+    /**
+     * Complete the stream once all buffered items have been delivered.
+     */
+    public void close(){
+        done = true;
+        slots.release();                                // Wake blocked producers
+        drain();
+    }
+
+    /**
+     * Fail the stream once all buffered items have been delivered.
+     * @param failure Cause of failure.
+     */
+    public void closeExceptionally(Throwable failure){
+        if(failure == null) throw new NullPointerException("Failure cannot be null!");
+        if(done) return;
+        this.failure = failure;
+        close();
+    }
+
+    /**
+     * Check whether the subscriber has canceled its subscription. Producers should stop pushing items once it has.
+     */
+    public boolean isCancelled(){ return cancelled; }
+
+    /**
+     * Amount of items that are buffered.
+     */
+    public int getBuffered(){ return bufferSize - slots.availablePermits(); }
+
+    public void subscribe(final Subscriber<? super T> s) {
+        if(s == null) throw new NullPointerException("Subscriber cannot be null!");
+        if(!subscriber.compareAndSet(null, s)){
+            s.onSubscribe(AsyncStream.EmptySubscription.INSTANCE);
+            s.onError(new IllegalStateException("Publisher only supports a single subscriber"));
+            return;
+        }
+        s.onSubscribe(new Subscription() {
+            public void request(long n) {
+                if(n <= 0){
+                    if(violation == null) violation = new IllegalArgumentException("Requested amount must be positive (rule 3.9)");
+                    done = true;
+                    Subscription u = upstream;
+                    if(u != null) u.cancel();
+                    slots.release();                    // Wake blocked producers
+                } else AsyncStream.addDemand(requested, n);
+                drain();
+            }
+
+            public void cancel() {
+                if(cancelled) return;
+                cancelled = true;
+                Subscription u = upstream;
+                if(u != null) u.cancel();
+                slots.release();                        // Wake blocked producers
+                drain();
+            }
+        });
+        ready = true;                                   // Items may only be delivered once onSubscribe has returned
+        drain();
+    }
+
+    public void onSubscribe(Subscription subscription) {
+        if(upstream != null || done){
+            subscription.cancel();                      // Only a single upstream is supported
+            return;
+        }
+        upstream = subscription;
+        if(cancelled) subscription.cancel();
+        else subscription.request(bufferSize);
+    }
+
+    public void onNext(T item) {
+        if(item == null) throw new NullPointerException("Streams cannot contain null items!");
+        slots.tryAcquire();                             // Upstream never sends more than requested, so this always succeeds
+        queue.offer(item);
+        drain();
+    }
+
+    public void onError(Throwable failure) { closeExceptionally(failure); }
+
+    public void onComplete() { close(); }
+
+    private void drain(){
+        if(wip.getAndIncrement() != 0) return;          // Another thread is delivering; it will pick this up
+        int missed = 1;
+        for(;;){
+            Subscriber<? super T> s = ready ? subscriber.get() : null;
+            if(s != null){
+                long r = requested.get(), emitted = 0;
+                while(emitted != r){
+                    if(cancelled){
+                        queue.clear();
+                        return;
+                    }
+                    if(violation != null){
+                        queue.clear();
+                        terminate(s);
+                        return;
+                    }
+                    boolean d = done;
+                    T item = queue.poll();
+                    if(item == null){
+                        if(d){
+                            terminate(s);
+                            return;
+                        }
+                        break;
+                    }
+                    slots.release();
+                    s.onNext(item);
+                    ++emitted;
+                    Subscription u = upstream;
+                    if(u != null && ++consumed == limit){ // Replenish in batches
+                        consumed = 0;
+                        u.request(limit);
+                    }
+                }
+                if(cancelled){
+                    queue.clear();
+                    return;
+                }
+                if(violation != null){
+                    queue.clear();
+                    terminate(s);
+                    return;
+                }
+                if(done && queue.isEmpty()){
+                    terminate(s);
+                    return;
+                }
+                if(emitted != 0 && r != Long.MAX_VALUE) requested.addAndGet(-emitted);
+            }
+            if((missed = wip.addAndGet(-missed)) == 0) return;
+        }
+    }
+
+    /**
+     * Deliver the terminal signal. The drain never releases its claim after this, so nothing is signalled afterwards.
+     */
+    private void terminate(Subscriber<? super T> s){
+        Throwable t = violation != null ? violation : failure;
+        if(t != null) s.onError(t);
+        else s.onComplete();
+    }
+}
@@ -0,0 +1,578 @@
+package net.tofvesson.async;
+
+import net.tofvesson.collections.BiFunction;
+import net.tofvesson.collections.Consumer;
+import net.tofvesson.collections.Function;
+import net.tofvesson.collections.Predicate;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cold, backpressured stream of items. Items only flow as fast as subscribers request them, so a slow stage never causes an
+ * unbounded amount of items to pile up in front of it.
+ * Consecutive {@link #map(Function)} and {@link #filter(Predicate)} stages are fused: they are applied one after another by a
+ * single subscriber rather than each adding a subscriber of its own. {@link #runOn(Executor)} marks an asynchronous boundary;
+ * downstream stages run on the given executor, and items are prefetched across the boundary into a bounded buffer that is
+ * replenished in batches rather than one item at a time.
+ * @param <T> Type of item.
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "unchecked"})
+public class AsyncStream<T> implements Publisher<T> {
+
+    /**
+     * Default amount of items buffered at an asynchronous boundary and requested by terminal operations at a time.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /**
+     * Returned by fused stages for items that were filtered out.
+     */
+    private static final Object SKIP = new Object();
+
+    private static final Method RUN;
+
+    static{
+        try{ RUN = Runnable.class.getMethod("run"); }
+        catch(NoSuchMethodException e){ throw new ExceptionInInitializerError(e); }
+    }
+
+    private final Publisher<Object> source;
+
+    /**
+     * Fused map and filter stages applied to the items of the source, or null if there are none.
+     */
+    private final Stage stage;
+
+    private AsyncStream(Publisher<?> source, Stage stage){
+        this.source = (Publisher<Object>) source;
+        this.stage = stage;
+    }
+
+    /**
+     * Create a stream of the items of the given publisher.
+     */
+    public static <T> AsyncStream<T> from(Publisher<T> publisher){
+        if(publisher instanceof AsyncStream) return (AsyncStream<T>) publisher;
+        return new AsyncStream<T>(publisher, null);
+    }
+
+    /**
+     * Create a stream of the items of the given iterable. Every subscriber gets its own iterator.
+     */
+    public static <T> AsyncStream<T> fromIterable(final Iterable<T> items){
+        return new AsyncStream<T>(new Publisher<T>() {
+            public void subscribe(Subscriber<? super T> subscriber) {
+                Iterator<T> it;
+                try{
+                    it = items.iterator();
+                }catch(Throwable t){
+                    subscriber.onSubscribe(EmptySubscription.INSTANCE);
+                    subscriber.onError(t);
+                    return;
+                }
+                subscriber.onSubscribe(new IteratorSubscription<T>(subscriber, it));
+            }
+        }, null);
+    }
+
+    /**
+     * Create a stream of the given items.
+     */
+    public static <T> AsyncStream<T> of(T... items){ return fromIterable(Arrays.asList(items)); }
+
+    /**
+     * Create a stream of count consecutive integers.
+     * @param from First integer.
+     * @param count Amount of integers.
+     */
+    public static AsyncStream<Integer> range(final int from, final int count){
+        if(count < 0) throw new IllegalArgumentException("Count must be a positive value!");
+        return fromIterable(new Iterable<Integer>() {
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    private int next = from;
+                    public boolean hasNext() { return next - from < count; }
+                    public Integer next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        return next++;
+                    }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        });
+    }
+
+    /**
+     * Transform every item. Fused with adjacent map and filter stages.
+     * @param fn Transformation. Must not return null.
+     */
+    public <R> AsyncStream<R> map(final Function<? super T, ? extends R> fn){
+        return new AsyncStream<R>(source, Stage.then(stage, new Stage() {
+            Object apply(Object item) { return fn.apply((T) item); }
+        }));
+    }
+
+    /**
+     * Drop items that don't match the given predicate. Fused with adjacent map and filter stages.
+     */
+    public AsyncStream<T> filter(final Predicate<? super T> predicate){
+        return new AsyncStream<T>(source, Stage.then(stage, new Stage() {
+            Object apply(Object item) { return predicate.test((T) item) ? item : SKIP; }
+        }));
+    }
+
+    /**
+     * Run all downstream stages and subscribers on the given executor.
+     * @see #runOn(Executor, int)
+     */
+    public AsyncStream<T> runOn(Executor executor){ return runOn(executor, DEFAULT_BUFFER_SIZE); }
+
+    /**
+     * Run all downstream stages and subscribers on the given executor. Up to bufferSize items are requested ahead of time; once
+     * three quarters of them have been consumed, that many are requested again in a single batch.
+     * Signals are delivered by a single task at a time, so at most one task per subscriber is ever queued on the executor.
+     * @param executor Executor to deliver items on.
+     * @param bufferSize Amount of items to prefetch.
+     */
+    public AsyncStream<T> runOn(final Executor executor, final int bufferSize){
+        if(bufferSize <= 0) throw new IllegalArgumentException("Buffer size must be a positive, non-zero value!");
+        return new AsyncStream<T>(new Publisher<T>() {
+            public void subscribe(Subscriber<? super T> subscriber) {
+                AsyncStream.this.subscribe(new Boundary<T>(subscriber, executor, bufferSize));
+            }
+        }, null);
+    }
+
+    /**
+     * Run all downstream stages and subscribers on the given worker.
+     */
+    public AsyncStream<T> runOn(WorkerThread worker){ return runOn(executor(worker, null)); }
+
+    /**
+     * Run all downstream stages and subscribers on the workers of the given pool. Signals are still delivered one at a time.
+     */
+    public AsyncStream<T> runOn(WorkerPool pool){ return runOn(executor(null, pool)); }
+
+    /**
+     * Pass all items through the given processor.
+     * @return Stream of the items published by the processor.
+     */
+    public <R> AsyncStream<R> via(Processor<? super T, R> processor){
+        subscribe(processor);
+        return from(processor);
+    }
+
+    public void subscribe(Subscriber<? super T> subscriber){
+        if(subscriber == null) throw new NullPointerException("Subscriber cannot be null!");
+        if(stage == null) source.subscribe((Subscriber<Object>) subscriber);
+        else source.subscribe(new Fused<T>(subscriber, stage));
+    }
+
+    /**
+     * Consume all items.
+     * @param action Action to run for every item.
+     * @return Task that completes once the stream has completed. Canceling it cancels the subscription.
+     */
+    public Async<Void> forEach(final Consumer<? super T> action){
+        return collect(null, new BiFunction<Void, T, Void>() {
+            public Void apply(Void nothing, T item) {
+                action.accept(item);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Fold all items into a single value.
+     * @param identity Initial value.
+     * @param reducer Folds an item into the value.
+     * @return Task that completes with the folded value once the stream has completed. Canceling it cancels the subscription.
+     */
+    public <R> Async<R> reduce(R identity, BiFunction<R, ? super T, R> reducer){ return collect(identity, reducer); }
+
+    /**
+     * Collect all items into a list.
+     * @return Task that completes with all items once the stream has completed. Canceling it cancels the subscription.
+     */
+    public Async<List<T>> toList(){
+        return collect(new ArrayList<T>(), new BiFunction<List<T>, T, List<T>>() {
+            public List<T> apply(List<T> list, T item) {
+                list.add(item);
+                return list;
+            }
+        });
+    }
+
+    private <R> Async<R> collect(R identity, BiFunction<R, ? super T, R> reducer){
+        Collector<T, R> c = new Collector<T, R>(identity, reducer);
+        subscribe(c);
+        return c.result;
+    }
+
+    private static Executor executor(final WorkerThread worker, final WorkerPool pool){
+        return new Executor() {
+            public void execute(Runnable command) {
+                Async<?> a = worker != null ? worker.submit(command, RUN) : pool.submit(command, RUN);
+                if(a.isCancelled()) throw new RejectedExecutionException("Worker has stopped");
+            }
+        };
+    }
+
+    /**
+     * Adds the given amount to a demand counter, capping it at Long.MAX_VALUE (which means unbounded).
+     * @return Previous demand.
+     */
+    static long addDemand(AtomicLong requested, long n){
+        for(;;){
+            long r = requested.get();
+            if(r == Long.MAX_VALUE) return r;
+            long u = r + n;
+            if(requested.compareAndSet(r, u < 0 ? Long.MAX_VALUE : u)) return r;
+        }
+    }
+
+    /**
+     * A chain of fused map and filter stages.
+     */
+    private static abstract class Stage {
+        /**
+         * @return Transformed item or {@link #SKIP}.
+         */
+        abstract Object apply(Object item);
+
+        static Stage then(final Stage first, final Stage second){
+            if(first == null) return second;
+            return new Stage() {
+                Object apply(Object item) {
+                    Object o = first.apply(item);
+                    return o == SKIP ? SKIP : second.apply(o);
+                }
+            };
+        }
+    }
+
+    static final class EmptySubscription implements Subscription {
+        static final EmptySubscription INSTANCE = new EmptySubscription();
+        public void request(long n) {}
+        public void cancel() {}
+    }
+
+    /**
+     * Emits the items of an iterator on the thread that requests them. Re-entrant requests (from within onNext) only add to the
+     * demand, so emission never recurses.
+     */
+    private static final class IteratorSubscription<T> implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final Iterator<T> it;
+        private final AtomicLong requested = new AtomicLong();
+        private volatile boolean cancelled = false;
+
+        IteratorSubscription(Subscriber<? super T> subscriber, Iterator<T> it){
+            this.subscriber = subscriber;
+            this.it = it;
+        }
+
+        public void request(long n) {
+            if(n <= 0){
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested amount must be positive (rule 3.9)"));
+                return;
+            }
+            if(addDemand(requested, n) == 0) emit();
+        }
+
+        public void cancel() { cancelled = true; }
+
+        private void emit(){
+            long emitted = 0, r = requested.get();
+            for(;;){
+                while(emitted != r){
+                    if(cancelled) return;
+                    T item;
+                    try{
+                        if(!it.hasNext()){
+                            cancelled = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        item = it.next();
+                        if(item == null) throw new NullPointerException("Streams cannot contain null items!");
+                    }catch(Throwable t){
+                        cancelled = true;
+                        subscriber.onError(t);
+                        return;
+                    }
+                    subscriber.onNext(item);
+                    ++emitted;
+                }
+                if(cancelled) return;
+                if((r = requested.get()) == emitted){
+                    if(r == Long.MAX_VALUE) continue;
+                    r = requested.addAndGet(-emitted);
+                    if(r == 0) return;
+                    emitted = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies fused stages to the items passing through it. Filtered items are replaced by requesting another one.
+     */
+    private static final class Fused<T> implements Subscriber<Object>, Subscription {
+        private final Subscriber<? super T> downstream;
+        private final Stage stage;
+        private Subscription upstream;
+        private boolean done = false;
+
+        Fused(Subscriber<? super T> downstream, Stage stage){
+            this.downstream = downstream;
+            this.stage = stage;
+        }
+
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        public void onNext(Object item) {
+            if(done) return;
+            Object o;
+            try{
+                o = stage.apply(item);
+                if(o == null) throw new NullPointerException("Stage returned null!");
+            }catch(Throwable t){
+                upstream.cancel();
+                onError(t);
+                return;
+            }
+            if(o == SKIP) upstream.request(1);
+            else downstream.onNext((T) o);
+        }
+
+        public void onError(Throwable failure) {
+            if(done) return;
+            done = true;
+            downstream.onError(failure);
+        }
+
+        public void onComplete() {
+            if(done) return;
+            done = true;
+            downstream.onComplete();
+        }
+
+        public void request(long n) { upstream.request(n); }
+        public void cancel() { upstream.cancel(); }
+    }
+
+    /**
+     * Asynchronous boundary. Buffers prefetched items and delivers all signals to the downstream subscriber from a single drain
+     * task on the executor.
+     */
+    private static final class Boundary<T> implements Subscriber<T>, Subscription, Runnable {
+        private final Subscriber<? super T> downstream;
+        private final Executor executor;
+        private final int bufferSize, limit;
+        private final Queue<T> queue = new ConcurrentLinkedQueue<T>(); // Never holds more than bufferSize items: they are only requested as space frees up
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private volatile Subscription upstream;
+        private volatile boolean done = false, cancelled = false;
+        private volatile Throwable violation;           // Delivered ahead of any buffered items
+        private Throwable failure;
+
+        /**
+         * Owned by the drain task.
+         */
+        private boolean subscribed = false;
+        private int consumed = 0;
+
+        Boundary(Subscriber<? super T> downstream, Executor executor, int bufferSize){
+            this.downstream = downstream;
+            this.executor = executor;
+            this.bufferSize = bufferSize;
+            limit = Math.max(1, bufferSize - (bufferSize >> 2));
+        }
+
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            schedule();                                 // Downstream is told about the subscription on the executor as well
+            subscription.request(bufferSize);
+        }
+
+        public void onNext(T item) {
+            queue.offer(item);
+            schedule();
+        }
+
+        public void onError(Throwable failure) {
+            this.failure = failure;
+            done = true;
+            schedule();
+        }
+
+        public void onComplete() {
+            done = true;
+            schedule();
+        }
+
+        public void request(long n) {
+            if(n <= 0){
+                if(violation == null) violation = new IllegalArgumentException("Requested amount must be positive (rule 3.9)");
+                Subscription s = upstream;
+                if(s != null) s.cancel();
+                schedule();
+                return;
+            }
+            addDemand(requested, n);
+            schedule();
+        }
+
+        public void cancel() {
+            if(cancelled) return;
+            cancelled = true;
+            Subscription s = upstream;
+            if(s != null) s.cancel();
+            schedule();                                 // Let the drain clear the buffer
+        }
+
+        private void schedule(){
+            if(wip.getAndIncrement() != 0) return;      // A drain is already running or queued; it will pick this up
+            try{
+                executor.execute(this);
+            }catch(RejectedExecutionException e){
+                cancelled = true;
+                Subscription s = upstream;
+                if(s != null) s.cancel();
+                queue.clear();
+            }
+        }
+
+        public void run() {
+            int missed = 1;
+            if(!subscribed){
+                subscribed = true;
+                downstream.onSubscribe(this);
+            }
+            for(;;){
+                long r = requested.get(), emitted = 0;
+                while(emitted != r){
+                    if(cancelled){
+                        queue.clear();
+                        return;
+                    }
+                    if(violation != null){
+                        queue.clear();
+                        terminate();
+                        return;
+                    }
+                    boolean d = done;
+                    T item = queue.poll();
+                    if(item == null){
+                        if(d){
+                            terminate();
+                            return;
+                        }
+                        break;
+                    }
+                    downstream.onNext(item);
+                    ++emitted;
+                    if(++consumed == limit){            // Replenish the buffer in batches
+                        consumed = 0;
+                        upstream.request(limit);
+                    }
+                }
+                if(cancelled){
+                    queue.clear();
+                    return;
+                }
+                if(violation != null){
+                    queue.clear();
+                    terminate();
+                    return;
+                }
+                if(done && queue.isEmpty()){
+                    terminate();
+                    return;
+                }
+                if(emitted != 0 && r != Long.MAX_VALUE) requested.addAndGet(-emitted);
+                if((missed = wip.addAndGet(-missed)) == 0) return;
+            }
+        }
+
+        private void terminate(){
+            cancelled = true;                           // Nothing may be signalled after this
+            Throwable t = violation != null ? violation : failure;
+            if(t != null) downstream.onError(t);
+            else downstream.onComplete();
+        }
+    }
+
+    /**
+     * Terminal subscriber that folds all items into a task's result.
+     */
+    private static final class Collector<T, R> implements Subscriber<T> {
+        private static final int LIMIT = DEFAULT_BUFFER_SIZE - (DEFAULT_BUFFER_SIZE >> 2);
+
+        final Async<R> result = new Async<R>();
+        private final BiFunction<R, ? super T, R> reducer;
+        private R value;
+        private Subscription subscription;
+        private int received = 0;
+        private boolean done = false;
+
+        Collector(R identity, BiFunction<R, ? super T, R> reducer){
+            value = identity;
+            this.reducer = reducer;
+        }
+
+        public void onSubscribe(final Subscription subscription) {
+            this.subscription = subscription;
+            result.onDone(new Async.Continuation(null) {
+                void run(boolean success, Object value, Throwable failure) { if(result.isCancelled()) subscription.cancel(); }
+                void fail(Throwable failure) { subscription.cancel(); }
+            });
+            subscription.request(DEFAULT_BUFFER_SIZE);
+        }
+
+        public void onNext(T item) {
+            if(done) return;
+            try{
+                value = reducer.apply(value, item);
+            }catch(Throwable t){
+                done = true;
+                subscription.cancel();
+                result.finish(null, t);
+                return;
+            }
+            if(++received == LIMIT){                    // Request in batches rather than one item at a time
+                received = 0;
+                subscription.request(LIMIT);
+            }
+        }
+
+        public void onError(Throwable failure) {
+            if(done) return;
+            done = true;
+            result.finish(null, failure);
+        }
+
+        public void onComplete() {
+            if(done) return;
+            done = true;
+            result.finish(value, null);
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package net.tofvesson.async;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public interface Awaitable<T> {
     T await();
+    T await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException;
+    T awaitInterruptibly() throws InterruptedException;
     boolean isAlive();
 }
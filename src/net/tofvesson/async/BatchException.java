@@ -0,0 +1,25 @@
+package net.tofvesson.async;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown when awaiting a {@link StructuredBatch} in which one or more instructions failed.
+ */
+public class BatchException extends RuntimeException {
+
+    private final Map<Integer, Throwable> failures;
+
+    public BatchException(Map<Integer, Throwable> failures) {
+        super(failures.size()+" instruction(s) in batch failed", failures.isEmpty() ? null : failures.values().iterator().next());
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Get the failures that caused this exception.
+     * @return Map of instruction index to the exception it threw.
+     */
+    public Map<Integer, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,5 @@
+package net.tofvesson.async;
+
+public interface BatchReducer<T> {
+    T run(T accumulator, int index);
+}
@@ -0,0 +1,56 @@
+package net.tofvesson.async;
+
+import net.tofvesson.collections.BiConsumer;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Adapters between {@link Async} and {@link CompletableFuture}. Outcomes are handed over by the completing thread, so no thread hops
+ * are added in either direction. Only usable on Java 8 and later.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class CompletableFutures {
+
+    private CompletableFutures(){}
+
+    /**
+     * Create a future that completes with the outcome of the given task. Canceling the future cancels the task.
+     * @param async Task to adapt.
+     * @param <T> Return type of task.
+     * @return Future completed by the given task.
+     */
+    public static <T> CompletableFuture<T> toCompletableFuture(final Async<T> async){
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        async.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable failure) {
+                if(failure == null) future.complete(value);
+                else future.completeExceptionally(failure);
+            }
+        });
+        future.whenComplete(new java.util.function.BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable failure) {
+                if(failure instanceof CancellationException) async.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Create a task that completes with the outcome of the given future.
+     * @param future Future to adapt.
+     * @param <T> Return type of future.
+     * @return Task completed by the given future.
+     */
+    public static <T> Async<T> fromCompletableFuture(CompletableFuture<T> future){
+        final Async<T> async = new Async<T>();
+        future.whenComplete(new java.util.function.BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable failure) {
+                if(failure instanceof CompletionException && failure.getCause() != null) failure = failure.getCause();
+                async.finish(value, failure);
+            }
+        });
+        return async;
+    }
+}
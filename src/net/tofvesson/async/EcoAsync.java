@@ -1,26 +1,48 @@
 package net.tofvesson.async;
 
 
-import net.tofvesson.reflection.SafeReflection;
+import net.tofvesson.reflection.Invoker;
 
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Economic asynchronous calls. After a result has been returned to the caller, the object resets and is ready to dispatch another operation.
  * @param <T> Return type.
  */
-@SuppressWarnings("unused")
+@SuppressWarnings({"unused", "unchecked"})
 public class EcoAsync<T> extends Async<T> {
 
-    private static final Field
-            threadTarget = SafeReflection.getField(Thread.class, "target"),
-            runnableObjToCall = SafeReflection.getField(EcoRunnable.class, "val$o"),
-            runnableMethod = SafeReflection.getField(EcoRunnable.class, "val$method"),
-            runnableParams = SafeReflection.getField(EcoRunnable.class, "val$params");
-    private Thread previousThread;
+    /**
+     * Bound operation.
+     */
+    final Object target;
+    final Invoker invoker;
+    final Object[] params;
+    private final String name;
+
+    /**
+     * Incremented whenever an operation is started or canceled. Operations of an older generation don't publish their results.
+     */
+    volatile int generation = 0;
+
+    /**
+     * Whether or not an operation has been started and hasn't been published yet. Guarded by this.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Parked worker that runs the bound operation. Guarded by this.
+     */
+    private EcoRunnable worker;
+
+    /**
+     * Metrics timestamp of the started operation until the worker picks it up. Guarded by this.
+     */
+    long queuedAt = AsyncMetrics.UNTRACKED;
 
     /**
      * Initiates an economic version of async task that invokes the defined method. If object is null, the method must be static.
@@ -36,10 +58,12 @@ public class EcoAsync<T> extends Async<T> {
      */
     public EcoAsync(boolean runOnConstruction, Object o, Method method, Object... params) {
         super();
-        method.setAccessible(true);
         // Don't call super since we are constructing a custom version
-        newThread(o, method, params);
-        if(runOnConstruction) try{ task.start(); }catch(Exception ignored){}
+        target = o;
+        invoker = Invoker.of(method);   // Resolved once, so restarting doesn't look the target up again
+        this.params = params;
+        name = "Worker_"+method.getDeclaringClass().getName()+"_"+method.getName();
+        if(runOnConstruction) start();
     }
 
     /**
@@ -119,21 +143,44 @@ public class EcoAsync<T> extends Async<T> {
      */
     public EcoAsync(boolean runOnConstruction, Constructor<T> c, Object... params){
         super();
-        c.setAccessible(true);
-        try {
-            Method m = EcoAsync.class.getDeclaredMethod("constructObject", Constructor.class, Object[].class);
-            m.setAccessible(true);
-            newThread(null, m, c, params);
-        } catch (NoSuchMethodException e) { e.printStackTrace(); }
-        if(runOnConstruction) try{ task.start(); }catch(Exception ignored){}
+        target = null;
+        invoker = Invoker.of(c);
+        this.params = params;
+        name = "Worker_"+c.getDeclaringClass().getName()+"_<init>";
+        if(runOnConstruction) start();
     }
 
     @Override
     public T await() {
+        checkAwaitable();
+        try {
+            AsyncPool.block(this, false, false, 0);
+        } catch (InterruptedException e) { throw new IllegalStateException(e); } // Unreachable: uninterruptible waits don't throw
+        return getResult();
+    }
+
+    @Override
+    public T await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        checkAwaitable();
+        if(!AsyncPool.block(this, true, true, unit.toNanos(timeout))) throw new TimeoutException();
+        return getResult();
+    }
+
+    @Override
+    public T awaitInterruptibly() throws InterruptedException {
+        checkAwaitable();
+        AsyncPool.block(this, true, false, 0);
+        return getResult();
+    }
+
+    private void checkAwaitable(){
         checkDangerousThreadedAction();
-        if(!isAlive()) throw new IllegalStateException("Cannot await async that isn't alive!");
-        //noinspection StatementWithEmptyBody
-        while(!failed && !complete);
+        if(!isAlive() && !complete && !failed) throw new IllegalStateException("Cannot await async that isn't alive!"); // A finished task is still awaitable
+    }
+
+    @Override
+    T getResult() {
+        running = false; // Operation is over once its outcome has been consumed, even if the worker hasn't gotten around to saying so
         if(ret==null && t!=null){
             Throwable t = super.t; // Added for re-usability
             super.t = null; // Added for re-usability
@@ -145,18 +192,25 @@ public class EcoAsync<T> extends Async<T> {
 
     @Override
     public boolean isAlive() {
-        return !super.failed && !complete && task!=null && task.isAlive(); // Due to the overridden operation, we need another way of checking if worker is alive.
+        return running && !super.failed && !complete; // Due to the overridden operation, we need another way of checking if the operation is alive.
     }
 
     @Override
     public void cancel() {
-        previousThread = task;// Store a reference to the previous thread
-        super.cancel();
-        //noinspection StatementWithEmptyBody
-        while(previousThread.isAlive()) ;
-        complete = false;
-        failed = false;
-        ret = null;
+        synchronized (this){
+            ++generation;   // Running operation may keep going for a while, but its outcome will be discarded
+            running = false;
+            if(worker != null){
+                if(worker.armed && queuedAt != AsyncMetrics.UNTRACKED) AsyncMetrics.discarded(); // Never picked up
+                queuedAt = AsyncMetrics.UNTRACKED;
+                worker.armed = false;
+                if(task != null){   // Worker is busy with the canceled operation: let it finish in the background and use a fresh one next time
+                    worker.retired = true;
+                    worker = null;
+                }
+            }
+        }
+        super.cancel();     // Canceled state is kept until start() resets it, so waiters woken by this see that it's over
     }
 
     /**
@@ -164,26 +218,47 @@ public class EcoAsync<T> extends Async<T> {
      */
     public void start(){
         if(isAlive()) cancel();
-        // Dig parameters out from memory rather than wasting space with our own copy
-        try {
-            EcoRunnable t_run = (EcoRunnable) threadTarget.get(task);
-            newThread(runnableObjToCall.get(t_run),
-                    (Method) runnableMethod.get(t_run),
-                    (Object[]) runnableParams.get(t_run));
-            task.start();
-        } catch (IllegalAccessException ignored) { }
+        EcoRunnable w;
+        boolean created = false;
+        synchronized (this){
+            complete = false;
+            failed = false;
+            cancelled = false;
+            t = null;
+            ret = null;
+            if(worker == null){
+                worker = new EcoRunnable(this, name);
+                created = true;
+            }
+            w = worker;
+            w.generation = ++generation;
+            w.armed = true;
+            queuedAt = AsyncMetrics.enabled ? AsyncMetrics.queued() : AsyncMetrics.UNTRACKED;
+            running = true;
+        }
+        if(created) w.thread.start();
+        else LockSupport.unpark(w.thread);
     }
 
-    void newThread(Object o, Method method, Object... params){
-        previousThread = null;
-        try {
-            task = new Thread(new EcoRunnable(this, o, method, params), "Worker_"+method.getDeclaringClass().getName()+"_"+method.getName());
-            task.setDaemon(true);
-        } catch (Exception ignored) { }
+    /**
+     * Publishes the outcome of an operation unless it has been superseded. Checked and published under the same lock as cancel()
+     * and start(), so a superseded operation can't complete the one that replaced it.
+     * @return True if the outcome was published.
+     */
+    synchronized boolean publish(Object value, Throwable failure, int gen){
+        if(generation != gen) return false;
+        ret = (T) value;
+        if(failure == null) setComplete();
+        else setFailed(failure);
+        running = false;
+        return true;
     }
 
-    private static Object constructObject(Constructor c, Object[] params)
-            throws IllegalAccessException, InvocationTargetException, InstantiationException {
-        return c.newInstance(params);
+    /**
+     * Removes an idle worker.
+     */
+    void retire(EcoRunnable w){
+        w.retired = true;
+        if(worker == w) worker = null;
     }
 }
@@ -1,38 +1,83 @@
 package net.tofvesson.async;
 
-import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Pre-written anonymous class. Follows all naming conventions of an anonymous class, acts like an anonymous class and handles data like an anonymous class.
- * It just isn't an anonymous class technically speaking...
+ * Long-lived worker of an {@link EcoAsync}. Parks between operations and runs the bound method whenever the EcoAsync is started,
+ * so restarting it doesn't create a new thread. Retires after idling for a while; the EcoAsync creates a new worker on the next start.
  */
 class EcoRunnable implements Runnable{
 
-    private final EcoAsync this$0;
-    private final Object val$o;
-    private final Method val$method;
-    private final Object[] val$params;
+    /**
+     * Time a worker may idle before it retires.
+     */
+    private static final long KEEP_ALIVE = TimeUnit.SECONDS.toNanos(10);
 
-    EcoRunnable(EcoAsync this$0, Object val$o, Method val$method, Object[] val$params){
+    private final EcoAsync<?> this$0;
+
+    /**
+     * Thread running this worker.
+     */
+    final Thread thread;
+
+    /**
+     * Scheduling state. Guarded by the EcoAsync.
+     */
+    boolean armed = false, retired = false;
+    int generation;
+
+    EcoRunnable(EcoAsync<?> this$0, String name){
         this.this$0 = this$0;
-        this.val$o = val$o;
-        this.val$method = val$method;
-        this.val$params = val$params;
+        thread = AsyncPool.newThread(this, name);
     }
 
     public void run() {
-        synchronized (this) {
-            try {
-                this$0.setLocal();
-                this$0.ret = val$method.invoke(val$o, val$params);
-                this$0.complete = true;
-            } catch (Throwable t1) {
-                if(!this$0.failed)
-                {
-                    this$0.failed = true; this$0.t=t1;
+        long idleSince = System.nanoTime();
+        for(;;){
+            boolean run;
+            int gen;
+            long queuedAt = AsyncMetrics.UNTRACKED;
+            synchronized (this$0){
+                if(retired) return;
+                run = armed;
+                gen = generation;
+                if(run){
+                    armed = false;
+                    queuedAt = this$0.queuedAt;
+                    this$0.queuedAt = AsyncMetrics.UNTRACKED;
+                    this$0.task = thread;               // Lets cancel() interrupt the operation
+                }else if(System.nanoTime() - idleSince >= KEEP_ALIVE){
+                    this$0.retire(this);
+                    return;
                 }
-            } finally {
-                this$0.newThread(val$o, val$method, val$params);
+            }
+            if(!run){
+                LockSupport.parkNanos(this, KEEP_ALIVE); // start() unparks us
+                continue;
+            }
+            if(queuedAt != AsyncMetrics.UNTRACKED) AsyncMetrics.dequeued(queuedAt);
+            invoke(gen);
+            idleSince = System.nanoTime();
+        }
+    }
+
+    private void invoke(int gen){
+        final boolean tracked = AsyncMetrics.enabled;
+        final long startedAt = tracked ? AsyncMetrics.started() : 0L;
+        int outcome = AsyncMetrics.CANCELLED;
+        this$0.setLocal();
+        try {
+            Object ret = this$0.invoker.invoke(this$0.target, this$0.params);
+            if(this$0.publish(ret, null, gen)) outcome = AsyncMetrics.COMPLETED;
+        } catch (Throwable t1) {
+            if(this$0.publish(null, t1, gen)) outcome = AsyncMetrics.FAILED;
+        } finally {
+            if(tracked) AsyncMetrics.finished(startedAt, outcome);
+            this$0.clearLocal();
+            synchronized (this$0){
+                if(this$0.task == thread) this$0.task = null;
+                Thread.interrupted();                   // Clear interrupt from a cancellation before parking
             }
         }
     }
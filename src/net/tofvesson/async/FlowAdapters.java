@@ -0,0 +1,203 @@
+package net.tofvesson.async;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Converts between the reactive interfaces of this package and those of java.util.concurrent.Flow (Java 9+).
+ * Since the library itself targets older runtimes, Flow types are handled as plain Objects: they are created through dynamic
+ * proxies and invoked reflectively. Converting an adapter back returns the object it wraps rather than wrapping it again.
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "unchecked"})
+public final class FlowAdapters {
+
+    private static final Class<?> PUBLISHER, SUBSCRIBER, SUBSCRIPTION;
+    private static final Method subscribe, onSubscribe, onNext, onError, onComplete, request, cancel;
+
+    private static final int KIND_PUBLISHER = 0, KIND_SUBSCRIBER = 1, KIND_SUBSCRIPTION = 2;
+
+    static{
+        Class<?> p = null, s = null, ss = null;
+        Method[] m = new Method[7];
+        try{
+            p = Class.forName("java.util.concurrent.Flow$Publisher");
+            s = Class.forName("java.util.concurrent.Flow$Subscriber");
+            ss = Class.forName("java.util.concurrent.Flow$Subscription");
+            m[0] = p.getMethod("subscribe", s);
+            m[1] = s.getMethod("onSubscribe", ss);
+            m[2] = s.getMethod("onNext", Object.class);
+            m[3] = s.getMethod("onError", Throwable.class);
+            m[4] = s.getMethod("onComplete");
+            m[5] = ss.getMethod("request", long.class);
+            m[6] = ss.getMethod("cancel");
+        }catch(Exception ignored){ p = s = ss = null; } // Flow isn't available on this runtime
+        PUBLISHER = p;
+        SUBSCRIBER = s;
+        SUBSCRIPTION = ss;
+        subscribe = m[0];
+        onSubscribe = m[1];
+        onNext = m[2];
+        onError = m[3];
+        onComplete = m[4];
+        request = m[5];
+        cancel = m[6];
+    }
+
+    private FlowAdapters(){}
+
+    /**
+     * Check whether java.util.concurrent.Flow is available on this runtime.
+     */
+    public static boolean supported(){ return PUBLISHER != null; }
+
+    /**
+     * Adapt a publisher to a Flow.Publisher.
+     * @return Object implementing java.util.concurrent.Flow.Publisher.
+     * @throws UnsupportedOperationException If Flow isn't available on this runtime.
+     */
+    public static Object toFlowPublisher(Publisher<?> publisher){
+        if(publisher instanceof FlowPublisher) return ((FlowPublisher<?>) publisher).flow;
+        return proxy(PUBLISHER, publisher, KIND_PUBLISHER);
+    }
+
+    /**
+     * Adapt a Flow.Publisher to a publisher.
+     * @param flowPublisher Object implementing java.util.concurrent.Flow.Publisher.
+     * @throws UnsupportedOperationException If Flow isn't available on this runtime.
+     */
+    public static <T> Publisher<T> fromFlowPublisher(Object flowPublisher){
+        Object o = unwrap(flowPublisher, PUBLISHER, KIND_PUBLISHER);
+        return o != null ? (Publisher<T>) o : new FlowPublisher<T>(flowPublisher);
+    }
+
+    /**
+     * Adapt a subscriber to a Flow.Subscriber.
+     * @return Object implementing java.util.concurrent.Flow.Subscriber.
+     * @throws UnsupportedOperationException If Flow isn't available on this runtime.
+     */
+    public static Object toFlowSubscriber(Subscriber<?> subscriber){
+        if(subscriber instanceof FlowSubscriber) return ((FlowSubscriber<?>) subscriber).flow;
+        return proxy(SUBSCRIBER, subscriber, KIND_SUBSCRIBER);
+    }
+
+    /**
+     * Adapt a Flow.Subscriber to a subscriber.
+     * @param flowSubscriber Object implementing java.util.concurrent.Flow.Subscriber.
+     * @throws UnsupportedOperationException If Flow isn't available on this runtime.
+     */
+    public static <T> Subscriber<T> fromFlowSubscriber(Object flowSubscriber){
+        Object o = unwrap(flowSubscriber, SUBSCRIBER, KIND_SUBSCRIBER);
+        return o != null ? (Subscriber<T>) o : new FlowSubscriber<T>(flowSubscriber);
+    }
+
+    private static Object toFlowSubscription(Subscription subscription){
+        if(subscription instanceof FlowSubscription) return ((FlowSubscription) subscription).flow;
+        return proxy(SUBSCRIPTION, subscription, KIND_SUBSCRIPTION);
+    }
+
+    private static Subscription fromFlowSubscription(Object flowSubscription){
+        Object o = unwrap(flowSubscription, SUBSCRIPTION, KIND_SUBSCRIPTION);
+        return o != null ? (Subscription) o : new FlowSubscription(flowSubscription);
+    }
+
+    private static Object proxy(Class<?> type, Object target, int kind){
+        if(target == null) throw new NullPointerException();
+        checkSupported();
+        return Proxy.newProxyInstance(FlowAdapters.class.getClassLoader(), new Class<?>[]{ type }, new Adapter(target, kind));
+    }
+
+    /**
+     * Get the object adapted by the given Flow object, if it's one of ours.
+     * @return Adapted object or null if the given object isn't an adapter.
+     */
+    private static Object unwrap(Object flow, Class<?> type, int kind){
+        if(flow == null) throw new NullPointerException();
+        checkSupported();
+        if(!type.isInstance(flow)) throw new IllegalArgumentException("Object does not implement "+type.getName());
+        if(Proxy.isProxyClass(flow.getClass())){
+            InvocationHandler h = Proxy.getInvocationHandler(flow);
+            if(h instanceof Adapter && ((Adapter) h).kind == kind) return ((Adapter) h).target;
+        }
+        return null;
+    }
+
+    private static void checkSupported(){
+        if(!supported()) throw new UnsupportedOperationException("java.util.concurrent.Flow is not available on this runtime");
+    }
+
+    private static void invoke(Method m, Object on, Object... args){
+        try{
+            m.invoke(on, args);
+        }catch(InvocationTargetException e){
+            Throwable t = e.getCause();
+            if(t instanceof RuntimeException) throw (RuntimeException) t;
+            if(t instanceof Error) throw (Error) t;
+            throw new RuntimeException(t);
+        }catch(IllegalAccessException e){
+            throw new RuntimeException(e);          // Flow interfaces are public, so this shouldn't happen
+        }
+    }
+
+    /**
+     * Implements Flow interfaces by forwarding to the equivalent interfaces of this package.
+     */
+    private static final class Adapter implements InvocationHandler {
+        final Object target;
+        final int kind;
+
+        Adapter(Object target, int kind){
+            this.target = target;
+            this.kind = kind;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if(method.getDeclaringClass() == Object.class){
+                if("equals".equals(name)) return proxy == args[0];
+                if("hashCode".equals(name)) return System.identityHashCode(proxy);
+                return "FlowAdapter("+target+")";
+            }
+            switch(kind){
+                case KIND_PUBLISHER:
+                    ((Publisher<Object>) target).subscribe(FlowAdapters.<Object>fromFlowSubscriber(args[0]));
+                    break;
+                case KIND_SUBSCRIBER:
+                    Subscriber<Object> s = (Subscriber<Object>) target;
+                    if("onSubscribe".equals(name)) s.onSubscribe(fromFlowSubscription(args[0]));
+                    else if("onNext".equals(name)) s.onNext(args[0]);
+                    else if("onError".equals(name)) s.onError((Throwable) args[0]);
+                    else s.onComplete();
+                    break;
+                default:
+                    if("request".equals(name)) ((Subscription) target).request((Long) args[0]);
+                    else ((Subscription) target).cancel();
+                    break;
+            }
+            return null;
+        }
+    }
+
+    private static final class FlowPublisher<T> implements Publisher<T> {
+        final Object flow;
+        FlowPublisher(Object flow){ this.flow = flow; }
+        public void subscribe(Subscriber<? super T> subscriber) { invoke(FlowAdapters.subscribe, flow, toFlowSubscriber(subscriber)); }
+    }
+
+    private static final class FlowSubscriber<T> implements Subscriber<T> {
+        final Object flow;
+        FlowSubscriber(Object flow){ this.flow = flow; }
+        public void onSubscribe(Subscription subscription) { invoke(FlowAdapters.onSubscribe, flow, toFlowSubscription(subscription)); }
+        public void onNext(T item) { invoke(FlowAdapters.onNext, flow, item); }
+        public void onError(Throwable failure) { invoke(FlowAdapters.onError, flow, failure); }
+        public void onComplete() { invoke(FlowAdapters.onComplete, flow); }
+    }
+
+    private static final class FlowSubscription implements Subscription {
+        final Object flow;
+        FlowSubscription(Object flow){ this.flow = flow; }
+        public void request(long n) { invoke(FlowAdapters.request, flow, n); }
+        public void cancel() { invoke(FlowAdapters.cancel, flow); }
+    }
+}
@@ -0,0 +1,118 @@
+package net.tofvesson.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, in the style of an HDR histogram. Every power of two is split into 16 linear
+ * buckets, so any recorded value is reported with an error of at most 1/16 (6.25%) no matter its magnitude. Recording is
+ * lock-free and doesn't allocate.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Histogram {
+
+    private static final int SUB_BITS = 4, SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values below 2*SUB_BUCKETS get a bucket each; every following power of two gets SUB_BUCKETS buckets.
+     */
+    private static final int BUCKETS = (63 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as zero.
+     * @param value Value to record.
+     */
+    public void record(long value){
+        if(value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        for(long m; value > (m = max.get()) && !max.compareAndSet(m, value); );
+    }
+
+    /**
+     * Get the amount of recorded values.
+     */
+    public long getCount(){
+        long count = 0;
+        for(int i = 0; i<BUCKETS; ++i) count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Get the largest recorded value. Unlike all other statistics, this is exact.
+     */
+    public long getMax(){ return max.get(); }
+
+    /**
+     * Get the mean of all recorded values, or zero if nothing has been recorded.
+     */
+    public double getMean(){
+        long count = 0;
+        double total = 0;
+        for(int i = 0; i<BUCKETS; ++i){
+            long c = counts.get(i);
+            if(c == 0) continue;
+            count += c;
+            total += c * (lowest(i) / 2.0 + highest(i) / 2.0);
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Get the value that the given percentage of all recorded values are less than or equal to.
+     * @param percentile Percentile between 0 and 100.
+     * @return Highest value equivalent to the percentile (capped at the maximum) or zero if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile){
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i<BUCKETS; ++i) count += snapshot[i] = counts.get(i); // Walk a consistent copy in case of concurrent recording
+        if(count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count));
+        for(int i = 0; i<BUCKETS; ++i)
+            if((target -= snapshot[i]) <= 0) return Math.min(highest(i), getMax());
+        return getMax();
+    }
+
+    /**
+     * Create a copy of this histogram that isn't affected by further recording.
+     */
+    public Histogram copy(){
+        Histogram h = new Histogram();
+        for(int i = 0; i<BUCKETS; ++i) h.counts.set(i, counts.get(i));
+        h.max.set(max.get());
+        return h;
+    }
+
+    /**
+     * Discard all recorded values. Values recorded concurrently may or may not be discarded.
+     */
+    public void reset(){
+        for(int i = 0; i<BUCKETS; ++i) counts.set(i, 0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count="+getCount()+", mean="+(long) getMean()+", p50="+getValueAtPercentile(50)+", p99="+getValueAtPercentile(99)+", max="+getMax();
+    }
+
+    private static int index(long value){
+        if(value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // Keep the SUB_BITS bits following the highest set bit
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long lowest(int index){
+        if(index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    private static long highest(int index){
+        if(index < 2 * SUB_BUCKETS) return index;
+        return lowest(index) + (1L << (index / SUB_BUCKETS - 1)) - 1;
+    }
+}
@@ -0,0 +1,115 @@
+package net.tofvesson.async;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Handle for a batch of instructions submitted to a {@link WorkerThread} in a single operation.
+ * Results are kept in submission order. Completion of the batch is tracked through the instruction that is expected to finish
+ * last rather than through a callback per instruction, so the handle adds next to nothing to the cost of the instructions.
+ * @param <T> Return type of the instructions.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class InvocationBatch<T> {
+
+    private final Async<T>[] all;
+    private volatile Async<List<T>> whenAll;
+
+    InvocationBatch(Async<T>[] all){ this.all = all; }
+
+    /**
+     * Amount of instructions in the batch.
+     */
+    public int size(){ return all.length; }
+
+    /**
+     * Get the handle of a single instruction.
+     * @param index Index of the instruction in the batch.
+     */
+    public Async<T> get(int index){ return all[index]; }
+
+    /**
+     * Get the handles of all instructions in submission order.
+     */
+    public List<Async<T>> getAll(){
+        return new AbstractList<Async<T>>() {
+            @Override
+            public Async<T> get(int index) { return all[index]; }
+
+            @Override
+            public int size() { return all.length; }
+        };
+    }
+
+    /**
+     * Waits for all instructions to finish.
+     * @return Return values in submission order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> awaitAll(){
+        Object[] values = new Object[all.length];
+        for(int i = all.length - 1; i >= 0; --i) values[i] = all[i].await(); // The last one is usually the last to finish, so the rest don't block
+        return (List<T>) Arrays.asList(values);
+    }
+
+    /**
+     * Get a task that completes with the return values of all instructions, in submission order, once all of them have finished.
+     * If any instruction fails or is canceled, the task fails with the cause of the first such instruction in the batch.
+     */
+    public Async<List<T>> whenAll(){
+        Async<List<T>> w = whenAll;
+        if(w != null) return w;
+        synchronized (this){
+            if((w = whenAll) != null) return w;
+            whenAll = w = new Async<List<T>>();
+        }
+        track(all.length - 1);
+        return w;
+    }
+
+    /**
+     * Amount of instructions that have finished, successfully or not.
+     */
+    public int getFinished(){
+        int finished = 0;
+        for(Async<T> a : all) if(a.isDone()) ++finished;
+        return finished;
+    }
+
+    public boolean allFinished(){
+        for(int i = all.length - 1; i >= 0; --i) if(!all[i].isDone()) return false;
+        return true;
+    }
+
+    /**
+     * Cancel all instructions that haven't finished yet.
+     */
+    public void cancelAll(){ for(Async<T> a : all) a.cancel(); }
+
+    /**
+     * Completes {@link #whenAll} once every instruction up to and including the given index has finished, waiting on one unfinished
+     * instruction at a time.
+     */
+    private void track(int from){
+        for(int i = from; i >= 0; --i)
+            if(!all[i].isDone()){
+                final int pending = i;
+                all[i].onDone(new Async.Continuation(null) {
+                    void run(boolean success, Object value, Throwable failure) { track(pending - 1); }
+                    void fail(Throwable failure) { whenAll.finish(null, failure); }
+                });
+                return;
+            }
+        ArrayList<T> values = new ArrayList<T>(all.length);
+        for(Async<T> a : all){
+            if(a.failed){
+                whenAll.finish(null, a.getFailure());
+                return;
+            }
+            values.add(a.ret);
+        }
+        whenAll.finish(values, null);
+    }
+}
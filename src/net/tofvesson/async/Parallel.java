@@ -0,0 +1,270 @@
+package net.tofvesson.async;
+
+import net.tofvesson.collections.BiFunction;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel loops over index ranges. Unlike {@link AsyncBatch}, no task is created per index: ranges are split recursively and each
+ * split runs a whole chunk of indices in a plain loop. Splitting stops early once other workers have enough queued work to steal,
+ * so chunk sizes adapt to how busy the pool is rather than to a fixed guess.
+ * Loops run on {@link AsyncPool#shared()}. A calling thread that is itself a worker of that pool takes part in the work; any other
+ * caller waits for the loop to finish (on platforms without a ForkJoinPool, where loops are split into fixed-size chunks, the caller
+ * always takes part).
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "unchecked"})
+public final class Parallel {
+
+    private static final boolean forkJoin;
+
+    static{
+        boolean b;
+        try{
+            Class.forName("java.util.concurrent.ForkJoinPool");
+            b = true;
+        }catch(Throwable ignored){ b = false; } // Java 6 and older Android versions don't have a ForkJoinPool
+        forkJoin = b;
+    }
+
+    /**
+     * Ranges are never split into chunks smaller than total/(workers*SPLITS).
+     */
+    private static final int SPLITS = 8;
+
+    /**
+     * Amount of surplus queued tasks at which a worker stops splitting and runs its chunk.
+     */
+    private static final int SURPLUS = 3;
+
+    private Parallel(){}
+
+    /**
+     * Runs the body for every index in [0, count) in parallel and waits for all of them to finish.
+     * @param count Amount of indices.
+     * @param body Body to run for each index.
+     */
+    public static void forRange(int count, BatchRunnable body){ forRange(0, count, body); }
+
+    /**
+     * Runs the body for every index in [from, to) in parallel and waits for all of them to finish.
+     * If any invocation throws, the exception is rethrown once all other chunks have stopped.
+     * @param from First index (inclusive).
+     * @param to Last index (exclusive).
+     * @param body Body to run for each index.
+     */
+    public static void forRange(int from, int to, BatchRunnable body){
+        if(to - from <= 0) return;
+        if(forkJoin && ForkJoinSupport.supported()) ForkJoinSupport.forRange(from, to, body);
+        else reduce(from, to, null, adapt(body), null);
+    }
+
+    /**
+     * Folds every index in [0, count) into a value in parallel.
+     * @see #reduce(int, int, Object, BatchReducer, BiFunction)
+     */
+    public static <T> T reduce(int count, T identity, BatchReducer<T> reducer, BiFunction<T, T, T> combiner){ return reduce(0, count, identity, reducer, combiner); }
+
+    /**
+     * Folds every index in [from, to) into a value in parallel. Each chunk folds its indices in ascending order, starting from the
+     * identity; chunk results are then combined in index order, so the combiner only has to be associative.
+     * @param from First index (inclusive).
+     * @param to Last index (exclusive).
+     * @param identity Initial accumulator of every chunk. Must not change the result when combined with another value.
+     * @param reducer Folds an index into an accumulator.
+     * @param combiner Combines the results of two adjacent chunks.
+     * @param <T> Type of result.
+     * @return Combined result or the identity if the range is empty.
+     */
+    public static <T> T reduce(int from, int to, T identity, BatchReducer<T> reducer, BiFunction<T, T, T> combiner){
+        if(to - from <= 0) return identity;
+        if(forkJoin && ForkJoinSupport.supported()) return ForkJoinSupport.reduce(from, to, identity, reducer, combiner);
+
+        // Without fork-join, lanes claim fixed-size chunks from a shared counter instead
+        final int lanes = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+        final Chunks<T> chunks = new Chunks<T>(from, to, grain(to - from, lanes), identity, reducer);
+        Executor executor = AsyncPool.shared();
+        Async<?>[] helpers = new Async<?>[lanes - 1];
+        for(int i = 0; i<helpers.length; ++i) helpers[i] = new Async<Object>(executor, chunks);
+        chunks.run();                                   // Calling thread is a lane too
+        for(Async<?> a : helpers) a.await();
+        if(chunks.failure != null) throw chunks.failure;
+        if(combiner == null) return null;               // Plain loop: nothing to combine
+        T result = (T) chunks.results[0];
+        for(int i = 1; i<chunks.results.length; ++i) result = combiner.apply(result, (T) chunks.results[i]);
+        return result;
+    }
+
+    private static int grain(int count, int workers){ return Math.max(1, count / (workers * SPLITS)); }
+
+    private static <T> BatchReducer<T> adapt(final BatchRunnable body){
+        return new BatchReducer<T>() {
+            public T run(T accumulator, int index) {
+                body.run(index);
+                return accumulator;
+            }
+        };
+    }
+
+    private static <T> T fold(int from, int to, T accumulator, BatchReducer<T> reducer){
+        for(int i = from; i<to; ++i) accumulator = reducer.run(accumulator, i);
+        return accumulator;
+    }
+
+    /**
+     * Fixed-size chunks claimed by competing lanes.
+     */
+    private static final class Chunks<T> implements Runnable {
+        private final int from, to, grain;
+        private final T identity;
+        private final BatchReducer<T> reducer;
+        private final AtomicInteger next = new AtomicInteger();
+        final Object[] results;
+        volatile RuntimeException failure;
+
+        Chunks(int from, int to, int grain, T identity, BatchReducer<T> reducer){
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.identity = identity;
+            this.reducer = reducer;
+            results = new Object[(int) (((long) to - from + grain - 1) / grain)];
+        }
+
+        public void run(){
+            try{
+                for(int c; failure == null && (c = next.getAndIncrement()) < results.length; ){
+                    int lo = from + c * grain;
+                    results[c] = fold(lo, (int) Math.min((long) lo + grain, to), identity, reducer);
+                }
+            }catch(RuntimeException e){
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Isolates all references to fork-join classes so that they are only resolved on platforms that have them.
+     */
+    private static final class ForkJoinSupport {
+
+        static boolean supported(){ return AsyncPool.shared() instanceof ForkJoinPool; }
+
+        static void forRange(int from, int to, BatchRunnable body){
+            ForkJoinPool pool = (ForkJoinPool) AsyncPool.shared();
+            invoke(pool, new ForTask(new Stop(), body, from, to, grain(to - from, pool.getParallelism())));
+        }
+
+        static <T> T reduce(int from, int to, T identity, BatchReducer<T> reducer, BiFunction<T, T, T> combiner){
+            ForkJoinPool pool = (ForkJoinPool) AsyncPool.shared();
+            return invoke(pool, new ReduceTask<T>(new Stop(), identity, reducer, combiner, from, to, grain(to - from, pool.getParallelism())));
+        }
+
+        private static <T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task){
+            // Workers of the pool run the task directly rather than queueing it and blocking on it
+            return ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool ? task.invoke() : pool.invoke(task);
+        }
+
+        static RuntimeException rethrow(Throwable t){
+            if(t instanceof Error) throw (Error) t;
+            return t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Shared by every task of one loop. Once a task fails, the others return at their next index and every task waits for the halves
+     * it forked that were stolen, dropping the ones that weren't, so no invocation outlives the exception.
+     */
+    private static final class Stop {
+        volatile boolean stopped;
+    }
+
+    private static final class ForTask extends RecursiveAction {
+        private final Stop stop;
+        private final BatchRunnable body;
+        private final int from, grain;
+        private int to;
+        private ForTask next;
+
+        ForTask(Stop stop, BatchRunnable body, int from, int to, int grain){
+            this.stop = stop;
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            ForTask forked = null;
+            try{
+                while(to - from > grain && getSurplusQueuedTaskCount() <= SURPLUS){ // Keep the left half, offer the right half for stealing
+                    int mid = (from + to) >>> 1;
+                    ForTask right = new ForTask(stop, body, mid, to, grain);
+                    right.next = forked;
+                    forked = right;
+                    right.fork();
+                    to = mid;
+                }
+                for(int i = from; i<to && !stop.stopped; ++i) body.run(i);
+                for(; forked != null; forked = forked.next)
+                    if(forked.tryUnfork()) forked.invoke(); // Nobody stole it, so run it here
+                    else forked.join();
+            }catch(Throwable t){
+                stop.stopped = true;
+                for(; forked != null; forked = forked.next)
+                    if(!forked.tryUnfork()) forked.quietlyJoin();
+                throw ForkJoinSupport.rethrow(t);
+            }
+        }
+    }
+
+    private static final class ReduceTask<T> extends RecursiveTask<T> {
+        private final Stop stop;
+        private final T identity;
+        private final BatchReducer<T> reducer;
+        private final BiFunction<T, T, T> combiner;
+        private final int from, grain;
+        private int to;
+        private ReduceTask<T> next;
+
+        ReduceTask(Stop stop, T identity, BatchReducer<T> reducer, BiFunction<T, T, T> combiner, int from, int to, int grain){
+            this.stop = stop;
+            this.identity = identity;
+            this.reducer = reducer;
+            this.combiner = combiner;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected T compute() {
+            ReduceTask<T> forked = null;
+            try{
+                while(to - from > grain && getSurplusQueuedTaskCount() <= SURPLUS){
+                    int mid = (from + to) >>> 1;
+                    ReduceTask<T> right = new ReduceTask<T>(stop, identity, reducer, combiner, mid, to, grain);
+                    right.next = forked;
+                    forked = right;
+                    right.fork();
+                    to = mid;
+                }
+                T result = identity;
+                for(int i = from; i<to && !stop.stopped; ++i) result = reducer.run(result, i);
+                for(; forked != null; forked = forked.next) // Most recently forked half is the closest one to the right
+                    result = combiner.apply(result, forked.tryUnfork() ? forked.invoke() : forked.join());
+                return result;
+            }catch(Throwable t){
+                stop.stopped = true;
+                for(; forked != null; forked = forked.next)
+                    if(!forked.tryUnfork()) forked.quietlyJoin();
+                throw ForkJoinSupport.rethrow(t);
+            }
+        }
+    }
+}
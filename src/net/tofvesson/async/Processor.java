@@ -0,0 +1,9 @@
+package net.tofvesson.async;
+
+/**
+ * A stage that is both a {@link Subscriber} and a {@link Publisher}.
+ * @param <T> Type of items consumed.
+ * @param <R> Type of items published.
+ */
+public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+}
@@ -0,0 +1,10 @@
+package net.tofvesson.async;
+
+/**
+ * Provider of a potentially unbounded sequence of items, emitted according to the demand signalled by its subscribers.
+ * Mirrors the Reactive Streams (and java.util.concurrent.Flow) contract; see {@link FlowAdapters} for interop.
+ * @param <T> Type of item.
+ */
+public interface Publisher<T> {
+    void subscribe(Subscriber<? super T> subscriber);
+}
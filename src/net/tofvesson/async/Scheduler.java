@@ -0,0 +1,237 @@
+package net.tofvesson.async;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Delayed and periodic async tasks. All timers share a single {@link TimerWheel} thread, so pending timers don't occupy a thread
+ * each, and scheduling or canceling a timer is O(1). Expired timers are handed to an executor (the default executor unless
+ * specified otherwise) so that timed work never runs on, or holds up, the timer thread.
+ * Canceling the task returned by any of these methods cancels its timer.
+ */
+@SuppressWarnings({"WeakerAccess", "unused", "unchecked"})
+public final class Scheduler {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    private static volatile TimerWheel wheel;
+
+    private Scheduler(){}
+
+    /**
+     * Create a task that completes after the given delay without blocking any thread in the meantime.
+     * @param delay Time to wait.
+     * @param unit Unit of delay.
+     * @return Task that completes with null once the delay has passed.
+     */
+    public static Async<Void> delay(long delay, TimeUnit unit){ return delay(delay, unit, Async.getDefaultExecutor()); }
+
+    /**
+     * Create a task that completes after the given delay without blocking any thread in the meantime.
+     * @param delay Time to wait.
+     * @param unit Unit of delay.
+     * @param executor Executor that completes the task, and thereby runs continuations that have no executor of their own.
+     * @return Task that completes with null once the delay has passed.
+     */
+    public static Async<Void> delay(long delay, TimeUnit unit, final Executor executor){
+        final Async<Void> a = new Async<Void>();
+        arm(a, new TimerWheel.Timeout() {
+            void expire() {
+                hand(executor, a, new Runnable() { public void run() { a.finish(null, null); } });
+            }
+        }, unit.toNanos(delay));
+        return a;
+    }
+
+    /**
+     * Run the given runnable once the given delay has passed.
+     * @param r Runnable to execute as new task.
+     * @param delay Time to wait before running.
+     * @param unit Unit of delay.
+     * @return Task running the runnable. Canceling it before the delay has passed prevents it from running.
+     */
+    public static <T> Async<T> schedule(Runnable r, long delay, TimeUnit unit){ return schedule(Async.getDefaultExecutor(), r, delay, unit); }
+
+    /**
+     * Run the given runnable on the given executor once the given delay has passed.
+     * @param executor Executor to run task on.
+     * @param r Runnable to execute as new task.
+     * @param delay Time to wait before running.
+     * @param unit Unit of delay.
+     * @return Task running the runnable. Canceling it before the delay has passed prevents it from running.
+     */
+    public static <T> Async<T> schedule(final Executor executor, final Runnable r, long delay, TimeUnit unit){
+        final Async<T> a = new Async<T>();
+        final Callable<T> body = new Callable<T>() {
+            public T call() {
+                r.run();
+                return a.ret;                           // Runnables don't return anything, so keep whatever has been posted
+            }
+        };
+        arm(a, new TimerWheel.Timeout() {
+            void expire() {
+                hand(executor, a, new Runnable() { public void run() { a.execute(body); } });
+            }
+        }, unit.toNanos(delay));
+        return a;
+    }
+
+    /**
+     * Run the given runnable periodically. Runs are started at initialDelay, initialDelay+period, initialDelay+2*period and so on.
+     * If a run takes longer than the period, the next run starts late rather than concurrently.
+     * @param r Runnable to run.
+     * @param initialDelay Time to wait before the first run.
+     * @param period Time between the starts of consecutive runs.
+     * @param unit Unit of initialDelay and period.
+     * @return Task that never completes by itself. Canceling it stops all future runs; if a run throws, the task fails.
+     */
+    public static Async<Void> scheduleAtFixedRate(Runnable r, long initialDelay, long period, TimeUnit unit){ return scheduleAtFixedRate(Async.getDefaultExecutor(), r, initialDelay, period, unit); }
+
+    /**
+     * Run the given runnable periodically on the given executor.
+     * @see #scheduleAtFixedRate(Runnable, long, long, TimeUnit)
+     */
+    public static Async<Void> scheduleAtFixedRate(Executor executor, Runnable r, long initialDelay, long period, TimeUnit unit){
+        return periodic(executor, r, unit.toNanos(initialDelay), unit.toNanos(period), true);
+    }
+
+    /**
+     * Run the given runnable repeatedly with the given delay between the end of a run and the start of the next one.
+     * @param r Runnable to run.
+     * @param initialDelay Time to wait before the first run.
+     * @param delay Time to wait after each run.
+     * @param unit Unit of initialDelay and delay.
+     * @return Task that never completes by itself. Canceling it stops all future runs; if a run throws, the task fails.
+     */
+    public static Async<Void> scheduleWithFixedDelay(Runnable r, long initialDelay, long delay, TimeUnit unit){ return scheduleWithFixedDelay(Async.getDefaultExecutor(), r, initialDelay, delay, unit); }
+
+    /**
+     * Run the given runnable repeatedly on the given executor.
+     * @see #scheduleWithFixedDelay(Runnable, long, long, TimeUnit)
+     */
+    public static Async<Void> scheduleWithFixedDelay(Executor executor, Runnable r, long initialDelay, long delay, TimeUnit unit){
+        return periodic(executor, r, unit.toNanos(initialDelay), unit.toNanos(delay), false);
+    }
+
+    /**
+     * Create a task that completes with the outcome of the given task, or fails with a {@link TimeoutException} if the given task
+     * doesn't finish in time.
+     * @param task Task to time.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of timeout.
+     * @param cancelOnTimeout Whether or not to cancel the given task when it times out.
+     * @param <T> Return type of task.
+     * @return Dependent task.
+     */
+    public static <T> Async<T> timeout(final Async<T> task, long timeout, TimeUnit unit, final boolean cancelOnTimeout){
+        final Async<T> dep = new Async<T>();
+        arm(dep, new TimerWheel.Timeout() {
+            void expire() {
+                hand(Async.getDefaultExecutor(), dep, new Runnable() {
+                    public void run() { if(dep.finish(null, new TimeoutException()) && cancelOnTimeout) task.cancel(); }
+                });
+            }
+        }, unit.toNanos(timeout));
+        task.onDone(new Async.Continuation(null) {
+            void run(boolean success, Object value, Throwable failure) { dep.finish((T) value, failure); }
+            void fail(Throwable failure) { dep.finish(null, failure); }
+        });
+        return dep;
+    }
+
+    /**
+     * Get the amount of timers that have neither expired nor been canceled.
+     * @return Pending timer count.
+     */
+    public static int pending(){ return wheel == null ? 0 : wheel.pending(); }
+
+    private static TimerWheel wheel(){
+        TimerWheel w = wheel;
+        if(w == null)
+            synchronized (Scheduler.class){
+                if((w = wheel) == null) wheel = w = new TimerWheel(TICK, "AsyncScheduler");
+            }
+        return w;
+    }
+
+    /**
+     * Schedule the given timer and cancel it as soon as the given task is done, e.g. because it was canceled.
+     */
+    private static void arm(Async<?> task, final TimerWheel.Timeout t, long nanos){
+        wheel().schedule(t, nanos);
+        task.onDone(new Async.Continuation(null) {
+            void run(boolean success, Object value, Throwable failure) { t.cancel(); }
+            void fail(Throwable failure) { t.cancel(); }
+        });
+    }
+
+    /**
+     * Hand work over from the timer thread. If the executor refuses it, the task fails instead.
+     */
+    private static void hand(Executor executor, Async<?> task, Runnable r){
+        try{ executor.execute(r); }
+        catch(Throwable t){ task.finish(null, t); }
+    }
+
+    private static Async<Void> periodic(Executor executor, Runnable r, long initialDelay, long period, boolean fixedRate){
+        if(period <= 0) throw new IllegalArgumentException("Period must be a positive, non-zero value!");
+        final Periodic p = new Periodic(executor, r, period, fixedRate);
+        p.next = System.nanoTime() + initialDelay;
+        p.task.onDone(new Async.Continuation(null) {
+            void run(boolean success, Object value, Throwable failure) { p.cancel(); }
+            void fail(Throwable failure) { p.cancel(); }
+        });
+        p.arm(initialDelay);
+        return p.task;
+    }
+
+    /**
+     * A recurring run. Each run gets its own timer, which is armed once the previous run has finished.
+     */
+    private static final class Periodic implements Runnable {
+        final Async<Void> task = new Async<Void>();
+        private final Executor executor;
+        private final Runnable r;
+        private final long period;
+        private final boolean fixedRate;
+        private volatile TimerWheel.Timeout timer;
+        long next;
+
+        Periodic(Executor executor, Runnable r, long period, boolean fixedRate){
+            this.executor = executor;
+            this.r = r;
+            this.period = period;
+            this.fixedRate = fixedRate;
+        }
+
+        void arm(long delay){
+            TimerWheel.Timeout t = new TimerWheel.Timeout() {
+                void expire() { hand(executor, task, Periodic.this); }
+            };
+            timer = t;
+            wheel().schedule(t, delay);
+            if(task.isDone()) t.cancel();               // Canceled before the new timer was visible
+        }
+
+        void cancel(){
+            TimerWheel.Timeout t = timer;
+            if(t != null) t.cancel();
+        }
+
+        public void run(){
+            if(task.isDone()) return;
+            try{
+                r.run();
+            }catch(Throwable t){
+                task.finish(null, t);
+                return;
+            }
+            if(fixedRate){
+                next += period;
+                arm(next - System.nanoTime());          // Late runs catch up immediately
+            }
+            else arm(period);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package net.tofvesson.async;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Runs a batch of similar async instructions with bounded parallelism. Rather than creating a task per instruction, a fixed amount
+ * of runners claim instruction indices one at a time, so wide batches use a finite amount of threads and memory proportional to
+ * the batch size. The batch owns its runners: canceling it or a fail-fast failure stops them all.
+ * Instructions post their results through {@link Async#postReturn(Object)} on {@link Async#current()} just like with
+ * {@link AsyncBatch}. Results can be consumed in completion order, either through a {@link Listener} or by iterating the batch.
+ * @param <T> Return type of instructions.
+ */
+@SuppressWarnings({"unused", "unchecked", "WeakerAccess"})
+public class StructuredBatch<T> implements Iterable<StructuredBatch.Completion<T>> {
+
+    /**
+     * How a batch reacts to failing instructions.
+     */
+    public enum ErrorPolicy {
+        /**
+         * Stop claiming new instructions and cancel running ones as soon as one fails.
+         */
+        FAIL_FAST,
+
+        /**
+         * Run every instruction regardless of failures and report all failures at the end.
+         */
+        COLLECT_ALL
+    }
+
+    /**
+     * Receives the outcome of every instruction as soon as it finishes. Called from the runner that ran the instruction.
+     * @param <T> Return type of instructions.
+     */
+    public interface Listener<T> {
+        void onComplete(int index, T value, Throwable failure);
+    }
+
+    private final BatchRunnable body;
+    private final ErrorPolicy policy;
+    private final Listener<? super T> listener;
+
+    /**
+     * Outcome of every instruction by index: the posted value, or a {@link Failure}.
+     */
+    private final Object[] results;
+
+    /**
+     * Instruction indices in completion order, offset by one so that zero means "not published yet".
+     */
+    private final AtomicIntegerArray order;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger active;
+    private final Async<?>[] runners;
+    private final Async<Void> done = new Async<Void>();
+
+    private volatile boolean stopped = false;
+    private volatile int waiting = 0;
+    private final Object lock = new Object();
+
+    /**
+     * Creates a fail-fast batch running on the default executor.
+     * @param count Amount of instructions.
+     * @param r Instruction to run. Passed the index of the instruction in the batch.
+     * @param maxParallelism Maximum amount of instructions running at once.
+     */
+    public StructuredBatch(int count, BatchRunnable r, int maxParallelism){ this(count, r, maxParallelism, ErrorPolicy.FAIL_FAST); }
+
+    /**
+     * Creates a batch running on the default executor.
+     * @param count Amount of instructions.
+     * @param r Instruction to run. Passed the index of the instruction in the batch.
+     * @param maxParallelism Maximum amount of instructions running at once.
+     * @param policy How to react to failing instructions.
+     */
+    public StructuredBatch(int count, BatchRunnable r, int maxParallelism, ErrorPolicy policy){ this(count, r, maxParallelism, policy, Async.getDefaultExecutor(), null); }
+
+    /**
+     * Creates a batch.
+     * @param count Amount of instructions.
+     * @param r Instruction to run. Passed the index of the instruction in the batch.
+     * @param maxParallelism Maximum amount of instructions running at once.
+     * @param policy How to react to failing instructions.
+     * @param executor Executor to run instructions on.
+     * @param listener Listener to notify about every finished instruction or null.
+     */
+    public StructuredBatch(int count, BatchRunnable r, int maxParallelism, ErrorPolicy policy, Executor executor, Listener<? super T> listener){
+        if(count < 0) throw new IllegalArgumentException("Batch size must be a positive value!");
+        if(maxParallelism <= 0) throw new IllegalArgumentException("Parallelism must be a positive, non-zero value!");
+        body = r;
+        this.policy = policy;
+        this.listener = listener;
+        results = new Object[count];
+        order = new AtomicIntegerArray(count);
+        int lanes = Math.min(count, maxParallelism);
+        active = new AtomicInteger(lanes);
+        runners = new Async<?>[lanes];
+        if(lanes == 0) done.finish(null, null);
+        final Callable<T> loop = new Callable<T>() {
+            public T call() {
+                runInstructions();
+                return null;
+            }
+        };
+        for(int i = 0; i<lanes; ++i){
+            final Async<T> lane = new Async<T>();
+            runners[i] = lane;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try{
+                        lane.execute(loop);             // Skips the loop if the batch was canceled before this lane started
+                    }finally{
+                        if(active.decrementAndGet() == 0){
+                            done.finish(null, null);
+                            signal();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for all instructions to finish (or for the batch to stop, if it fails fast).
+     * @return Results in index order. Instructions that failed or never ran have a null result.
+     * @throws BatchException If any instruction failed.
+     */
+    public List<T> awaitAll(){
+        done.await();
+        if(failed.get() != 0) throw new BatchException(getFailures());
+        List<T> list = new ArrayList<T>(results.length);
+        for(Object o : results) list.add((T) o);
+        return list;
+    }
+
+    /**
+     * Get the result of a finished instruction.
+     * @param index Index of instruction.
+     * @return Posted value or null if the instruction hasn't finished or failed.
+     */
+    public T get(int index){
+        Object o = results[index];
+        return o instanceof Failure ? null : (T) o;
+    }
+
+    /**
+     * Get all failures so far.
+     * @return Map of instruction index to the exception it threw.
+     */
+    public TreeMap<Integer, Throwable> getFailures(){
+        TreeMap<Integer, Throwable> map = new TreeMap<Integer, Throwable>();
+        if(failed.get() != 0)
+            for(int i = 0, end = completed.get(); i<end; ++i){
+                int idx = awaitPublished(i);
+                if(results[idx] instanceof Failure) map.put(idx, ((Failure) results[idx]).cause);
+            }
+        return map;
+    }
+
+    public int getFinished(){ return completed.get(); }
+    public int size(){ return results.length; }
+    public boolean allFinished(){ return done.isDone(); }
+
+    /**
+     * Stops claiming instructions and cancels the running ones.
+     */
+    public void cancelAll(){
+        stopped = true;
+        for(Async<?> a : runners) if(a != null) a.cancel(); // A fail-fast lane may get here before all lanes are created
+    }
+
+    /**
+     * Iterates over finished instructions in completion order. Blocks while waiting for the next instruction to finish.
+     */
+    public Iterator<Completion<T>> iterator(){
+        return new Iterator<Completion<T>>() {
+            private int consumed = 0;
+
+            public boolean hasNext() {
+                while(consumed >= completed.get()){
+                    if(done.isDone()) return consumed < completed.get();
+                    await(new Condition(){ boolean met(){ return consumed < completed.get() || done.isDone(); } });
+                }
+                return true;
+            }
+
+            public Completion<T> next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                int idx = awaitPublished(consumed++);
+                Object o = results[idx];
+                return o instanceof Failure ? new Completion<T>(idx, null, ((Failure) o).cause) : new Completion<T>(idx, (T) o, null);
+            }
+
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    private void runInstructions(){
+        Async<T> self = Async.current();
+        for(int i; !stopped && !self.isCancelled() && (i = next.getAndIncrement()) < results.length; ){
+            self.ret = null;                        // Each instruction posts its own result
+            self.ovw = true;
+            Throwable failure = null;
+            try{
+                body.run(i);
+            }catch(Throwable t){
+                failure = t;
+            }
+            publish(i, failure == null ? self.ret : new Failure(failure));
+            if(listener != null) listener.onComplete(i, failure == null ? self.ret : null, failure);
+            if(failure != null && policy == ErrorPolicy.FAIL_FAST) cancelAll();
+        }
+    }
+
+    private void publish(int index, Object outcome){
+        results[index] = outcome;
+        if(outcome instanceof Failure) failed.incrementAndGet();
+        order.set(completed.getAndIncrement(), index + 1); // Volatile write publishes the result as well
+        signal();
+    }
+
+    /**
+     * Wait for the instruction that completed in the given position to be published.
+     * @return Index of instruction.
+     */
+    private int awaitPublished(final int position){
+        int idx;
+        while((idx = order.get(position)) == 0) await(new Condition(){ boolean met(){ return order.get(position) != 0; } });
+        return idx - 1;
+    }
+
+    private void await(Condition c){
+        synchronized (lock){
+            ++waiting;
+            try{
+                while(!c.met()) lock.wait();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for batch", e);
+            }finally{
+                --waiting;
+            }
+        }
+    }
+
+    private void signal(){
+        if(waiting != 0)
+            synchronized (lock){ lock.notifyAll(); }
+    }
+
+    private static abstract class Condition {
+        abstract boolean met();
+    }
+
+    private static final class Failure {
+        final Throwable cause;
+        Failure(Throwable cause){ this.cause = cause; }
+    }
+
+    /**
+     * Outcome of a finished instruction.
+     * @param <T> Return type of instruction.
+     */
+    public static final class Completion<T> {
+        private final int index;
+        private final T value;
+        private final Throwable failure;
+
+        Completion(int index, T value, Throwable failure){
+            this.index = index;
+            this.value = value;
+            this.failure = failure;
+        }
+
+        public int getIndex(){ return index; }
+        public T getValue(){ return value; }
+        public Throwable getFailure(){ return failure; }
+        public boolean isFailed(){ return failure != null; }
+    }
+}
@@ -0,0 +1,13 @@
+package net.tofvesson.async;
+
+/**
+ * Receiver of items from a {@link Publisher}. Signals are never sent concurrently, and {@link #onNext(Object)} is never called
+ * more often than has been requested through the {@link Subscription}.
+ * @param <T> Type of item.
+ */
+public interface Subscriber<T> {
+    void onSubscribe(Subscription subscription);
+    void onNext(T item);
+    void onError(Throwable failure);
+    void onComplete();
+}
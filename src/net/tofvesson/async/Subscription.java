@@ -0,0 +1,17 @@
+package net.tofvesson.async;
+
+/**
+ * Link between a {@link Publisher} and one of its {@link Subscriber}s through which the subscriber signals demand.
+ */
+public interface Subscription {
+    /**
+     * Request up to n more items. Demand is cumulative; requesting a non-positive amount fails the subscription.
+     * @param n Amount of items.
+     */
+    void request(long n);
+
+    /**
+     * Stop receiving items. Items may still arrive for a short while after canceling.
+     */
+    void cancel();
+}
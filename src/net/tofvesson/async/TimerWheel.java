@@ -0,0 +1,194 @@
+package net.tofvesson.async;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timer wheel driven by a single thread. Every level has 256 slots and each level's slot spans a full revolution of
+ * the level below it, so five levels of one millisecond ticks cover over 30 years. Timers are kept in doubly-linked slot lists
+ * and move down a level at a time as their deadline approaches, which makes scheduling and canceling O(1) no matter how many
+ * timers are pending.
+ * The wheel is only ever touched by its own thread: other threads hand new and canceled timers over through lock-free queues.
+ * The thread doesn't tick while there are no timers.
+ */
+final class TimerWheel implements Runnable {
+
+    private static final int BITS = 8, SLOTS = 1 << BITS, MASK = SLOTS - 1, LEVELS = 5;
+
+    /**
+     * Longer delays are clamped. Such timers are re-checked when they come due and rescheduled if they are still early.
+     */
+    private static final long MAX_DELAY_TICKS = (1L << (BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>(), removed = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread thread;
+
+    /**
+     * Last processed tick and amount of linked timers. Owned by the wheel thread.
+     */
+    private long tick;
+    private int linked;
+
+    /**
+     * Set by the wheel thread before it parks indefinitely so that producers know to wake it up.
+     */
+    private volatile boolean idle = false;
+
+    TimerWheel(long tickNanos, String name){
+        this.tickNanos = tickNanos;
+        for(Timeout[] level : slots)
+            for(int i = 0; i<SLOTS; ++i){
+                Timeout sentinel = new Timeout() { void expire() {} };
+                sentinel.prev = sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        thread = new Thread(this, name);
+        thread.setDaemon(true);     // Ensure that process dies with program
+        thread.start();
+    }
+
+    /**
+     * Schedule a timeout. A timeout may only be scheduled once.
+     * @param t Timeout to schedule.
+     * @param delayNanos Nanoseconds until the timeout expires.
+     */
+    void schedule(Timeout t, long delayNanos){
+        long elapsed = System.nanoTime() - origin;
+        long ticks = Math.min(Math.max(delayNanos, 0) / tickNanos + 1, MAX_DELAY_TICKS); // Round up so that timeouts never expire early
+        t.wheel = this;
+        t.deadline = elapsed / tickNanos + ticks;
+        pending.incrementAndGet();
+        added.offer(t);
+        if(idle) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Get the amount of timeouts that have neither expired nor been canceled.
+     */
+    int pending(){ return pending.get(); }
+
+    private void cancelled(Timeout t){
+        pending.decrementAndGet();
+        removed.offer(t);                               // Unlinked by the wheel thread so that its memory is released promptly
+    }
+
+    public void run(){
+        for(;;){
+            long now = (System.nanoTime() - origin) / tickNanos;
+            for(Timeout t; (t = removed.poll()) != null; ) unlink(t);
+            if(linked == 0) tick = now;                 // Nothing can expire in between, so skip straight ahead
+            for(Timeout t; (t = added.poll()) != null; ) if(t.status == Timeout.WAITING) insert(t);
+            while(tick < now) advance();
+            if(linked == 0){
+                idle = true;                            // Announce that we're about to park...
+                if(added.isEmpty()) LockSupport.park(this); // ...and re-check so that a concurrent schedule can't be missed
+                idle = false;
+            }
+            else LockSupport.parkNanos(this, (tick + 1) * tickNanos - (System.nanoTime() - origin));
+        }
+    }
+
+    private void advance(){
+        long t = ++tick;
+        if((t & MASK) == 0) cascade(1, t);
+        expire(slots[0][(int) (t & MASK)]);
+    }
+
+    /**
+     * Move the timeouts of the slot that the given level just reached down to lower levels.
+     */
+    private void cascade(int level, long t){
+        int index = (int) ((t >>> (BITS * level)) & MASK);
+        if(index == 0 && level + 1 < LEVELS) cascade(level + 1, t);
+        Timeout sentinel = slots[level][index];
+        Timeout first = sentinel.next;
+        detach(sentinel);
+        while(first != sentinel){
+            Timeout next = first.next;
+            first.prev = first.next = null;
+            --linked;
+            insert(first);
+            first = next;
+        }
+    }
+
+    private void expire(Timeout sentinel){
+        Timeout first = sentinel.next;
+        detach(sentinel);
+        while(first != sentinel){
+            Timeout next = first.next;
+            first.prev = first.next = null;
+            --linked;
+            if(first.deadline > tick) insert(first);    // Clamped timeout that isn't due yet
+            else fire(first);
+            first = next;
+        }
+    }
+
+    private void insert(Timeout t){
+        long delta = t.deadline - tick;
+        if(delta <= 0){
+            fire(t);
+            return;
+        }
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) ++level;
+        Timeout sentinel = slots[level][(int) ((t.deadline >>> (BITS * level)) & MASK)];
+        t.next = sentinel.next;
+        t.prev = sentinel;
+        sentinel.next.prev = t;
+        sentinel.next = t;
+        ++linked;
+    }
+
+    private void unlink(Timeout t){
+        if(t.prev == null) return;                      // Not linked (anymore)
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+        --linked;
+    }
+
+    /**
+     * Empty a slot. Its former contents can still be walked from the first timeout until the sentinel is reached.
+     */
+    private static void detach(Timeout sentinel){ sentinel.prev = sentinel.next = sentinel; }
+
+    private void fire(Timeout t){
+        if(!Timeout.state.compareAndSet(t, Timeout.WAITING, Timeout.EXPIRED)) return; // Lost to a cancellation
+        pending.decrementAndGet();
+        try{ t.expire(); }
+        catch(Throwable ignored){}                      // Expiration handlers must not bring the wheel down
+    }
+
+    /**
+     * A pending timer. Expiration handlers are called from the wheel thread, so they should only hand work over to other threads.
+     */
+    static abstract class Timeout {
+        static final int WAITING = 0, EXPIRED = 1, CANCELLED = 2;
+        static final AtomicIntegerFieldUpdater<Timeout> state = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "status");
+
+        volatile int status = WAITING;
+        TimerWheel wheel;
+        long deadline;
+        Timeout prev, next;
+
+        abstract void expire();
+
+        /**
+         * Cancel the timeout.
+         * @return True if the timeout was pending and will never expire.
+         */
+        boolean cancel(){
+            if(!state.compareAndSet(this, WAITING, CANCELLED)) return false;
+            if(wheel != null) wheel.cancelled(this);
+            return true;
+        }
+    }
+}
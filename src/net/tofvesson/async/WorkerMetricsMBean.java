@@ -0,0 +1,27 @@
+package net.tofvesson.async;
+
+/**
+ * Management interface of a single {@link WorkerThread}. Registered for every worker that runs while metrics are enabled once
+ * {@link AsyncMetrics#registerMBeans()} has been called.
+ */
+@SuppressWarnings("unused")
+public interface WorkerMetricsMBean {
+    String getName();
+    long getProcessed();
+    int getQueueDepth();
+
+    /**
+     * Fraction of time spent running instructions rather than idling since metrics started tracking the worker.
+     */
+    double getUtilisation();
+
+    /**
+     * Amount of instructions waiting in each priority lane.
+     */
+    int[] getLaneQueueDepths();
+
+    /**
+     * 99th percentile of the time instructions of each priority lane waited before they were started, in nanoseconds.
+     */
+    long[] getLaneWaitTimesP99();
+}
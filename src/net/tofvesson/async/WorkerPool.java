@@ -0,0 +1,316 @@
+package net.tofvesson.async;
+
+import net.tofvesson.reflection.Invoker;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pool of worker threads accepting instructions the same way a {@link WorkerThread} does.
+ * Instructions are spread over per-worker deques and idle workers steal from the back of busy workers' deques, so the load stays
+ * balanced without having to shard work by hand. Instructions given the same affinity key always run on the same worker, which
+ * keeps the thread-confinement guarantee of a single WorkerThread for everything sharing that key.
+ * The pool grows towards its maximum size while instructions queue up and shrinks back to its minimum size when workers stay idle.
+ * Requires Java 7 or later.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class WorkerPool {
+
+    /**
+     * Amount of queued instructions per worker at which another worker is started.
+     */
+    private static final int GROW_THRESHOLD = 2;
+
+    /**
+     * Instructions pushed through the ID-based API that haven't been popped yet.
+     */
+    protected final Map<Long, Async<?>> pending = new ConcurrentHashMap<Long, Async<?>>();
+    protected final AtomicBoolean alive = new AtomicBoolean(true);
+
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Free slots in the shared queues. Producers block on this when the pool is saturated.
+     */
+    private final Semaphore slots;
+    private final int queueSize, maxWorkers;
+    private final long keepAlive;
+
+    /**
+     * Workers that never retire. Affinity keys are mapped onto these so that a key always resolves to the same thread.
+     */
+    private final PoolWorker[] core;
+    private volatile PoolWorker[] workers;
+
+    /**
+     * Create a WorkerPool whose surplus workers retire after 60 seconds of idling.
+     * @param minWorkers Amount of workers that are always running.
+     * @param maxWorkers Maximum amount of workers.
+     * @param queueSize Maximum amount of instructions to be queued.
+     */
+    public WorkerPool(int minWorkers, int maxWorkers, int queueSize){ this(minWorkers, maxWorkers, queueSize, 60, TimeUnit.SECONDS); }
+
+    /**
+     * Create a WorkerPool.
+     * @param minWorkers Amount of workers that are always running.
+     * @param maxWorkers Maximum amount of workers.
+     * @param queueSize Maximum amount of instructions to be queued.
+     * @param keepAlive Time a surplus worker may idle before it retires.
+     * @param unit Unit of keepAlive.
+     */
+    public WorkerPool(int minWorkers, int maxWorkers, int queueSize, long keepAlive, TimeUnit unit){
+        if(minWorkers <= 0 || maxWorkers < minWorkers) throw new IllegalArgumentException("Worker counts must satisfy 0 < minWorkers <= maxWorkers!");
+        if(queueSize <= 0) throw new IllegalArgumentException("Queue size must be a positive, non-zero value!");
+        this.queueSize = queueSize;
+        this.maxWorkers = maxWorkers;
+        this.keepAlive = unit.toNanos(keepAlive);
+        slots = new Semaphore(queueSize);
+        core = new PoolWorker[minWorkers];
+        for(int i = 0; i<minWorkers; ++i) core[i] = new PoolWorker(this, true);
+        workers = core.clone();
+        for(PoolWorker w : core) w.start();
+    }
+
+    /**
+     * Add a new instruction for any worker in the pool. If the pool is saturated, this blocks until a worker has made room for it.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @param <T> Return type of method.
+     * @return Handle that completes with the return value of the method once a worker has invoked it.
+     */
+    public <T> Async<T> submit(Object invokeOn, Method m, Object... params){
+        WorkerThread.Invocation<T> i = new WorkerThread.Invocation<T>(invokeOn, Invoker.of(m), params);
+        if(!getAlive()){                                // Stopped workers would never make room for it
+            i.discard();
+            return i;
+        }
+        slots.acquireUninterruptibly();                 // Apply backpressure rather than failing when the pool is saturated
+        queued.incrementAndGet();
+        PoolWorker w = offer(i);
+        if(getAlive()) grow();
+        else if(w.deque.remove(i)){                     // Pool stopped before any worker could see this instruction
+            queued.decrementAndGet();
+            slots.release();
+            i.discard();
+        }                                               // Otherwise a worker took it and will run or discard it
+        return i;
+    }
+
+    /**
+     * Add a new instruction for the worker that the given key is bound to. All instructions with equal keys run on the same thread,
+     * in the order they were submitted, and are never stolen by other workers.
+     * @param affinityKey Key deciding which worker runs the instruction. If null, any worker may run it.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @param <T> Return type of method.
+     * @return Handle that completes with the return value of the method once the worker has invoked it.
+     */
+    public <T> Async<T> submitAffine(Object affinityKey, Object invokeOn, Method m, Object... params){
+        if(affinityKey == null) return submit(invokeOn, m, params);
+        int h = affinityKey.hashCode();
+        h ^= h >>> 16;                                  // Spread high bits so that keys differing only there don't collide
+        return core[(h & 0x7FFFFFFF) % core.length].submit(invokeOn, m, params);
+    }
+
+    /**
+     * Add a new instruction for any worker in the pool. If the pool is saturated, this blocks until a worker has made room for it.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @return A UID corresponding to the queued instruction.
+     */
+    public long push(Object invokeOn, Method m, Object... params){ return track(submit(invokeOn, m, params)); }
+
+    /**
+     * Add a new instruction for the worker that the given key is bound to.
+     * @param affinityKey Key deciding which worker runs the instruction. If null, any worker may run it.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @return A UID corresponding to the queued instruction.
+     * @see #submitAffine(Object, Object, Method, Object...)
+     */
+    public long pushAffine(Object affinityKey, Object invokeOn, Method m, Object... params){ return track(submitAffine(affinityKey, invokeOn, m, params)); }
+
+    /**
+     * Waits for instruction to be processed and return value to be acquired.
+     * @param id UID of the supplied instruction.
+     * @return Return value from instruction called in worker thread.
+     */
+    public Object pop(long id){
+        if(!getAlive()) throw new IllegalStateException("Cannot pop value from inactive pool");
+        Thread t = Thread.currentThread();
+        if(t instanceof PoolWorker && ((PoolWorker) t).pool == this) throw new RuntimeException("Attempting to await result in worker thread! This may cause the pool to lock.");
+        Async<?> a = pending.remove(id);
+        return a == null ? null : a.await();
+    }
+
+    /**
+     * Get the amount of workers currently in the pool.
+     * @return Worker count.
+     */
+    public int size(){ return workers.length; }
+
+    /**
+     * Get the amount of instructions waiting in the shared queues. Instructions bound to an affinity key aren't counted.
+     * @return Queue depth.
+     */
+    public int queued(){ return queued.get(); }
+
+    /**
+     * Lets all workers finish their current method invocation before stopping them. Instructions that haven't started are canceled.
+     */
+    public synchronized void stopGraceful(){
+        alive.set(false);
+        for(PoolWorker w : workers) w.stopGraceful();
+    }
+
+    /**
+     * Interrupts all workers to stop them as soon as possible. Instructions that haven't started are canceled.
+     */
+    public synchronized void stopForced(){
+        alive.set(false);
+        for(PoolWorker w : workers) w.stopForced();
+    }
+
+    protected final boolean getAlive(){ return alive.get(); }
+
+    private long track(Async<?> a){
+        long id = ids.incrementAndGet();
+        pending.put(id, a);
+        return id;
+    }
+
+    /**
+     * Hand an instruction to a worker, preferring one that is idle.
+     * @return Worker whose deque the instruction was added to.
+     */
+    private PoolWorker offer(WorkerThread.Invocation<?> i){
+        for(;;){
+            PoolWorker[] ws = workers;
+            int start = next.getAndIncrement() & 0x7FFFFFFF;
+            PoolWorker w = ws[start % ws.length];
+            for(int j = 0; j<ws.length; ++j)
+                if(ws[(start + j) % ws.length].isIdle()){
+                    w = ws[(start + j) % ws.length];
+                    break;
+                }
+            w.deque.offer(i);
+            w.signal();
+            if(!w.retired || !w.deque.remove(i)) return w; // Retired workers drain their deque once more, so only retry if it's still there
+        }
+    }
+
+    /**
+     * Start another worker if instructions are piling up.
+     */
+    private void grow(){
+        if(workers.length >= maxWorkers || queued.get() <= workers.length * GROW_THRESHOLD) return;
+        synchronized (this){
+            PoolWorker[] ws = workers;
+            if(ws.length >= maxWorkers || !getAlive()) return;
+            PoolWorker w = new PoolWorker(this, false);
+            PoolWorker[] n = new PoolWorker[ws.length + 1];
+            System.arraycopy(ws, 0, n, 0, ws.length);
+            n[ws.length] = w;
+            workers = n;
+            w.start();
+        }
+    }
+
+    /**
+     * Take the next instruction for the given worker: from the front of its own deque or, failing that, from the back of another's.
+     */
+    private WorkerThread.Invocation<?> take(PoolWorker w){
+        WorkerThread.Invocation<?> q = w.deque.pollFirst();
+        if(q == null){
+            PoolWorker[] ws = workers;
+            int start = next.get() & 0x7FFFFFFF;
+            for(int j = 0; j<ws.length && q == null; ++j){
+                PoolWorker victim = ws[(start + j) % ws.length];
+                if(victim != w) q = victim.deque.pollLast();
+            }
+        }
+        if(q != null) taken(w);
+        return q;
+    }
+
+    private void taken(PoolWorker w){
+        queued.decrementAndGet();
+        slots.release();                                // Let a blocked producer in
+        w.lastActive = System.nanoTime();
+    }
+
+    /**
+     * Remove a surplus worker from the pool.
+     * @return True if the worker was removed and should stop.
+     */
+    private synchronized boolean retire(PoolWorker w){
+        PoolWorker[] ws = workers;
+        if(ws.length <= core.length || !getAlive()) return false;
+        PoolWorker[] n = new PoolWorker[ws.length - 1];
+        for(int i = 0, j = 0; i<ws.length; ++i)
+            if(ws[i] != w){
+                if(j == n.length) return false;         // Not part of the pool
+                n[j++] = ws[i];
+            }
+        workers = n;
+        w.retired = true;
+        return true;
+    }
+
+    /**
+     * A worker that falls back to the pool's shared deques whenever its own queue of affine instructions is empty.
+     */
+    static final class PoolWorker extends WorkerThread {
+        final ConcurrentLinkedDeque<Invocation<?>> deque = new ConcurrentLinkedDeque<Invocation<?>>();
+        final WorkerPool pool;
+        private final boolean core;
+        volatile boolean retired = false;
+        long lastActive = System.nanoTime();
+
+        PoolWorker(WorkerPool pool, boolean core){
+            super(pool.queueSize);
+            this.pool = pool;
+            this.core = core;
+            setName("WorkerPool-worker-"+pool.threadCount.incrementAndGet());
+            setDaemon(true);    // Ensure that process dies with program
+        }
+
+        @Override
+        public void run(){
+            super.run();
+            for(Invocation<?> q; (q = deque.poll()) != null; ){ // Finish what was handed over before retiring, or discard it if the pool stopped
+                pool.taken(this);
+                if(getAlive()) q.run();
+                else q.discard();
+            }
+        }
+
+        @Override
+        int queueDepth(){ return super.queueDepth() + deque.size(); }
+
+        @Override
+        Invocation<?> steal(){ return pool.take(this); }
+
+        @Override
+        boolean park(){
+            if(core) return super.park();
+            LockSupport.parkNanos(this, pool.keepAlive);
+            return System.nanoTime() - lastActive < pool.keepAlive || !pool.retire(this);
+        }
+    }
+}
@@ -1,72 +1,361 @@
 package net.tofvesson.async;
 
-import net.tofvesson.collections.Pair;
-import net.tofvesson.reflection.SafeReflection;
+import net.tofvesson.reflection.Invoker;
+
 import java.lang.reflect.Method;
-import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A thread tasked with accepting multiple instructions. This is useful for people who don't want to constantly create new threads for heavy work.
  * Also good if the fields in an object instantiated in this thread aren't volatile.
+ * Instructions run in submission order unless the worker is given priority lanes (see {@link #WorkerThread(int, int)}) or an
+ * instruction is given a deadline (see {@link #submit(int, long, TimeUnit, Object, Method, Object...)}).
  */
 public class WorkerThread extends Thread {
 
-    protected final List<Long> ids = new ArrayList<Long>();
-    protected final Queue<Pair<Long, Pair<Method, Pair<Object, Object>>>> queue;
-    protected final Map<Long, Object> output = new HashMap<Long, Object>();
+    /**
+     * What a worker does with an instruction whose deadline passed before it could be started.
+     */
+    public enum ExpiredPolicy {
+        /**
+         * Run it anyway. Overdue instructions are run ahead of everything else.
+         */
+        RUN,
+
+        /**
+         * Cancel it without running it.
+         */
+        DROP,
+
+        /**
+         * Fail it with a {@link TimeoutException} without running it.
+         */
+        FAIL
+    }
+
+    /**
+     * Instructions pushed through the ID-based API that haven't been popped yet.
+     */
+    protected final Map<Long, Async<?>> pending = new ConcurrentHashMap<Long, Async<?>>();
     protected final AtomicBoolean alive = new AtomicBoolean(true);
 
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Multi-producer, single-consumer queue of instructions. Instructions are linked directly to each other, so queueing doesn't allocate.
+     * Producers append at the tail; the worker consumes from the head, which is always a node that has already been consumed.
+     */
+    private final AtomicReference<Invocation<?>> tail;
+    private Invocation<?> head;
+
+    /**
+     * Free slots in the queue. Producers block on this when the queue is full.
+     */
+    private final Semaphore slots;
+    private final int capacity;
+
+    /**
+     * Slots freed by the worker are handed back to producers in batches of this size, or as soon as the queue runs dry.
+     */
+    private final int releaseBatch;
+
+    /**
+     * Instructions taken by the worker whose slots haven't been handed back yet. Owned by the worker.
+     */
+    private int consumed = 0;
+
+    /**
+     * Set by the worker before it parks so that producers know to wake it up.
+     */
+    private volatile boolean idle = false;
+
+    /**
+     * Metrics of this worker. Created by the worker once it runs while metrics are enabled.
+     */
+    private AsyncMetrics.Worker metrics;
+
+    private final int laneCount;
+
+    /**
+     * Instructions sorted by priority and deadline. Created once the worker is constructed with several lanes or first takes an
+     * instruction with a deadline; from then on every instruction is sorted into a lane as the worker takes it from the queue.
+     * The lanes are owned by the worker, apart from their statistics.
+     */
+    private volatile Lane[] lanes;
+
+    private volatile ExpiredPolicy expiredPolicy = ExpiredPolicy.RUN;
+    private volatile long starvationNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
     /**
      * Create a WorkerThread.
      * @param queueSize Maximum amount of instructions to be queued.
      */
-    public WorkerThread(int queueSize){
+    public WorkerThread(int queueSize){ this(queueSize, 1); }
+
+    /**
+     * Create a WorkerThread with priority lanes. Instructions in lower lanes run before those in higher lanes, except that an
+     * instruction that has waited longer than the starvation threshold (see {@link #setStarvationThreshold(long, TimeUnit)}) is
+     * run ahead of higher lanes. Within a lane, instructions with deadlines run earliest deadline first, ahead of instructions
+     * without deadlines, which run in submission order.
+     * Instructions submitted without a lane go to the last lane, so lanes are meant to be used to prioritise latency-sensitive
+     * instructions over bulk work.
+     * @param queueSize Maximum amount of instructions to be queued, over all lanes.
+     * @param lanes Amount of lanes.
+     */
+    public WorkerThread(int queueSize, int lanes){
         super();
-        SafeReflection.setValue(this, Thread.class, "target", new Runnable()
-        {
-            public void run(){
-                while (getAlive()) {
-                    if (queue.size() != 0) {
-                        final Pair<Long, Pair<Method, Pair<Object, Object>>> q;
-                        synchronized (queue){
-                            q = queue.poll();
-                        }
-                        final Pair<Method, Pair<Object, Object>> instr = q.getValue();
-                        try {
-                            synchronized (output) {
-                                output.put(q.getKey(), instr.getKey().invoke(instr.getValue().getKey(), (Object[]) instr.getValue().getValue()));
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }else
-                        try {
-                            Thread.sleep(5);
-                        } catch (InterruptedException e) { }
+        if(queueSize <= 0) throw new IllegalArgumentException("Queue size must be a positive, non-zero value!");
+        if(lanes <= 0) throw new IllegalArgumentException("Lane count must be a positive, non-zero value!");
+        head = new Invocation<Object>(null, null, null);
+        tail = new AtomicReference<Invocation<?>>(head);
+        slots = new Semaphore(queueSize);
+        capacity = queueSize;
+        releaseBatch = Math.max(1, Math.min(64, queueSize >> 2)); // Small queues would otherwise keep producers waiting on freed slots
+        laneCount = lanes;
+        if(lanes > 1) this.lanes = Lane.create(lanes);
+    }
+
+    @Override
+    public void run(){
+        try {
+            while (getAlive()) {
+                Invocation<?> q = poll();
+                AsyncMetrics.Worker m = AsyncMetrics.enabled ? metrics() : null;
+                if (q == null && (q = steal()) == null) {
+                    idle = true;                        // Announce that we're about to park...
+                    if (m != null) m.idle();
+                    if ((q = poll()) == null && (q = steal()) == null && getAlive() && !park()) break; // ...and re-check so that a concurrent push can't be missed
+                    idle = false;
+                    if (m != null) m.busy();
+                    if (q == null) continue;
                 }
+                if (m != null) ++m.processed;
+                q.run();
             }
-        });
-        queue = new ArrayBlockingQueue<Pair<Long, Pair<Method, Pair<Object, Object>>>>(queueSize);
+            for(Invocation<?> q; (q = poll()) != null; ) q.discard(); // Release anyone awaiting instructions that will never run
+            releaseConsumed();
+        } finally {
+            if (metrics != null) AsyncMetrics.unregister(metrics);
+        }
+    }
+
+    /**
+     * Add a new instruction for the worker thread. If the queue is full, this blocks until the worker has made room for it.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @param <T> Return type of method.
+     * @return Handle that completes with the return value of the method once the worker has invoked it.
+     */
+    public <T> Async<T> submit(Object invokeOn, Method m, Object... params){
+        return enqueue(new Invocation<T>(invokeOn, Invoker.of(m), params));
+    }
+
+    /**
+     * Add a new instruction to the given lane. If the queue is full, this blocks until the worker has made room for it.
+     * @param lane Lane to add the instruction to. Lane 0 has the highest priority.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @param <T> Return type of method.
+     * @return Handle that completes with the return value of the method once the worker has invoked it.
+     * @see #WorkerThread(int, int)
+     */
+    public <T> Async<T> submit(int lane, Object invokeOn, Method m, Object... params){
+        Invocation<T> i = new Invocation<T>(invokeOn, Invoker.of(m), params);
+        i.lane = checkLane(lane);
+        return enqueue(i);
+    }
+
+    /**
+     * Add a new instruction with a deadline to the given lane. Instructions with deadlines are run earliest deadline first, ahead of
+     * the instructions without deadlines in the same lane. What happens to instructions whose deadline passes before they start is
+     * decided by the {@link ExpiredPolicy} of the worker. If the queue is full, this blocks until the worker has made room for it.
+     * @param lane Lane to add the instruction to. Lane 0 has the highest priority.
+     * @param deadline Time from now within which the instruction should start.
+     * @param unit Unit of deadline.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters for method.
+     * @param <T> Return type of method.
+     * @return Handle that completes with the return value of the method once the worker has invoked it.
+     */
+    public <T> Async<T> submit(int lane, long deadline, TimeUnit unit, Object invokeOn, Method m, Object... params){
+        Invocation<T> i = new Invocation<T>(invokeOn, Invoker.of(m), params);
+        i.lane = checkLane(lane);
+        i.timed = true;
+        i.deadline = System.nanoTime() + unit.toNanos(deadline);
+        return enqueue(i);
+    }
+
+    private <T> Async<T> enqueue(Invocation<T> i){
+        if(!getAlive()){                                // A stopped worker would never make room for it
+            i.discard();
+            return i;
+        }
+        if(i.timed || lanes != null) i.enqueuedAt = System.nanoTime(); // Only lanes care about how long instructions wait
+        slots.acquireUninterruptibly();                 // Apply backpressure rather than failing when the queue is full
+        tail.getAndSet(i).next = i;                     // Append and link
+        signal();
+        if(!getAlive()) abandon(i);                     // Worker may have stopped before it could see this instruction
+        return i;
+    }
+
+    /**
+     * Discard an instruction appended after the worker was stopped, unless the worker took it first. Either way, its slot is handed
+     * back exactly once.
+     */
+    private void abandon(Invocation<?> i){
+        if(!i.claim()) return;                          // The worker has it and will run or discard it
+        slots.release();
+        i.discard();
+    }
+
+    private int checkLane(int lane){
+        if(lane < 0 || lane >= laneCount) throw new IllegalArgumentException("No such lane: "+lane);
+        return lane;
+    }
+
+    public int getLaneCount(){ return laneCount; }
+
+    /**
+     * Set what happens to instructions whose deadline passes before they are started. Defaults to {@link ExpiredPolicy#RUN}.
+     */
+    public void setExpiredPolicy(ExpiredPolicy policy){
+        if(policy == null) throw new NullPointerException("Policy cannot be null!");
+        expiredPolicy = policy;
+    }
+
+    public ExpiredPolicy getExpiredPolicy(){ return expiredPolicy; }
+
+    /**
+     * Set how long an instruction may wait behind instructions in higher-priority lanes (or behind instructions with deadlines in
+     * its own lane) before it's run ahead of them. Defaults to 100 milliseconds.
+     * @param threshold Maximum wait time. Zero or less disables starvation protection.
+     * @param unit Unit of threshold.
+     */
+    public void setStarvationThreshold(long threshold, TimeUnit unit){ starvationNanos = threshold <= 0 ? 0 : unit.toNanos(threshold); }
+
+    public long getStarvationThreshold(TimeUnit unit){ return unit.convert(starvationNanos, TimeUnit.NANOSECONDS); }
+
+    /**
+     * Get the amount of instructions waiting in the given lane. Instructions that the worker hasn't sorted into a lane yet are only
+     * included for the last lane of a worker without lanes.
+     * @param lane Lane to get depth of.
+     */
+    public int getQueueDepth(int lane){
+        Lane[] l = lanes;
+        checkLane(lane);
+        return l == null ? queueDepth() : l[lane].depth;
+    }
+
+    /**
+     * Get the times instructions of the given lane waited before they were started, in nanoseconds. Only recorded once lanes are
+     * in use.
+     * @param lane Lane to get wait times of.
+     * @return Copy of the recorded wait times.
+     */
+    public Histogram getWaitTimes(int lane){
+        Lane[] l = lanes;
+        checkLane(lane);
+        return l == null ? new Histogram() : l[lane].waits.copy();
+    }
+
+    /**
+     * Get the amount of instructions of the given lane that were dropped or failed because their deadline passed.
+     */
+    public long getExpired(int lane){
+        Lane[] l = lanes;
+        checkLane(lane);
+        return l == null ? 0 : l[lane].expired;
+    }
+
+    /**
+     * Get the amount of instructions of the given lane that were run ahead of their turn by starvation protection, or because they
+     * were overdue.
+     */
+    public long getPromoted(int lane){
+        Lane[] l = lanes;
+        checkLane(lane);
+        return l == null ? 0 : l[lane].promoted;
+    }
+
+    /**
+     * Add a batch of invocations of the same method in a single operation. The invocations are linked to each other up front and
+     * appended to the queue all at once, so a batch costs a single queue operation and wakes the worker once rather than once per
+     * invocation. Batches larger than the queue are appended in chunks as the worker makes room for them, blocking in between.
+     * Invocations of a batch are never interleaved with instructions from other producers within a chunk.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters of each invocation.
+     * @param <T> Return type of method.
+     * @return Handle for the results of the batch.
+     */
+    public <T> InvocationBatch<T> submitAll(Object invokeOn, Method m, Object[]... params){
+        return submitAll(invokeOn, m, params, params.length);
     }
 
     /**
-     * Add a new instruction for the worker thread.
+     * Add a batch of invocations of the same method in a single operation.
+     * @param invokeOn Object to invoke method on.
+     * @param m Method to invoke.
+     * @param params Parameters of each invocation.
+     * @param <T> Return type of method.
+     * @return Handle for the results of the batch.
+     * @see #submitAll(Object, Method, Object[]...)
+     */
+    public <T> InvocationBatch<T> submitAll(Object invokeOn, Method m, Collection<Object[]> params){
+        return submitAll(invokeOn, m, params.toArray(new Object[params.size()][]), params.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> InvocationBatch<T> submitAll(Object invokeOn, Method m, Object[][] params, int count){
+        Invoker invoker = Invoker.of(m);                // Resolved once for the whole batch
+        Invocation<T>[] all = (Invocation<T>[]) new Invocation<?>[count];
+        long now = lanes != null ? System.nanoTime() : 0;
+        for(int i = 0; i<count; ++i) (all[i] = new Invocation<T>(invokeOn, invoker, params[i])).enqueuedAt = now;
+        int start = 0;
+        while(start<count && getAlive()){               // A stopped worker would never make room for the next chunk
+            int chunk = Math.min(count - start, capacity);
+            slots.acquireUninterruptibly(chunk);
+            int end = start + chunk - 1;
+            for(int i = start; i<end; ++i) Invocation.nextUpdater.lazySet(all[i], all[i + 1]); // Published by the append below
+            tail.getAndSet(all[end]).next = all[start];
+            signal();
+            start = end + 1;
+        }
+        if(!getAlive()){                                // Worker may have stopped before it could see these instructions
+            for(int i = 0; i<start; ++i) abandon(all[i]);
+            for(int i = start; i<count; ++i) all[i].discard(); // Never appended, so they hold no slots
+        }
+        return new InvocationBatch<T>(all);
+    }
+
+    /**
+     * Add a new instruction for the worker thread. If the queue is full, this blocks until the worker has made room for it.
      * @param invokeOn Object to invoke method on.
      * @param m Method to invoke.
      * @param params Parameters for method.
      * @return A UID corresponding to the queued instruction.
      */
     public long push(Object invokeOn, Method m, Object... params){
-        m.setAccessible(true);
-        long id;
-        Random r = new Random();
-        do{ id = r.nextLong(); }while(ids.contains(id));
-        synchronized (queue) {
-            queue.add(new Pair<Long, Pair<Method, Pair<Object, Object>>>(id, new Pair<Method, Pair<Object, Object>>(m, new Pair<Object, Object>(invokeOn, params))));
-        }
-        ids.add(id);
+        long id = ids.incrementAndGet();
+        pending.put(id, submit(invokeOn, m, params));
         return id;
     }
 
@@ -77,44 +366,286 @@ public class WorkerThread extends Thread {
      */
     public Object pop(long id){
         if(!isAlive()) throw new IllegalStateException("Cannot pop value from inactive thread");
-        if(!ids.contains(id)) return null;
         if(Thread.currentThread() == this) throw new RuntimeException("Attempting to await result in worker thread! This causes the thread to lock.");
-        //noinspection StatementWithEmptyBody
-        while(!output.containsKey(id)) // Block caller thread until result is received
-            try {
-                Thread.sleep(5);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        Object o;
-        synchronized (output) {
-            o = output.get(id);
-            output.remove(id);
-        }
-        ids.remove(id);
-        return o;
+        Async<?> a = pending.remove(id);
+        return a == null ? null : a.await();
     }
 
     /**
      * Waits for current method invocation to finish before stopping thread.
      */
     public void stopGraceful(){
-        synchronized (alive) { alive.set(false); }
+        alive.set(false);
+        LockSupport.unpark(this);                       // Wake worker if it's idle
     }
 
-    protected final boolean getAlive(){
-        boolean b;
-        synchronized (alive) { b = alive.get(); }
-        return b;
-    }
+    protected final boolean getAlive(){ return alive.get(); }
 
     /**
-     * Interrupts thread to kill it. NOTE: This method is unsafe and could cause issues if it is performing an I/O operation.
-     * Only call this if you are 100% sure that it won't break something or if are ready to deal with the consequences.
+     * Interrupts thread to stop it as soon as possible. The current method invocation is interrupted and will have to
+     * respond to the interrupt for the thread to stop; any remaining queued instructions are discarded.
      */
     public void stopForced(){
         stopGraceful();
-        //noinspection deprecation
-        stop();
+        interrupt();
+    }
+
+    /**
+     * Take the next instruction from the queue. Must only be called by the worker.
+     * @return Next instruction or null if the queue is empty.
+     */
+    private Invocation<?> poll(){
+        Lane[] l = lanes;
+        if(l != null) return select(l);
+        Invocation<?> next = take();
+        if(next == null){
+            releaseConsumed();                          // Queue ran dry: hand back everything before stealing or parking
+            return null;
+        }
+        if(next.timed){                                 // First deadline: sort instructions into lanes from now on
+            lanes = l = Lane.create(laneCount);
+            sort(l, next);
+            return select(l);
+        }
+        taken();
+        return next;
+    }
+
+    /**
+     * Unlink the next instruction from the queue. Must only be called by the worker.
+     */
+    private Invocation<?> take(){
+        for(;;){
+            Invocation<?> next = head.next;
+            if(next == null) return null;
+            Invocation.nextUpdater.lazySet(head, null); // Unlink consumed node so the handle doesn't keep its successors alive
+            head = next;
+            if(next.claim()) return next;               // Otherwise its producer saw the worker stop, discarded it and freed its slot
+        }
+    }
+
+    /**
+     * Account for an instruction that has left the queue for good.
+     */
+    private void taken(){ if(++consumed == releaseBatch) releaseConsumed(); }
+
+    private static void sort(Lane[] l, Invocation<?> i){
+        Lane lane = l[i.lane < 0 || i.lane >= l.length ? l.length - 1 : i.lane];
+        if(i.timed) lane.edf.add(i);
+        else lane.fifo.add(i);
+        ++lane.depth;
+    }
+
+    /**
+     * Take the next instruction to run from the lanes after sorting newly queued instructions into them. Must only be called by the
+     * worker.
+     * @return Next instruction or null if all lanes are empty.
+     */
+    private Invocation<?> select(Lane[] l){
+        for(Invocation<?> i; (i = take()) != null; ) sort(l, i);
+        long now = System.nanoTime(), starving = starvationNanos;
+        ExpiredPolicy policy = expiredPolicy;
+        Lane chosen = null;
+        boolean promoted = false;
+        for(Lane lane : l){
+            if(policy != ExpiredPolicy.RUN) expire(lane, now, policy == ExpiredPolicy.FAIL);
+            if(lane.depth == 0) continue;
+            if(chosen == null) chosen = lane;           // Highest-priority lane with work
+            else if(lane.isStarving(now, starving)){    // Lower lane that has waited too long
+                chosen = lane;
+                promoted = true;
+                break;
+            }
+        }
+        if(chosen == null){
+            releaseConsumed();
+            return null;
+        }
+        Invocation<?> q = chosen.poll(now, starving);
+        --chosen.depth;
+        if(promoted) ++chosen.promoted;
+        if(q.enqueuedAt != 0) chosen.waits.record(now - q.enqueuedAt);
+        taken();
+        return q;
+    }
+
+    /**
+     * Remove all instructions whose deadline has passed from a lane.
+     */
+    private void expire(Lane lane, long now, boolean fail){
+        for(Invocation<?> i; (i = lane.edf.peek()) != null && i.deadline - now <= 0; ){
+            lane.edf.poll();
+            --lane.depth;
+            ++lane.expired;
+            i.expire(fail);
+            taken();
+        }
+    }
+
+    /**
+     * Let blocked producers in. Slots are handed back in batches since every release is a contended atomic operation.
+     */
+    private void releaseConsumed(){
+        if(consumed == 0) return;
+        slots.release(consumed);
+        consumed = 0;
+    }
+
+    /**
+     * Get the amount of instructions waiting to be run by this worker. May be off by up to a release batch while the worker is busy.
+     */
+    int queueDepth(){ return capacity - slots.availablePermits() - consumed; }
+
+    private AsyncMetrics.Worker metrics(){
+        AsyncMetrics.Worker m = metrics;
+        return m != null ? m : (metrics = AsyncMetrics.register(this));
+    }
+
+    /**
+     * Called by the worker when its own queue is empty to look for work elsewhere.
+     * @return Instruction to run or null if there is none.
+     */
+    Invocation<?> steal(){ return null; }
+
+    /**
+     * Called by the worker when there is no work to be done.
+     * @return False if the worker should stop.
+     */
+    boolean park(){
+        LockSupport.park(this);
+        return true;
+    }
+
+    /**
+     * Checks whether the worker is about to park or is parked.
+     */
+    final boolean isIdle(){ return idle; }
+
+    /**
+     * Wakes the worker if it's idle.
+     */
+    final void signal(){ if(idle) LockSupport.unpark(this); }
+
+    /**
+     * A queued method invocation. Doubles as the handle through which the result is delivered.
+     * @param <T> Return type of method.
+     */
+    static final class Invocation<T> extends Async<T> implements Callable<T>, Runnable {
+        private final Object invokeOn;
+        private final Invoker invoker;
+        private final Object[] params;
+        @SuppressWarnings("rawtypes")
+        static final AtomicReferenceFieldUpdater<Invocation, Invocation> nextUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Invocation.class, Invocation.class, "next");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Invocation> claimedUpdater = AtomicIntegerFieldUpdater.newUpdater(Invocation.class, "claimed");
+
+        volatile Invocation<?> next;
+
+        /**
+         * Set by whoever takes the instruction out of the queue for good: the worker, or the producer if the worker stopped first.
+         */
+        private volatile int claimed;
+        private long queuedAt;
+
+        /**
+         * Lane of the instruction or -1 for the last lane.
+         */
+        int lane = -1;
+        boolean timed;
+        long deadline, enqueuedAt;
+
+        Invocation(Object invokeOn, Invoker invoker, Object[] params){
+            this.invokeOn = invokeOn;
+            this.invoker = invoker;
+            this.params = params;
+            queuedAt = invoker != null && AsyncMetrics.enabled ? AsyncMetrics.queued() : AsyncMetrics.UNTRACKED; // Queue heads aren't instructions
+        }
+
+        boolean claim(){ return claimed == 0 && claimedUpdater.compareAndSet(this, 0, 1); }
+
+        @SuppressWarnings("unchecked")
+        public T call() throws Exception { return (T) invoker.invoke(invokeOn, params); }
+
+        public void run(){
+            long q = queuedAt;
+            if(q != AsyncMetrics.UNTRACKED){
+                queuedAt = AsyncMetrics.UNTRACKED;
+                AsyncMetrics.dequeued(q);
+            }
+            execute(this);
+        }
+
+        /**
+         * Cancel an instruction that will never be run.
+         */
+        void discard(){
+            if(queuedAt != AsyncMetrics.UNTRACKED){
+                queuedAt = AsyncMetrics.UNTRACKED;
+                AsyncMetrics.discarded();
+            }
+            cancel();
+        }
+
+        /**
+         * Give up on an instruction whose deadline passed before it could be started.
+         * @param fail Whether to fail the instruction rather than cancel it.
+         */
+        void expire(boolean fail){
+            if(!fail){
+                discard();
+                return;
+            }
+            if(queuedAt != AsyncMetrics.UNTRACKED){
+                queuedAt = AsyncMetrics.UNTRACKED;
+                AsyncMetrics.discarded();
+            }
+            finish(null, new TimeoutException("Deadline passed before the instruction was started"));
+        }
+    }
+
+    /**
+     * A priority lane. Instructions with deadlines are kept in a heap ordered by deadline, the rest in submission order.
+     */
+    private static final class Lane {
+        private static final Comparator<Invocation<?>> byDeadline = new Comparator<Invocation<?>>() {
+            public int compare(Invocation<?> a, Invocation<?> b) {
+                long d = a.deadline - b.deadline;       // Compared by difference since nanoTime may overflow
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        };
+
+        final ArrayDeque<Invocation<?>> fifo = new ArrayDeque<Invocation<?>>();
+        final PriorityQueue<Invocation<?>> edf = new PriorityQueue<Invocation<?>>(16, byDeadline);
+        final Histogram waits = new Histogram();
+
+        /**
+         * Only written by the worker.
+         */
+        volatile int depth;
+        volatile long expired, promoted;
+
+        static Lane[] create(int count){
+            Lane[] l = new Lane[count];
+            for(int i = 0; i<count; ++i) l[i] = new Lane();
+            return l;
+        }
+
+        /**
+         * Check whether the oldest instruction without a deadline has waited too long, or whether an instruction is overdue.
+         */
+        boolean isStarving(long now, long starving){
+            Invocation<?> f = fifo.peek(), e = edf.peek();
+            return (f != null && starving > 0 && f.enqueuedAt != 0 && now - f.enqueuedAt >= starving) || (e != null && e.deadline - now <= 0);
+        }
+
+        /**
+         * Take the next instruction: earliest deadline first, unless the oldest instruction without a deadline is starving.
+         */
+        Invocation<?> poll(long now, long starving){
+            Invocation<?> f = fifo.peek();
+            if(!edf.isEmpty() && (f == null || starving <= 0 || f.enqueuedAt == 0 || now - f.enqueuedAt < starving)) return edf.poll();
+            return fifo.poll();
+        }
     }
 }
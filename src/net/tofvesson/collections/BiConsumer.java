@@ -0,0 +1,10 @@
+package net.tofvesson.collections;
+
+/**
+ * Compat version of Java 8 java.util.function.BiConsumer
+ * @param <T>
+ * @param <U>
+ */
+public interface BiConsumer<T, U> {
+    void accept(T t, U u);
+}
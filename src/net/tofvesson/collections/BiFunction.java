@@ -0,0 +1,11 @@
+package net.tofvesson.collections;
+
+/**
+ * Compat version of Java 8 java.util.function.BiFunction
+ * @param <T>
+ * @param <U>
+ * @param <R>
+ */
+public interface BiFunction<T, U, R> {
+    R apply(T t, U u);
+}
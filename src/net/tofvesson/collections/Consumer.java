@@ -0,0 +1,9 @@
+package net.tofvesson.collections;
+
+/**
+ * Compat version of Java 8 java.util.function.Consumer
+ * @param <T>
+ */
+public interface Consumer<T> {
+    void accept(T t);
+}
@@ -0,0 +1,10 @@
+package net.tofvesson.collections;
+
+/**
+ * Compat version of Java 8 java.util.function.Function
+ * @param <T>
+ * @param <R>
+ */
+public interface Function<T, R> {
+    R apply(T t);
+}
@@ -0,0 +1,9 @@
+package net.tofvesson.collections;
+
+/**
+ * Compat version of Java 8 java.util.function.Predicate
+ * @param <T>
+ */
+public interface Predicate<T> {
+    boolean test(T t);
+}
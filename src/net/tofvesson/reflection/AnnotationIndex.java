@@ -0,0 +1,751 @@
+package net.tofvesson.reflection;
+
+import net.tofvesson.async.BatchRunnable;
+import net.tofvesson.async.Parallel;
+
+import java.io.*;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the runtime-visible annotations of classes, methods, constructors and fields found in a set of jars and class directories.
+ * The index is built by reading class files directly, so building it doesn't load (or initialize) any classes and covers classes that
+ * haven't been loaded yet. Only queries load classes, and only those that match.
+ * Classes that carry no annotations, declare no annotated members and don't extend an annotated class aren't kept, which keeps the
+ * index small enough to be persisted with {@link #write(OutputStream)} and read back at startup instead of scanning again.
+ * Names of classes and annotations are binary names, as returned by {@link Class#getName()}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class AnnotationIndex {
+
+    private static final int MAGIC = 0x414E4958, VERSION = 1;
+    private static final byte FIELD = 0, METHOD = 1, CONSTRUCTOR = 2;
+
+    private final String[] classes;
+    private final int[] supers;                                 // Index of the superclass, or -1 if it isn't indexed
+    private final Map<String, int[]> classAnnotations;
+    private final Map<String, MemberRef[]> memberAnnotations;
+    private final Fingerprint[] fingerprint;
+
+    private AnnotationIndex(String[] classes, int[] supers, Map<String, int[]> classAnnotations, Map<String, MemberRef[]> memberAnnotations, Fingerprint[] fingerprint){
+        this.classes = classes;
+        this.supers = supers;
+        this.classAnnotations = classAnnotations;
+        this.memberAnnotations = memberAnnotations;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Build an index of the given jars and class directories. Where the same class is found more than once, the first one is indexed,
+     * just like class loading would pick the first one on a class path.
+     * @param roots Jar files and directories containing class files.
+     * @return Index of all classes found.
+     * @throws IOException If a root can't be read.
+     */
+    public static AnnotationIndex scan(File... roots) throws IOException {
+        ArrayList<ZipFile> jars = new ArrayList<ZipFile>();
+        try{
+            final ArrayList<Object> sources = new ArrayList<Object>(); // Class files and jar entries, in class path order
+            final ArrayList<ZipFile> owners = new ArrayList<ZipFile>();
+            for(File root : roots){
+                if(root.isDirectory()) collect(root, sources, owners);
+                else if(root.isFile()){
+                    ZipFile jar = new ZipFile(root);
+                    jars.add(jar);
+                    for(Enumeration<? extends ZipEntry> e = jar.entries(); e.hasMoreElements();){
+                        ZipEntry entry = e.nextElement();
+                        String name = entry.getName();
+                        if(name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")){
+                            sources.add(entry);
+                            owners.add(jar);
+                        }
+                    }
+                }
+            }
+            final ClassInfo[] parsed = new ClassInfo[sources.size()];
+            final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            // Read errors are recorded rather than thrown, so every chunk is done with the jars by the time they're closed
+            Parallel.forRange(parsed.length, new BatchRunnable() {
+                public void run(int index) {
+                    if(failure.get() != null) return;
+                    try{
+                        Object source = sources.get(index);
+                        byte[] bytes = source instanceof File ? read((File) source) : read(owners.get(index), (ZipEntry) source);
+                        parsed[index] = ClassInfo.parse(bytes);
+                    }catch(IOException e){
+                        failure.compareAndSet(null, e);
+                    }catch(RuntimeException ignored){}      // Not a valid class file; skip it
+                }
+            });
+            if(failure.get() != null) throw failure.get();
+            return build(parsed, Fingerprint.of(roots));
+        }finally{
+            for(ZipFile jar : jars) try{ jar.close(); }catch(IOException ignored){}
+        }
+    }
+
+    /**
+     * Build an index of the class path given by the "java.class.path" system property.
+     * @throws IOException If an entry on the class path can't be read.
+     */
+    public static AnnotationIndex scanClassPath() throws IOException { return scan(classPath(null)); }
+
+    /**
+     * Build an index of the class path of the given class loader and its parents. The jars and directories are taken from
+     * {@link URLClassLoader}s in the hierarchy and from the "java.class.path" system property.
+     * @throws IOException If an entry on the class path can't be read.
+     */
+    public static AnnotationIndex scan(ClassLoader loader) throws IOException { return scan(classPath(loader)); }
+
+    /**
+     * Read a persisted index if it's up to date with the given roots; otherwise, build the index and persist it.
+     * An index is considered up to date if none of the roots have been changed, added or removed since it was built.
+     * @param indexFile File to read the index from and write it to.
+     * @param roots Jar files and directories containing class files.
+     * @throws IOException If a root can't be read or the index can't be written.
+     */
+    public static AnnotationIndex loadOrScan(File indexFile, File... roots) throws IOException {
+        if(indexFile.isFile()){
+            AnnotationIndex index = null;
+            InputStream in = new FileInputStream(indexFile);
+            try{ index = read(in); }
+            catch(IOException ignored){}                // Corrupt or from another version; scan again
+            finally{ in.close(); }
+            if(index != null && Arrays.equals(index.fingerprint, Fingerprint.of(roots))) return index;
+        }
+        AnnotationIndex index = scan(roots);
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs()) throw new IOException("Couldn't create "+parent);
+        OutputStream out = new FileOutputStream(indexFile);
+        try{ index.write(out); }finally{ out.close(); }
+        return index;
+    }
+
+    /**
+     * Get the names of all classes annotated with the given annotation.
+     * @param annotation Name of the annotation.
+     * @param inherited Whether or not to include subclasses of annotated classes, as is done for annotations marked {@link Inherited}.
+     * @return Names of the classes, in class path order.
+     */
+    public List<String> getAnnotatedClassNames(String annotation, boolean inherited){
+        int[] annotated = classAnnotations.get(annotation);
+        ArrayList<String> names = new ArrayList<String>();
+        if(annotated == null) return names;
+        if(!inherited){
+            for(int i : annotated) names.add(classes[i]);
+            return names;
+        }
+        byte[] state = new byte[classes.length];      // 0: unknown, 1: annotated, 2: not annotated
+        for(int i : annotated) state[i] = 1;
+        for(int i = 0; i<classes.length; ++i) if(isAnnotated(i, state)) names.add(classes[i]);
+        return names;
+    }
+
+    /**
+     * Get the names of all classes annotated with the given annotation, without subclasses of annotated classes.
+     * @param annotation Name of the annotation.
+     */
+    public List<String> getAnnotatedClassNames(String annotation){ return getAnnotatedClassNames(annotation, false); }
+
+    /**
+     * Get all classes annotated with the given annotation. Subclasses of annotated classes are included if the annotation is marked
+     * {@link Inherited}. Classes are loaded (but not initialized) through the context class loader of the calling thread.
+     * @param annotation Annotation to look for.
+     * @return Classes that could be loaded and carry the annotation.
+     */
+    public List<Class<?>> getAnnotatedClasses(Class<? extends Annotation> annotation){ return getAnnotatedClasses(annotation, defaultLoader(annotation)); }
+
+    /**
+     * Get all classes annotated with the given annotation. Subclasses of annotated classes are included if the annotation is marked
+     * {@link Inherited}.
+     * @param annotation Annotation to look for.
+     * @param loader Class loader to load classes through. They aren't initialized.
+     * @return Classes that could be loaded and carry the annotation.
+     */
+    public List<Class<?>> getAnnotatedClasses(Class<? extends Annotation> annotation, ClassLoader loader){
+        ArrayList<Class<?>> result = new ArrayList<Class<?>>();
+        for(String name : getAnnotatedClassNames(annotation.getName(), annotation.isAnnotationPresent(Inherited.class))){
+            Class<?> c = load(name, loader);
+            if(c != null && c.isAnnotationPresent(annotation)) result.add(c); // Guards against stale indices
+        }
+        return result;
+    }
+
+    /**
+     * Get all methods annotated with the given annotation, loading their classes through the context class loader of the calling thread.
+     */
+    public List<Method> getAnnotatedMethods(Class<? extends Annotation> annotation){ return getAnnotatedMethods(annotation, defaultLoader(annotation)); }
+
+    /**
+     * Get all methods annotated with the given annotation.
+     * @param annotation Annotation to look for.
+     * @param loader Class loader to load the declaring classes through. They aren't initialized.
+     */
+    public List<Method> getAnnotatedMethods(Class<? extends Annotation> annotation, ClassLoader loader){
+        ArrayList<Method> result = new ArrayList<Method>();
+        for(Object o : members(annotation, loader, METHOD)) result.add((Method) o);
+        return result;
+    }
+
+    /**
+     * Get all constructors annotated with the given annotation, loading their classes through the context class loader of the calling
+     * thread.
+     */
+    public List<Constructor<?>> getAnnotatedConstructors(Class<? extends Annotation> annotation){ return getAnnotatedConstructors(annotation, defaultLoader(annotation)); }
+
+    /**
+     * Get all constructors annotated with the given annotation.
+     * @param annotation Annotation to look for.
+     * @param loader Class loader to load the declaring classes through. They aren't initialized.
+     */
+    public List<Constructor<?>> getAnnotatedConstructors(Class<? extends Annotation> annotation, ClassLoader loader){
+        ArrayList<Constructor<?>> result = new ArrayList<Constructor<?>>();
+        for(Object o : members(annotation, loader, CONSTRUCTOR)) result.add((Constructor<?>) o);
+        return result;
+    }
+
+    /**
+     * Get all fields annotated with the given annotation, loading their classes through the context class loader of the calling thread.
+     */
+    public List<Field> getAnnotatedFields(Class<? extends Annotation> annotation){ return getAnnotatedFields(annotation, defaultLoader(annotation)); }
+
+    /**
+     * Get all fields annotated with the given annotation.
+     * @param annotation Annotation to look for.
+     * @param loader Class loader to load the declaring classes through. They aren't initialized.
+     */
+    public List<Field> getAnnotatedFields(Class<? extends Annotation> annotation, ClassLoader loader){
+        ArrayList<Field> result = new ArrayList<Field>();
+        for(Object o : members(annotation, loader, FIELD)) result.add((Field) o);
+        return result;
+    }
+
+    /**
+     * Get the names of all annotations found in the index, on classes or members.
+     */
+    public Set<String> getAnnotationNames(){
+        TreeSet<String> names = new TreeSet<String>(classAnnotations.keySet());
+        names.addAll(memberAnnotations.keySet());
+        return names;
+    }
+
+    /**
+     * Persist the index. The stream isn't closed.
+     * @param out Stream to write the index to.
+     */
+    public void write(OutputStream out) throws IOException {
+        HashMap<String, Integer> table = new HashMap<String, Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        for(String s : classes) intern(s, table, strings);
+        for(Map.Entry<String, int[]> e : classAnnotations.entrySet()) intern(e.getKey(), table, strings);
+        for(Map.Entry<String, MemberRef[]> e : memberAnnotations.entrySet()){
+            intern(e.getKey(), table, strings);
+            for(MemberRef m : e.getValue()){
+                intern(m.name, table, strings);
+                intern(m.descriptor, table, strings);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(fingerprint.length);
+        for(Fingerprint f : fingerprint) f.write(data);
+        data.writeInt(strings.size());
+        for(String s : strings) data.writeUTF(s);
+        data.writeInt(classes.length);
+        for(int i = 0; i<classes.length; ++i){
+            data.writeInt(table.get(classes[i]));
+            data.writeInt(supers[i]);
+        }
+        data.writeInt(classAnnotations.size());
+        for(Map.Entry<String, int[]> e : classAnnotations.entrySet()){
+            data.writeInt(table.get(e.getKey()));
+            data.writeInt(e.getValue().length);
+            for(int i : e.getValue()) data.writeInt(i);
+        }
+        data.writeInt(memberAnnotations.size());
+        for(Map.Entry<String, MemberRef[]> e : memberAnnotations.entrySet()){
+            data.writeInt(table.get(e.getKey()));
+            data.writeInt(e.getValue().length);
+            for(MemberRef m : e.getValue()){
+                data.writeInt(m.owner);
+                data.writeInt(table.get(m.name));
+                data.writeInt(table.get(m.descriptor));
+                data.writeByte(m.kind);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Read an index persisted with {@link #write(OutputStream)}. The stream isn't closed.
+     * @param in Stream to read the index from.
+     * @throws IOException If the stream doesn't contain an index of this version.
+     */
+    public static AnnotationIndex read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if(data.readInt() != MAGIC || data.readShort() != VERSION) throw new IOException("Not an annotation index of version "+VERSION);
+        Fingerprint[] fingerprint = new Fingerprint[data.readInt()];
+        for(int i = 0; i<fingerprint.length; ++i) fingerprint[i] = Fingerprint.read(data);
+        String[] strings = new String[data.readInt()];
+        for(int i = 0; i<strings.length; ++i) strings[i] = data.readUTF();
+        String[] classes = new String[data.readInt()];
+        int[] supers = new int[classes.length];
+        for(int i = 0; i<classes.length; ++i){
+            classes[i] = strings[data.readInt()];
+            supers[i] = data.readInt();
+        }
+        HashMap<String, int[]> classAnnotations = new HashMap<String, int[]>();
+        for(int n = data.readInt(); n > 0; --n){
+            String name = strings[data.readInt()];
+            int[] annotated = new int[data.readInt()];
+            for(int i = 0; i<annotated.length; ++i) annotated[i] = data.readInt();
+            classAnnotations.put(name, annotated);
+        }
+        HashMap<String, MemberRef[]> memberAnnotations = new HashMap<String, MemberRef[]>();
+        for(int n = data.readInt(); n > 0; --n){
+            String name = strings[data.readInt()];
+            MemberRef[] members = new MemberRef[data.readInt()];
+            for(int i = 0; i<members.length; ++i) members[i] = new MemberRef(data.readInt(), strings[data.readInt()], strings[data.readInt()], data.readByte());
+            memberAnnotations.put(name, members);
+        }
+        return new AnnotationIndex(classes, supers, classAnnotations, memberAnnotations, fingerprint);
+    }
+
+    private static void intern(String s, HashMap<String, Integer> table, ArrayList<String> strings){
+        if(!table.containsKey(s)){
+            table.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    /**
+     * Check whether a class is annotated, either directly or through one of its superclasses, memoizing the result.
+     */
+    private boolean isAnnotated(int i, byte[] state){
+        if(state[i] == 0){
+            int s = supers[i];
+            state[i] = 2;                               // Also guards against (invalid) cyclic hierarchies
+            state[i] = s != -1 && isAnnotated(s, state) ? (byte) 1 : (byte) 2;
+        }
+        return state[i] == 1;
+    }
+
+    private List<Object> members(Class<? extends Annotation> annotation, ClassLoader loader, byte kind){
+        ArrayList<Object> result = new ArrayList<Object>();
+        MemberRef[] refs = memberAnnotations.get(annotation.getName());
+        if(refs == null) return result;
+        for(MemberRef m : refs){
+            if(m.kind != kind) continue;
+            Class<?> c = load(classes[m.owner], loader);
+            if(c == null) continue;
+            try{
+                if(kind == FIELD){
+                    Field f = c.getDeclaredField(m.name);
+                    if(f.isAnnotationPresent(annotation)) result.add(f);
+                }else if(kind == METHOD){
+                    for(Method method : c.getDeclaredMethods())
+                        if(method.getName().equals(m.name) && m.descriptor.equals(descriptor(method.getParameterTypes(), method.getReturnType()))
+                                && method.isAnnotationPresent(annotation))
+                            result.add(method);
+                }else{
+                    for(Constructor<?> constructor : c.getDeclaredConstructors())
+                        if(m.descriptor.equals(descriptor(constructor.getParameterTypes(), void.class)) && constructor.isAnnotationPresent(annotation))
+                            result.add(constructor);
+                }
+            }catch(NoSuchFieldException ignored){       // Stale index
+            }catch(LinkageError ignored){}              // Member refers to classes that can't be loaded
+        }
+        return result;
+    }
+
+    private static String descriptor(Class<?>[] params, Class<?> ret){
+        StringBuilder builder = new StringBuilder("(");
+        for(Class<?> c : params) builder.append(Classes.descriptor(c));
+        return builder.append(')').append(Classes.descriptor(ret)).toString();
+    }
+
+    private static ClassLoader defaultLoader(Class<?> annotation){
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : annotation.getClassLoader();
+    }
+
+    private static Class<?> load(String name, ClassLoader loader){
+        try{ return Class.forName(name, false, loader); }
+        catch(ClassNotFoundException ignored){}
+        catch(LinkageError ignored){}
+        return null;
+    }
+
+    /**
+     * Merge parsed classes into an index, dropping classes that no query can return.
+     */
+    private static AnnotationIndex build(ClassInfo[] parsed, Fingerprint[] fingerprint){
+        // Keep the first definition of each class
+        LinkedHashMap<String, ClassInfo> byName = new LinkedHashMap<String, ClassInfo>();
+        for(ClassInfo c : parsed) if(c != null && !byName.containsKey(c.name)) byName.put(c.name, c);
+
+        // Keep classes that are annotated, declare annotated members or extend a class that is annotated
+        HashMap<String, Boolean> relevant = new HashMap<String, Boolean>();
+        ArrayList<ClassInfo> kept = new ArrayList<ClassInfo>();
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        for(ClassInfo c : byName.values())
+            if(isRelevant(c, byName, relevant)){
+                index.put(c.name, kept.size());
+                kept.add(c);
+            }
+
+        String[] classes = new String[kept.size()];
+        int[] supers = new int[kept.size()];
+        HashMap<String, ArrayList<Integer>> classAnnotations = new HashMap<String, ArrayList<Integer>>();
+        HashMap<String, ArrayList<MemberRef>> memberAnnotations = new HashMap<String, ArrayList<MemberRef>>();
+        for(int i = 0; i<classes.length; ++i){
+            ClassInfo c = kept.get(i);
+            classes[i] = c.name;
+            Integer s = c.superName == null ? null : index.get(c.superName);
+            supers[i] = s == null ? -1 : s;
+            for(String a : c.annotations){
+                ArrayList<Integer> l = classAnnotations.get(a);
+                if(l == null) classAnnotations.put(a, l = new ArrayList<Integer>());
+                l.add(i);
+            }
+            for(MemberInfo m : c.members)
+                for(String a : m.annotations){
+                    ArrayList<MemberRef> l = memberAnnotations.get(a);
+                    if(l == null) memberAnnotations.put(a, l = new ArrayList<MemberRef>());
+                    l.add(new MemberRef(i, m.name, m.descriptor, m.kind));
+                }
+        }
+
+        HashMap<String, int[]> classResult = new HashMap<String, int[]>();
+        for(Map.Entry<String, ArrayList<Integer>> e : classAnnotations.entrySet()){
+            int[] a = new int[e.getValue().size()];
+            for(int i = 0; i<a.length; ++i) a[i] = e.getValue().get(i);
+            classResult.put(e.getKey(), a);
+        }
+        HashMap<String, MemberRef[]> memberResult = new HashMap<String, MemberRef[]>();
+        for(Map.Entry<String, ArrayList<MemberRef>> e : memberAnnotations.entrySet())
+            memberResult.put(e.getKey(), e.getValue().toArray(new MemberRef[e.getValue().size()]));
+        return new AnnotationIndex(classes, supers, classResult, memberResult, fingerprint);
+    }
+
+    private static boolean isRelevant(ClassInfo c, Map<String, ClassInfo> byName, Map<String, Boolean> relevant){
+        Boolean known = relevant.get(c.name);
+        if(known != null) return known;
+        relevant.put(c.name, false);                    // Guards against (invalid) cyclic hierarchies
+        boolean r = !c.annotations.isEmpty() || !c.members.isEmpty();
+        if(!r && c.superName != null){
+            ClassInfo s = byName.get(c.superName);
+            r = s != null && hasAnnotatedAncestor(s, byName, relevant);
+        }
+        relevant.put(c.name, r);
+        return r;
+    }
+
+    /**
+     * Check whether a class or any of its indexed superclasses is annotated.
+     */
+    private static boolean hasAnnotatedAncestor(ClassInfo c, Map<String, ClassInfo> byName, Map<String, Boolean> relevant){
+        for(int depth = 0; c != null && depth < 256; ++depth){
+            if(!c.annotations.isEmpty()) return true;
+            c = c.superName == null ? null : byName.get(c.superName);
+        }
+        return false;
+    }
+
+    private static void collect(File dir, ArrayList<Object> sources, ArrayList<ZipFile> owners){
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        Arrays.sort(files);                             // Stable order, regardless of file system
+        for(File f : files)
+            if(f.isDirectory()) collect(f, sources, owners);
+            else if(f.getName().endsWith(".class") && !f.getName().equals("module-info.class")){
+                sources.add(f);
+                owners.add(null);
+            }
+    }
+
+    private static byte[] read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try{ return read(in, (int) f.length()); }finally{ in.close(); }
+    }
+
+    private static byte[] read(ZipFile jar, ZipEntry entry) throws IOException {
+        InputStream in = jar.getInputStream(entry);
+        try{ return read(in, (int) entry.getSize()); }finally{ in.close(); }
+    }
+
+    private static byte[] read(InputStream in, int size) throws IOException {
+        byte[] b = new byte[size > 0 ? size : 4096];
+        int n = 0, r;
+        while((r = in.read(b, n, b.length - n)) != -1)
+            if((n += r) == b.length){
+                if((r = in.read()) == -1) return b;     // Exactly as large as expected
+                b = Arrays.copyOf(b, b.length * 2);
+                b[n++] = (byte) r;
+            }
+        return n == b.length ? b : Arrays.copyOf(b, n);
+    }
+
+    private static File[] classPath(ClassLoader loader){
+        LinkedHashSet<File> files = new LinkedHashSet<File>();
+        ArrayList<ClassLoader> chain = new ArrayList<ClassLoader>();
+        for(ClassLoader l = loader; l != null; l = l.getParent()) chain.add(0, l); // Parents first, as that's where classes are looked up first
+        for(ClassLoader l : chain)
+            if(l instanceof URLClassLoader)
+                for(URL url : ((URLClassLoader) l).getURLs())
+                    if("file".equals(url.getProtocol()))
+                        try{ files.add(new File(url.toURI())); }catch(Exception ignored){}
+        String path = System.getProperty("java.class.path");
+        if(path != null)
+            for(String entry : path.split(File.pathSeparator))
+                if(entry.length() != 0) files.add(new File(entry));
+        ArrayList<File> existing = new ArrayList<File>();
+        for(File f : files) if(f.exists()) existing.add(f);
+        return existing.toArray(new File[existing.size()]);
+    }
+
+    private static final class MemberRef {
+        final int owner;
+        final String name, descriptor;
+        final byte kind;
+
+        MemberRef(int owner, String name, String descriptor, byte kind){
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * Summary of a root used to tell whether a persisted index is up to date: size and modification time of a jar, or amount of class
+     * files, total size and latest modification time of a directory.
+     */
+    private static final class Fingerprint {
+        final String path;
+        final long files, size, modified;
+
+        Fingerprint(String path, long files, long size, long modified){
+            this.path = path;
+            this.files = files;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        static Fingerprint[] of(File... roots){
+            Fingerprint[] f = new Fingerprint[roots.length];
+            for(int i = 0; i<roots.length; ++i){
+                File root = roots[i];
+                if(root.isDirectory()){
+                    long[] stats = new long[3];
+                    walk(root, stats);
+                    f[i] = new Fingerprint(root.getAbsolutePath(), stats[0], stats[1], stats[2]);
+                }else f[i] = new Fingerprint(root.getAbsolutePath(), root.exists() ? 1 : 0, root.length(), root.lastModified());
+            }
+            return f;
+        }
+
+        private static void walk(File dir, long[] stats){
+            File[] files = dir.listFiles();
+            if(files == null) return;
+            for(File f : files)
+                if(f.isDirectory()) walk(f, stats);
+                else if(f.getName().endsWith(".class")){
+                    ++stats[0];
+                    stats[1] += f.length();
+                    stats[2] = Math.max(stats[2], f.lastModified());
+                }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeLong(files);
+            out.writeLong(size);
+            out.writeLong(modified);
+        }
+
+        static Fingerprint read(DataInputStream in) throws IOException { return new Fingerprint(in.readUTF(), in.readLong(), in.readLong(), in.readLong()); }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Fingerprint)) return false;
+            Fingerprint f = (Fingerprint) o;
+            return path.equals(f.path) && files == f.files && size == f.size && modified == f.modified;
+        }
+
+        @Override
+        public int hashCode() { return path.hashCode(); }
+    }
+
+    private static final class MemberInfo {
+        final String name, descriptor;
+        final byte kind;
+        final List<String> annotations;
+
+        MemberInfo(String name, String descriptor, byte kind, List<String> annotations){
+            this.name = name;
+            this.descriptor = descriptor;
+            this.kind = kind;
+            this.annotations = annotations;
+        }
+    }
+
+    /**
+     * The parts of a class file that the index needs. Only the constant pool entries that are actually used get decoded.
+     */
+    private static final class ClassInfo {
+        private static final byte[] RUNTIME_VISIBLE = ascii("RuntimeVisibleAnnotations");
+        private static final List<String> NONE = java.util.Collections.emptyList();
+
+        String name, superName;
+        List<String> annotations = NONE;
+        final ArrayList<MemberInfo> members = new ArrayList<MemberInfo>(0);
+
+        private final byte[] b;
+        private final int[] cp;                         // Offsets of constant pool entries
+        private int pos;
+
+        private ClassInfo(byte[] b){
+            this.b = b;
+            if(u4() != 0xCAFEBABE) throw new IllegalArgumentException("Not a class file");
+            pos += 4;                                   // Version
+            cp = new int[u2()];
+            for(int i = 1; i<cp.length; ++i){
+                cp[i] = pos;
+                int tag = b[pos++];
+                switch(tag){
+                    case 1: pos += 2 + u2(pos); break;                  // Utf8
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: pos += 4; break;
+                    case 5: case 6: pos += 8; ++i; break;               // Long and Double take two entries
+                    case 7: case 8: case 16: case 19: case 20: pos += 2; break;
+                    case 15: pos += 3; break;                           // MethodHandle
+                    default: throw new IllegalArgumentException("Unknown constant pool tag "+tag);
+                }
+            }
+        }
+
+        static ClassInfo parse(byte[] b){
+            ClassInfo c = new ClassInfo(b);
+            c.pos += 2;                                 // Access flags
+            c.name = c.className(c.u2());
+            int s = c.u2();
+            c.superName = s == 0 ? null : c.className(s);
+            int interfaces = c.u2();
+            c.pos += 2 * interfaces;
+            boolean indexed = c.hasUtf(RUNTIME_VISIBLE); // Nothing to look for if no attribute is called that
+            for(int kind = 0; kind < 2; ++kind)         // Fields, then methods
+                for(int n = c.u2(); n > 0; --n){
+                    c.pos += 2;
+                    int name = c.u2(), descriptor = c.u2();
+                    List<String> annotations = c.attributes(indexed);
+                    if(!annotations.isEmpty()){
+                        String memberName = c.utf(name);
+                        c.members.add(new MemberInfo(memberName, c.utf(descriptor), kind == 0 ? FIELD : "<init>".equals(memberName) ? CONSTRUCTOR : METHOD, annotations));
+                    }
+                }
+            c.annotations = c.attributes(indexed);
+            return c;
+        }
+
+        /**
+         * Read a list of attributes, returning the annotations they contain.
+         */
+        private List<String> attributes(boolean indexed){
+            List<String> annotations = NONE;
+            for(int n = u2(); n > 0; --n){
+                int name = u2(), length = u4(), end = pos + length;
+                if(indexed && utfEquals(name, RUNTIME_VISIBLE)){
+                    annotations = new ArrayList<String>();
+                    for(int count = u2(); count > 0; --count) annotations.add(annotation());
+                }
+                pos = end;
+            }
+            return annotations;
+        }
+
+        /**
+         * Read an annotation, returning the binary name of its type.
+         */
+        private String annotation(){
+            String type = utf(u2());
+            for(int pairs = u2(); pairs > 0; --pairs){
+                pos += 2;
+                skipElementValue();
+            }
+            return type.substring(1, type.length() - 1).replace('/', '.');
+        }
+
+        private void skipElementValue(){
+            int tag = b[pos++];
+            switch(tag){
+                case 'e': pos += 4; break;
+                case '@':
+                    pos += 2;
+                    for(int pairs = u2(); pairs > 0; --pairs){
+                        pos += 2;
+                        skipElementValue();
+                    }
+                    break;
+                case '[': for(int n = u2(); n > 0; --n) skipElementValue(); break;
+                default: pos += 2; break;               // Constants and classes
+            }
+        }
+
+        private String className(int index){ return utf(u2(cp[index] + 1)).replace('/', '.'); }
+
+        private boolean hasUtf(byte[] s){
+            for(int i = 1; i<cp.length; ++i) if(cp[i] != 0 && b[cp[i]] == 1 && utfEquals(i, s)) return true;
+            return false;
+        }
+
+        private boolean utfEquals(int index, byte[] s){
+            int at = cp[index];
+            if(u2(at + 1) != s.length) return false;
+            at += 3;
+            for(int i = 0; i<s.length; ++i) if(b[at + i] != s[i]) return false;
+            return true;
+        }
+
+        private String utf(int index){
+            int at = cp[index], length = u2(at + 1);
+            at += 3;
+            char[] chars = new char[length];
+            int n = 0;
+            for(int i = 0; i<length; ++i) if(b[at + i] < 0){ n = -1; break; } else chars[n++] = (char) b[at + i];
+            if(n >= 0) return new String(chars, 0, n);  // Plain ASCII, which nearly all names are
+            try{ return new DataInputStream(new ByteArrayInputStream(b, at - 2, length + 2)).readUTF(); } // Modified UTF-8
+            catch(IOException e){ throw new IllegalArgumentException(e); }
+        }
+
+        private int u2(){
+            int v = u2(pos);
+            pos += 2;
+            return v;
+        }
+
+        private int u2(int at){ return ((b[at] & 0xFF) << 8) | (b[at + 1] & 0xFF); }
+
+        private int u4(){
+            int v = (u2(pos) << 16) | u2(pos + 2);
+            pos += 4;
+            return v;
+        }
+
+        private static byte[] ascii(String s){
+            byte[] b = new byte[s.length()];
+            for(int i = 0; i<b.length; ++i) b[i] = (byte) s.charAt(i);
+            return b;
+        }
+    }
+}
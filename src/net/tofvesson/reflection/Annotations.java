@@ -1,19 +1,48 @@
 package net.tofvesson.reflection;
 
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Vector;
 
 public class Annotations {
+
+    private static volatile AnnotationIndex classPath;
+
+    /**
+     * Get all classes annotated with the given annotation: those found on the class path, which are looked up through an
+     * {@link AnnotationIndex} built on the first call, followed by any other classes already loaded by the class loader of the annotation.
+     * @param annotation Annotation to look for.
+     * @return Annotated classes.
+     */
     public static List<Class<?>> getAllAnnotatedClasses(Class<? extends Annotation> annotation){
+        ClassLoader loader = annotation.getClassLoader();
+        LinkedHashSet<Class<?>> a = new LinkedHashSet<Class<?>>();
+        AnnotationIndex index = getClassPathIndex();
+        if(index != null) a.addAll(loader == null ? index.getAnnotatedClasses(annotation) : index.getAnnotatedClasses(annotation, loader));
         @SuppressWarnings("unchecked")
-        Vector<Class<?>> classes = (Vector<Class<?>>) SafeReflection.getValue(annotation.getClassLoader(), ClassLoader.class, "classes");
-        ArrayList<Class<?>> a = new ArrayList<Class<?>>();
-        if(classes==null) return a;
-        for(Class<?> c : classes)
-            if(c.isAnnotationPresent(annotation))
-                a.add(c);
-        return a;
+        Vector<Class<?>> classes = (Vector<Class<?>>) SafeReflection.getValue(loader, ClassLoader.class, "classes");
+        if(classes!=null)
+            for(Class<?> c : classes.toArray(new Class<?>[0]))  // Copy, since classes may be loaded while iterating
+                if(c.isAnnotationPresent(annotation))
+                    a.add(c);
+        return new ArrayList<Class<?>>(a);
+    }
+
+    /**
+     * Get the index of the class path, building it on the first call.
+     * @return Index of the class path or null if it couldn't be read.
+     */
+    public static AnnotationIndex getClassPathIndex(){
+        AnnotationIndex index = classPath;
+        if(index == null)
+            synchronized (Annotations.class){
+                if((index = classPath) == null)
+                    try{ classPath = index = AnnotationIndex.scanClassPath(); }
+                    catch(IOException ignored){}
+            }
+        return index;
     }
 }
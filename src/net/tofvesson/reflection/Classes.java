@@ -3,16 +3,53 @@ package net.tofvesson.reflection;
 import jdk.internal.org.objectweb.asm.ClassWriter;
 import jdk.internal.org.objectweb.asm.MethodVisitor;
 import jdk.internal.org.objectweb.asm.Opcodes;
+import jdk.internal.org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Random;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("unchecked")
 public class Classes {
-    private static final Field classLoader_loadedClasses = SafeReflection.getField(ClassLoader.class, "classes");
+    /**
+     * Default amount of invocations of an accessor before code is generated for it. Same as the inflation threshold of reflection.
+     */
+    public static final int DEFAULT_THRESHOLD = 15;
+
+    private static final int KIND_METHOD = 0, KIND_CONSTRUCTOR = 1, KIND_GETTER = 2, KIND_SETTER = 3;
+    private static final AtomicInteger generated = new AtomicInteger();
+    private static final AtomicInteger references = new AtomicInteger();
+    private static final Method defineClass = SafeReflection.getMethod(ClassLoader.class, "defineClass", String.class, byte[].class, int.class, int.class, ProtectionDomain.class);
+    private static final Method findLoadedClass = SafeReflection.getMethod(ClassLoader.class, "findLoadedClass", String.class);
+    private static final boolean hiddenClasses, anonymousClasses;
+
+    static{
+        boolean h, a;
+        try{
+            Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            h = true;
+        }catch(Throwable ignored){ h = false; }      // Java 14 and older
+        try{
+            sun.misc.Unsafe.class.getMethod("defineAnonymousClass", Class.class, byte[].class, Object[].class);
+            a = true;
+        }catch(Throwable ignored){ a = false; }      // Java 17+ and Android
+        hiddenClasses = h;
+        anonymousClasses = a;
+    }
+
     private static final char[] randomSet =
             {
                     '1', '2', '3', '4', '5',
@@ -46,11 +83,10 @@ public class Classes {
             rand.setLength(0);
 
             // Generate a target length
-            int targetLength = (r.nextInt()%range) + minLength;
+            int targetLength = r.nextInt(range) + minLength;
             for(int i = 0; i<targetLength; ++i){
-                // Select and appropriate index
-                int rIdx = r.nextInt();
-                rand.append(randomSet[rand.length()==0?(rIdx%(randomSet.length-10))+10:rIdx%randomSet.length]);
+                // Select and appropriate index (names can't start with a digit)
+                rand.append(randomSet[rand.length()==0?r.nextInt(randomSet.length-10)+10:r.nextInt(randomSet.length)]);
             }
 
             // Continue until an appropriate name has been found
@@ -60,11 +96,8 @@ public class Classes {
     }
 
     public static boolean classExists(ClassLoader loader, String name){
-        if(
-                containsClassWithSignature(
-                        (Vector<Class<?>>) SafeReflection.getFieldValue(classLoader_loadedClasses, loader),
-                        name.replace('/', '.')
-                )) return true;
+        name = name.replace('/', '.');
+        if(SafeReflection.invokeMethod(loader, findLoadedClass, name) != null) return true; // Looked up by name, rather than by scanning all classes
         try {
             loader.loadClass(name);
             return true;
@@ -77,22 +110,573 @@ public class Classes {
         return false;
     }
 
+    /**
+     * Create a field holding the given value. The field is declared by a class of its own, which is defined as a hidden class (or a
+     * VM-anonymous class on older runtimes) where supported. Such classes need no unique name and are unloaded once they, and thereby
+     * the field, are no longer reachable.
+     * @param loader Class loader to define a named class in if neither hidden nor anonymous classes are supported.
+     * @param value Value to store in the field.
+     * @return Static field holding the value.
+     */
     public static Field reference(ClassLoader loader, Object value){
-        Class<?> synthetic = createClassWithStaticField(loader, generateNewRandomClassName(loader, "", "", 1, 64), "synth$value", Object.class);
-        SafeReflection.setValue(synthetic, "synth$value", value);
-        return SafeReflection.getField(synthetic, "synth$value");
+        Class<?> synthetic = createClassWithStaticField("synth$value", Object.class);
+        for(int attempt = 0; synthetic == null && attempt < 16; ++attempt) // A name may already be taken if the library is loaded twice
+            synthetic = createClassWithStaticField(loader, "net.tofvesson.reflection.Reference$$"+references.incrementAndGet(), "synth$value", Object.class);
+        if(synthetic == null) throw new RuntimeException("Couldn't define a class to hold the reference");
+        try{
+            Field f = synthetic.getDeclaredField("synth$value");
+            f.set(null, value);                         // Not cached, so that nothing keeps the class from being unloaded
+            return f;
+        }catch(Exception e){ throw new RuntimeException(e); } // Fatal and unexpected error
     }
 
+    /**
+     * Check whether classes can be defined by name in a given class loader, which needs access to ClassLoader.defineClass. Not the
+     * case on Java 16+, where that method is encapsulated.
+     */
+    public static boolean canDefineNamedClasses(){ return defineClass != null && defineClass.isAccessible(); }
+
+    /**
+     * Check whether unnamed classes can be defined: hidden classes on Java 15+, or VM-anonymous classes before that.
+     */
+    public static boolean canDefineUnnamedClasses(){ return hiddenClasses || anonymousClasses; }
+
+    /**
+     * Create a class with a single public static field in the given class loader.
+     * @param loader Class loader to define class in.
+     * @param className Fully qualified name of the class. Must not be taken.
+     * @param fieldName Name of the field.
+     * @param classType Type of the field.
+     * @return Class or null if it couldn't be defined.
+     * @see #canDefineNamedClasses()
+     */
     public static Class<?> createClassWithStaticField(ClassLoader loader, String className, String fieldName, Class<?> classType){
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
-        writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, className.replace('.', '/'), null, null, null);
-        writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, fieldName, classType.getName().replace('.', '/'), null, null).visitEnd();
+        byte[] bytecode = staticFieldClass(className.replace('.', '/'), fieldName, descriptor(classType));
+        return (Class<?>) SafeReflection.invokeMethod(loader, defineClass, className.replace('/', '.'), bytecode, 0, bytecode.length, null);
+    }
+
+    /**
+     * Create an unnamed class with a single public static field. The class is hidden (or VM-anonymous on older runtimes), so it can be
+     * unloaded once it's no longer reachable.
+     * @param fieldName Name of the field.
+     * @param classType Type of the field. Must be visible from the class loader of this library.
+     * @return Class or null if unnamed classes aren't supported on this runtime.
+     */
+    public static Class<?> createClassWithStaticField(String fieldName, Class<?> classType){
+        if(!canSee(Classes.class.getClassLoader(), classType)) return null;
+        return defineUnnamed(staticFieldClass(packageOf(Classes.class)+"Reference", fieldName, descriptor(classType)));
+    }
+
+    /**
+     * Define an unnamed class in the package of this class: a hidden class on Java 15+, or a VM-anonymous class before that.
+     * Such classes can access package-private members of this package and are unloaded once they're no longer reachable, regardless
+     * of the class loader of this library.
+     * @param bytecode Class file. The name it declares must be in the package of this class.
+     * @return Class or null if unnamed classes aren't supported on this runtime.
+     */
+    static Class<?> defineUnnamed(byte[] bytecode){
+        try{
+            if(hiddenClasses) return Hidden.define(bytecode);
+            if(anonymousClasses) return SafeReflection.unsafe.defineAnonymousClass(Classes.class, bytecode, null);
+        }catch(Throwable ignored){}
+        return null;
+    }
+
+    /**
+     * Get the bytecode of a public, final class with a single public static field. The class has no methods (not even a constructor),
+     * so it's small enough to write out without a bytecode library (the constants of {@link Opcodes} are inlined by the compiler).
+     * @param name Internal name of the class.
+     * @param fieldName Name of the field.
+     * @param descriptor Type descriptor of the field.
+     */
+    private static byte[] staticFieldClass(String name, String fieldName, String descriptor){
+        try{
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream(64 + name.length() + fieldName.length() + descriptor.length());
+            java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);                          // Minor version
+            out.writeShort(49);                         // Java 5
+            out.writeShort(7);                          // Constant pool size + 1
+            out.writeByte(1); out.writeUTF(name);       // #1: Utf8 (writeUTF writes the modified UTF-8 that class files use)
+            out.writeByte(7); out.writeShort(1);        // #2: Class #1
+            out.writeByte(1); out.writeUTF("java/lang/Object");
+            out.writeByte(7); out.writeShort(3);        // #4: Class #3
+            out.writeByte(1); out.writeUTF(fieldName);  // #5
+            out.writeByte(1); out.writeUTF(descriptor); // #6
+            out.writeShort(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC);
+            out.writeShort(2);                          // This class
+            out.writeShort(4);                          // Super class
+            out.writeShort(0);                          // Interfaces
+            out.writeShort(1);                          // Fields
+            out.writeShort(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+            out.writeShort(5);
+            out.writeShort(6);
+            out.writeShort(0);                          // Field attributes
+            out.writeShort(0);                          // Methods
+            out.writeShort(0);                          // Class attributes
+            return bytes.toByteArray();
+        }catch(java.io.IOException e){ throw new RuntimeException(e); } // Can't happen when writing to memory
+    }
+
+    static String descriptor(Class<?> c){
+        if(c.isArray()) return c.getName().replace('.', '/');
+        if(!c.isPrimitive()) return "L"+c.getName().replace('.', '/')+";";
+        if(c == int.class) return "I";
+        if(c == long.class) return "J";
+        if(c == boolean.class) return "Z";
+        if(c == double.class) return "D";
+        if(c == float.class) return "F";
+        if(c == byte.class) return "B";
+        if(c == short.class) return "S";
+        if(c == char.class) return "C";
+        return "V";
+    }
+
+    /**
+     * Isolates all references to hidden classes (Java 15+), which are defined through a reflective call since this library is compiled
+     * against an older runtime.
+     */
+    private static final class Hidden {
+        private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        private static final Method defineHiddenClass;
+        private static final Object noOptions;
+
+        static{
+            Method m = null;
+            Object o = null;
+            try{
+                Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                o = java.lang.reflect.Array.newInstance(option, 0); // No ClassOption.STRONG, so classes can be unloaded
+                m = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, o.getClass());
+            }catch(Throwable ignored){}
+            defineHiddenClass = m;
+            noOptions = o;
+        }
+
+        /**
+         * Define a hidden class in the package of this class. The name in the bytecode gets a unique suffix appended.
+         */
+        static Class<?> define(byte[] bytecode) throws Exception {
+            return ((MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytecode, true, noOptions)).lookupClass();
+        }
+    }
+
+    /**
+     * Check whether accessors can be generated on this runtime. Where they can't (Java 16+, where the bytecode writer and class
+     * definition this relies on are encapsulated), accessors keep using reflection.
+     */
+    public static boolean canGenerateAccessors(){ return Generation.supported; }
+
+    /**
+     * Probes the runtime for the pieces that code generation needs the first time it's asked.
+     */
+    private static final class Generation {
+        static final boolean supported;
+
+        static{
+            boolean s;
+            try{
+                new ClassWriter(0);
+                s = canDefineNamedClasses();
+            }catch(Throwable ignored){ s = false; }     // Bytecode writer isn't exported
+            supported = s;
+        }
+    }
+
+    /**
+     * Create an accessor that calls the given method through the given functional interface.
+     * The single abstract method of the interface takes the receiver first (unless the method is static), followed by the parameters of
+     * the method. Primitive types must match exactly, while reference types are cast as needed; a void interface method discards the
+     * return value.
+     * @param m Method to call.
+     * @param type Functional interface to implement.
+     * @return Accessor using reflection until it has been invoked {@link #DEFAULT_THRESHOLD} times.
+     * @throws IllegalArgumentException If the interface doesn't match the method.
+     */
+    public static <I> Accessor<I> accessor(Method m, Class<I> type){ return accessor(m, type, DEFAULT_THRESHOLD); }
+
+    /**
+     * Create an accessor that calls the given method through the given functional interface.
+     * @param m Method to call.
+     * @param type Functional interface to implement.
+     * @param threshold Amount of invocations before code is generated. Code is generated immediately if this is zero or less.
+     * @throws IllegalArgumentException If the interface doesn't match the method.
+     * @see #accessor(Method, Class)
+     */
+    public static <I> Accessor<I> accessor(Method m, Class<I> type, int threshold){ return new Accessor<I>(m, KIND_METHOD, type, threshold); }
+
+    /**
+     * Create an accessor that calls the given constructor through the given functional interface.
+     * The single abstract method of the interface takes the parameters of the constructor and returns the constructed object.
+     * @param c Constructor to call.
+     * @param type Functional interface to implement.
+     * @return Accessor using reflection until it has been invoked {@link #DEFAULT_THRESHOLD} times.
+     * @throws IllegalArgumentException If the interface doesn't match the constructor.
+     */
+    public static <I> Accessor<I> accessor(Constructor<?> c, Class<I> type){ return accessor(c, type, DEFAULT_THRESHOLD); }
+
+    /**
+     * Create an accessor that calls the given constructor through the given functional interface.
+     * @param c Constructor to call.
+     * @param type Functional interface to implement.
+     * @param threshold Amount of invocations before code is generated. Code is generated immediately if this is zero or less.
+     * @throws IllegalArgumentException If the interface doesn't match the constructor.
+     */
+    public static <I> Accessor<I> accessor(Constructor<?> c, Class<I> type, int threshold){ return new Accessor<I>(c, KIND_CONSTRUCTOR, type, threshold); }
+
+    /**
+     * Create an accessor that reads the given field through the given functional interface.
+     * The single abstract method of the interface takes the object to read from (unless the field is static) and returns the value.
+     * @param f Field to read.
+     * @param type Functional interface to implement.
+     * @return Accessor using reflection until it has been invoked {@link #DEFAULT_THRESHOLD} times.
+     * @throws IllegalArgumentException If the interface doesn't match the field.
+     */
+    public static <I> Accessor<I> getter(Field f, Class<I> type){ return getter(f, type, DEFAULT_THRESHOLD); }
+
+    /**
+     * Create an accessor that reads the given field through the given functional interface.
+     * @param f Field to read.
+     * @param type Functional interface to implement.
+     * @param threshold Amount of invocations before code is generated. Code is generated immediately if this is zero or less.
+     * @throws IllegalArgumentException If the interface doesn't match the field.
+     */
+    public static <I> Accessor<I> getter(Field f, Class<I> type, int threshold){ return new Accessor<I>(f, KIND_GETTER, type, threshold); }
+
+    /**
+     * Create an accessor that writes the given field through the given functional interface.
+     * The single abstract method of the interface takes the object to write to (unless the field is static) followed by the value.
+     * @param f Field to write.
+     * @param type Functional interface to implement.
+     * @return Accessor using reflection until it has been invoked {@link #DEFAULT_THRESHOLD} times.
+     * @throws IllegalArgumentException If the interface doesn't match the field.
+     */
+    public static <I> Accessor<I> setter(Field f, Class<I> type){ return setter(f, type, DEFAULT_THRESHOLD); }
+
+    /**
+     * Create an accessor that writes the given field through the given functional interface.
+     * @param f Field to write.
+     * @param type Functional interface to implement.
+     * @param threshold Amount of invocations before code is generated. Code is generated immediately if this is zero or less.
+     * @throws IllegalArgumentException If the interface doesn't match the field.
+     */
+    public static <I> Accessor<I> setter(Field f, Class<I> type, int threshold){ return new Accessor<I>(f, KIND_SETTER, type, threshold); }
+
+    /**
+     * Implementation of a functional interface that accesses a single member. Cold accessors are served by plain reflection; once an
+     * accessor has been invoked often enough, a class calling the member directly is generated and {@link #get()} starts returning an
+     * instance of it. Since the generated class is the only implementation the JIT sees at a call site, calls through it can be inlined
+     * all the way down to the member. Private members (and final fields) can't be accessed from another class, so the generated class
+     * calls them through a constant, exactly typed method handle instead, which the JIT inlines as well.
+     * Accessors should be kept and {@link #get()} called for every invocation; holding on to the reflective implementation keeps it
+     * from ever being replaced. Checked exceptions that the interface method doesn't declare are wrapped in an
+     * {@link java.lang.reflect.UndeclaredThrowableException} by the reflective implementation but not by the generated one.
+     * If code can't be generated on this runtime, the accessor keeps using reflection.
+     * @param <I> Functional interface type.
+     */
+    public static final class Accessor<I> {
+        private final Member member;
+        private final int kind, threshold;
+        private final Class<I> type;
+        private final Method[] methods;
+        private final I reflective;
+        private volatile I generated;
+        private volatile boolean failed = false;
+        private int calls = 0;                      // Only approximately counted, since races don't matter
+
+        Accessor(Member member, int kind, Class<I> type, int threshold){
+            this.member = member;
+            this.kind = kind;
+            this.type = type;
+            this.threshold = threshold;
+            methods = abstractMethods(type);
+            for(Method m : methods) checkSignature(m, targetParameters(member, kind), targetReturn(member, kind));
+            try{
+                ((java.lang.reflect.AccessibleObject) member).setAccessible(true);
+            }catch(RuntimeException ignored){}     // Inaccessible module; reflection will report it if the member really can't be accessed
+            reflective = (I) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{ type }, new Reflective(this));
+            if(threshold <= 0) generate();
+        }
+
+        /**
+         * Get the current implementation of the interface.
+         */
+        public I get(){
+            I g = generated;
+            return g != null ? g : reflective;
+        }
+
+        /**
+         * Check whether code has been generated for this accessor.
+         */
+        public boolean isGenerated(){ return generated != null; }
+
+        /**
+         * Get the member that is accessed.
+         */
+        public Member getMember(){ return member; }
+
+        /**
+         * Count an invocation of the reflective implementation and generate code once the threshold is reached.
+         */
+        private void called(){
+            if(!failed && generated == null && ++calls >= threshold) generate();
+        }
+
+        private synchronized void generate(){
+            if(generated != null || failed) return;
+            I i = null;
+            try{ i = (I) Classes.generate(member, kind, type, methods); }catch(Throwable ignored){}
+            if(i == null) failed = true;            // Don't try again
+            else generated = i;
+        }
+    }
+
+    /**
+     * Reflective implementation of an accessor, used until code has been generated.
+     */
+    private static final class Reflective implements InvocationHandler {
+        private final Accessor<?> accessor;
+
+        Reflective(Accessor<?> accessor){ this.accessor = accessor; }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if(method.getDeclaringClass() == Object.class){
+                String name = method.getName();
+                if("equals".equals(name)) return proxy == args[0];
+                if("hashCode".equals(name)) return System.identityHashCode(proxy);
+                return "Accessor("+accessor.member+")";
+            }
+            if(!Modifier.isAbstract(method.getModifiers())) throw new UnsupportedOperationException("Default methods can't be called before code has been generated");
+            accessor.called();
+            if(args == null) args = new Object[0];
+            Member m = accessor.member;
+            boolean isStatic = Modifier.isStatic(m.getModifiers());
+            try{
+                switch(accessor.kind){
+                    case KIND_METHOD:
+                        Object[] params = args;
+                        if(!isStatic){
+                            params = new Object[args.length - 1];
+                            System.arraycopy(args, 1, params, 0, params.length);
+                        }
+                        return ((Method) m).invoke(isStatic ? null : args[0], params);
+                    case KIND_CONSTRUCTOR:
+                        return ((Constructor<?>) m).newInstance(args);
+                    case KIND_GETTER:
+                        return FieldHandle.of((Field) m).get(isStatic ? null : args[0]);
+                    default:
+                        ((Field) m).set(isStatic ? null : args[0], args[isStatic ? 0 : 1]);
+                        return null;
+                }
+            }catch(InvocationTargetException e){
+                throw e.getCause();                     // Don't wrap twice
+            }
+        }
+    }
+
+    /**
+     * Get the abstract methods of a functional interface.
+     * @throws IllegalArgumentException If the given type isn't an interface or has no abstract methods.
+     */
+    private static Method[] abstractMethods(Class<?> type){
+        if(!type.isInterface()) throw new IllegalArgumentException(type.getName()+" is not an interface");
+        ArrayList<Method> l = new ArrayList<Method>();
+        for(Method m : type.getMethods())
+            if(Modifier.isAbstract(m.getModifiers()) && !isObjectMethod(m)) l.add(m);
+        if(l.isEmpty()) throw new IllegalArgumentException(type.getName()+" has no abstract methods");
+        return l.toArray(new Method[l.size()]);
+    }
+
+    private static boolean isObjectMethod(Method m){
+        try{
+            Object.class.getMethod(m.getName(), m.getParameterTypes());
+            return true;                                // Interfaces may redeclare equals, hashCode and toString
+        }catch(NoSuchMethodException e){ return false; }
+    }
+
+    /**
+     * Parameters the interface method has to supply, receiver first.
+     */
+    private static Class<?>[] targetParameters(Member m, int kind){
+        boolean isStatic = Modifier.isStatic(m.getModifiers());
+        Class<?>[] params;
+        switch(kind){
+            case KIND_METHOD: params = ((Method) m).getParameterTypes(); break;
+            case KIND_CONSTRUCTOR: return ((Constructor<?>) m).getParameterTypes();
+            case KIND_GETTER: params = new Class<?>[0]; break;
+            default: params = new Class<?>[]{ ((Field) m).getType() }; break;
+        }
+        if(isStatic) return params;
+        Class<?>[] withReceiver = new Class<?>[params.length + 1];
+        withReceiver[0] = m.getDeclaringClass();
+        System.arraycopy(params, 0, withReceiver, 1, params.length);
+        return withReceiver;
+    }
+
+    private static Class<?> targetReturn(Member m, int kind){
+        switch(kind){
+            case KIND_METHOD: return ((Method) m).getReturnType();
+            case KIND_CONSTRUCTOR: return m.getDeclaringClass();
+            case KIND_GETTER: return ((Field) m).getType();
+            default: return void.class;
+        }
+    }
+
+    private static void checkSignature(Method m, Class<?>[] params, Class<?> ret){
+        Class<?>[] given = m.getParameterTypes();
+        if(given.length != params.length) throw new IllegalArgumentException(m+" should take "+params.length+" parameters");
+        for(int i = 0; i<params.length; ++i)
+            if((params[i].isPrimitive() || given[i].isPrimitive()) && params[i] != given[i])
+                throw new IllegalArgumentException("Parameter "+i+" of "+m+" should be of type "+params[i].getName());
+        Class<?> r = m.getReturnType();
+        if(r != void.class && (ret == void.class || ((ret.isPrimitive() || r.isPrimitive()) && r != ret)))
+            throw new IllegalArgumentException(m+" should return "+ret.getName());
+    }
+
+    /**
+     * Generate and instantiate a class implementing the given interface by accessing the given member.
+     * @return Implementation or null if the class couldn't be defined.
+     */
+    private static Object generate(Member member, int kind, Class<?> type, Method[] methods) throws Exception {
+        Class<?> declaring = member.getDeclaringClass();
+        ClassLoader loader = declaring.getClassLoader();
+        String pkg = packageOf(declaring);
+        ProtectionDomain domain = declaring.getProtectionDomain();
+        boolean direct = !Modifier.isPrivate(member.getModifiers()) && !(kind == KIND_SETTER && Modifier.isFinal(member.getModifiers()));
+        if(loader == null || pkg.startsWith("java/") || !canSee(loader, type)){
+            // Can't be defined next to the member, so only public members of public classes can be accessed directly
+            direct &= Modifier.isPublic(member.getModifiers()) && Modifier.isPublic(declaring.getModifiers());
+            loader = type.getClassLoader();
+            pkg = packageOf(type);
+            domain = type.getProtectionDomain();
+            if(loader == null){
+                loader = Classes.class.getClassLoader();
+                pkg = packageOf(Classes.class);
+                domain = Classes.class.getProtectionDomain();
+            }
+            direct &= canSee(loader, declaring);
+        }
+        String name = pkg + "Accessor$$" + generated.incrementAndGet();
+        if(direct) return define(loader, name, bytecode(name, member, kind, type, methods, true), domain).newInstance();
+        return Handles.generate(loader, name, member, kind, type, methods, domain);
+    }
+
+    private static String packageOf(Class<?> c){
+        String name = c.getName().replace('.', '/');
+        return name.substring(0, name.lastIndexOf('/') + 1);
+    }
+
+    private static boolean canSee(ClassLoader loader, Class<?> c){
+        try{ return Class.forName(c.getName(), false, loader) == c; }catch(Throwable ignored){ return false; }
+    }
+
+    private static Class<?> define(ClassLoader loader, String name, byte[] bytecode, ProtectionDomain domain){
+        return (Class<?>) SafeReflection.invokeMethod(loader, defineClass, name.replace('/', '.'), bytecode, 0, bytecode.length, domain);
+    }
+
+    private static byte[] bytecode(String name, Member member, int kind, Class<?> type, Method[] methods, boolean direct){
+        String handle = "Ljava/lang/invoke/MethodHandle;";
+        boolean itf = member.getDeclaringClass().isInterface() && Modifier.isStatic(member.getModifiers());
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS); // Straight-line code, so no frames are needed
+        writer.visit(itf ? Opcodes.V1_8 : direct ? Opcodes.V1_6 : Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                name, null, "java/lang/Object", new String[]{ Type.getInternalName(type) });
+
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if(!direct)
+            for(int i = 0; i<methods.length; ++i)
+                writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "handle"+i, handle, null, null).visitEnd();
+
+        Class<?>[] params = targetParameters(member, kind);
+        Class<?> ret = targetReturn(member, kind);
+        String owner = Type.getInternalName(member.getDeclaringClass());
+        boolean isStatic = Modifier.isStatic(member.getModifiers());
+        for(int i = 0; i<methods.length; ++i){
+            Method m = methods[i];
+            mv = writer.visitMethod(Opcodes.ACC_PUBLIC, m.getName(), Type.getMethodDescriptor(m), null, null);
+            mv.visitCode();
+            if(!direct) mv.visitFieldInsn(Opcodes.GETSTATIC, name, "handle"+i, handle);
+            else if(kind == KIND_CONSTRUCTOR){
+                mv.visitTypeInsn(Opcodes.NEW, owner);
+                mv.visitInsn(Opcodes.DUP);
+            }
+            Class<?>[] given = m.getParameterTypes();
+            for(int j = 0, slot = 1; j<given.length; ++j){
+                Type t = Type.getType(given[j]);
+                mv.visitVarInsn(t.getOpcode(Opcodes.ILOAD), slot);
+                slot += t.getSize();
+                if(direct && !params[j].isPrimitive() && !params[j].isAssignableFrom(given[j]))
+                    mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(params[j]));
+            }
+            Class<?> r = m.getReturnType();
+            if(!direct){
+                // The handle has been adapted to the exact type of the method, so nothing is boxed or cast here
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", Type.getMethodDescriptor(m), false);
+                mv.visitInsn(Type.getType(r).getOpcode(Opcodes.IRETURN));
+            }else{
+                switch(kind){
+                    case KIND_METHOD:
+                        Method target = (Method) member;
+                        boolean onInterface = target.getDeclaringClass().isInterface();
+                        mv.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : onInterface ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL,
+                                owner, target.getName(), Type.getMethodDescriptor(target), onInterface);
+                        break;
+                    case KIND_CONSTRUCTOR:
+                        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, owner, "<init>", Type.getConstructorDescriptor((Constructor<?>) member), false);
+                        break;
+                    case KIND_GETTER:
+                        mv.visitFieldInsn(isStatic ? Opcodes.GETSTATIC : Opcodes.GETFIELD, owner, member.getName(), Type.getDescriptor(ret));
+                        break;
+                    default:
+                        mv.visitFieldInsn(isStatic ? Opcodes.PUTSTATIC : Opcodes.PUTFIELD, owner, member.getName(), Type.getDescriptor(((Field) member).getType()));
+                        break;
+                }
+                if(r == void.class){
+                    if(ret != void.class) mv.visitInsn(Type.getType(ret).getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+                    mv.visitInsn(Opcodes.RETURN);
+                }else{
+                    if(!r.isPrimitive() && !r.isAssignableFrom(ret)) mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(r));
+                    mv.visitInsn(Type.getType(r).getOpcode(Opcodes.IRETURN));
+                }
+            }
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
         writer.visitEnd();
-        byte[] bytecode = writer.toByteArray();
-        return (Class<?>) SafeReflection.invokeMethod(
-                loader,
-                SafeReflection.getMethod(ClassLoader.class, "defineClass", String.class, byte[].class, int.class, int.class, ProtectionDomain.class),
-                className.replace('.', '/'), bytecode, 0, bytecode.length, null
-        );
+        return writer.toByteArray();
+    }
+
+    /**
+     * Isolates all references to method handles so that they are only resolved on platforms that have them.
+     */
+    private static final class Handles {
+        /**
+         * Generate an accessor holding handles to the member in static final fields. The JIT treats such fields as constants, so calls
+         * through the handles can be inlined.
+         * The handles are stored before the accessor is first used, so the generated class doesn't need to be able to see this one.
+         */
+        static Object generate(ClassLoader loader, String name, Member member, int kind, Class<?> type, Method[] methods, ProtectionDomain domain) throws Exception {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle h;
+            switch(kind){
+                case KIND_METHOD: h = lookup.unreflect((Method) member); break;
+                case KIND_CONSTRUCTOR: h = lookup.unreflectConstructor((Constructor<?>) member); break;
+                case KIND_GETTER: h = lookup.unreflectGetter((Field) member); break;
+                default: h = lookup.unreflectSetter((Field) member); break;
+            }
+            Class<?> c = define(loader, name, bytecode(name, member, kind, type, methods, false), domain);
+            if(c == null) return null;
+            for(int i = 0; i<methods.length; ++i)
+                FieldHandle.of(c.getDeclaredField("handle"+i))
+                        .putObjectVolatile(null, h.asType(MethodType.methodType(methods[i].getReturnType(), methods[i].getParameterTypes())));
+            return c.newInstance();
+        }
     }
 }
@@ -0,0 +1,351 @@
+package net.tofvesson.reflection;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Type-specialized access to a single field through {@link Unsafe}, with the base and offset of the field resolved up front.
+ * Accessors are looked up by class, field name and volatility; the first lookup walks the class hierarchy and every later one is
+ * served from a cache, including lookups of fields that don't exist. Fields declared volatile are always accessed as such.
+ * Values are boxed and unboxed following the same rules as {@link Field#get(Object)} and {@link Field#set(Object, Object)}, but
+ * failures are reported through return values rather than exceptions.
+ * Accessors are cached on the classes themselves through a {@link ClassValue} where available, so the cache doesn't keep classes (or
+ * their class loaders) from being unloaded.
+ */
+abstract class FieldAccessor {
+
+    private static final Unsafe unsafe = SafeReflection.unsafe;
+    private static final Cache cache = Cache.create();
+
+    /**
+     * Accessor for fields that don't exist: reads return null and writes fail.
+     */
+    static final FieldAccessor MISSING = new FieldAccessor(null, null, 0, false) {
+        Object get(Object target) { return null; }
+        boolean put(Object target, Object value) { return false; }
+    };
+
+    final Field field;
+    final Object base;
+    final long offset;
+    final boolean vol;
+
+    FieldAccessor(Field field, Object base, long offset, boolean vol){
+        this.field = field;
+        this.base = base;
+        this.offset = offset;
+        this.vol = vol;
+    }
+
+    /**
+     * Read the value of the field.
+     * @param target Object to read from. Ignored for static fields.
+     * @return Value of the field (boxed if it's primitive) or null if target isn't an instance of the declaring class.
+     */
+    abstract Object get(Object target);
+
+    /**
+     * Write the value of the field.
+     * @param target Object to write to. Ignored for static fields.
+     * @param value Value to write. Primitive values are unboxed and widened where needed.
+     * @return True if the value was written. False if target isn't an instance of the declaring class or if the value can't be
+     * converted to the type of the field.
+     */
+    abstract boolean put(Object target, Object value);
+
+    /**
+     * Get the object that the offset of the field is relative to.
+     * @return Object to access or null if the field can't be accessed through the given target.
+     */
+    final Object base(Object target){
+        if(base != null) return base;
+        return field.getDeclaringClass().isInstance(target) ? target : null;
+    }
+
+    /**
+     * Get the accessor for the first field with the given name found in the given class or any of its superclasses.
+     * @param c Class to start searching in.
+     * @param name Name of the field.
+     * @param vol Whether or not accesses should be volatile.
+     * @return Cached accessor or {@link #MISSING} if no such field exists.
+     */
+    static FieldAccessor of(Class<?> c, String name, boolean vol){
+        if(c == null || name == null) return MISSING;
+        Fields fields = cache.get(c);
+        ConcurrentHashMap<String, FieldAccessor> byName = vol ? fields.vol : fields.plain;
+        FieldAccessor a = byName.get(name);
+        if(a == null){
+            a = resolve(c, name, vol);
+            FieldAccessor prev = byName.putIfAbsent(name, a); // Two threads may have raced; keep whichever got there first
+            if(prev != null) a = prev;
+        }
+        return a;
+    }
+
+    /**
+     * Get the cached handles of the fields declared by the given class, by field name.
+     */
+    static ConcurrentHashMap<String, FieldHandle> handles(Class<?> c){ return cache.get(c).handles; }
+
+    private static FieldAccessor resolve(Class<?> c, String name, boolean vol){
+        for(Class<?> k = c; k != null; k = k.getSuperclass())
+            try{
+                return create(k.getDeclaredField(name), vol);
+            }catch(NoSuchFieldException ignored){}
+        return MISSING;
+    }
+
+    private static FieldAccessor create(Field f, boolean vol){
+        boolean isStatic = Modifier.isStatic(f.getModifiers());
+        if(isStatic) unsafe.ensureClassInitialized(f.getDeclaringClass()); // Otherwise static fields might be read before they're set
+        Object base = isStatic ? unsafe.staticFieldBase(f) : null;
+        long offset = isStatic ? unsafe.staticFieldOffset(f) : unsafe.objectFieldOffset(f);
+        vol |= Modifier.isVolatile(f.getModifiers());
+        Class<?> type = f.getType();
+        if(!type.isPrimitive()) return new ObjectAccessor(f, base, offset, vol);
+        if(type == int.class) return new IntAccessor(f, base, offset, vol);
+        if(type == long.class) return new LongAccessor(f, base, offset, vol);
+        if(type == boolean.class) return new BooleanAccessor(f, base, offset, vol);
+        if(type == double.class) return new DoubleAccessor(f, base, offset, vol);
+        if(type == float.class) return new FloatAccessor(f, base, offset, vol);
+        if(type == byte.class) return new ByteAccessor(f, base, offset, vol);
+        if(type == short.class) return new ShortAccessor(f, base, offset, vol);
+        return new CharAccessor(f, base, offset, vol);
+    }
+
+    /**
+     * Accessors by class.
+     */
+    private static abstract class Cache {
+        abstract Fields get(Class<?> c);
+
+        static Cache create(){
+            try{
+                return ClassValueCache.create();
+            }catch(Throwable ignored){                  // Java 6 and older Android versions don't have ClassValue
+                return new MapCache();
+            }
+        }
+    }
+
+    /**
+     * Isolates all references to ClassValue so that they are only resolved on platforms that have it.
+     */
+    private static final class ClassValueCache extends Cache {
+        private final ClassValue<Fields> fields = new ClassValue<Fields>() {
+            protected Fields computeValue(Class<?> type) { return new Fields(); }
+        };
+
+        static Cache create(){ return new ClassValueCache(); }
+
+        Fields get(Class<?> c) { return fields.get(c); }
+    }
+
+    /**
+     * Fallback that keeps every class it has seen reachable.
+     */
+    private static final class MapCache extends Cache {
+        private final ConcurrentHashMap<Class<?>, Fields> fields = new ConcurrentHashMap<Class<?>, Fields>();
+
+        Fields get(Class<?> c) {
+            Fields f = fields.get(c);
+            if(f == null){
+                f = new Fields();
+                Fields prev = fields.putIfAbsent(c, f);
+                if(prev != null) f = prev;
+            }
+            return f;
+        }
+    }
+
+    /**
+     * Accessors of a single class, by field name, and handles of the fields it declares.
+     */
+    private static final class Fields {
+        final ConcurrentHashMap<String, FieldAccessor> plain = new ConcurrentHashMap<String, FieldAccessor>();
+        final ConcurrentHashMap<String, FieldAccessor> vol = new ConcurrentHashMap<String, FieldAccessor>();
+        final ConcurrentHashMap<String, FieldHandle> handles = new ConcurrentHashMap<String, FieldHandle>();
+    }
+
+    // Widening conversions allowed when unboxing, as per JLS 5.1.2
+
+    private static boolean isInt(Object v){ return v instanceof Integer || v instanceof Short || v instanceof Byte || v instanceof Character; }
+    private static int toInt(Object v){ return v instanceof Character ? (Character) v : ((Number) v).intValue(); }
+    private static boolean isLong(Object v){ return v instanceof Long || isInt(v); }
+    private static long toLong(Object v){ return v instanceof Character ? (Character) v : ((Number) v).longValue(); }
+    private static boolean isFloat(Object v){ return v instanceof Float || isLong(v); }
+    private static float toFloat(Object v){ return v instanceof Character ? (Character) v : ((Number) v).floatValue(); }
+    private static boolean isDouble(Object v){ return v instanceof Double || isFloat(v); }
+    private static double toDouble(Object v){ return v instanceof Character ? (Character) v : ((Number) v).doubleValue(); }
+
+    private static final class ObjectAccessor extends FieldAccessor {
+        private final Class<?> type;
+
+        ObjectAccessor(Field f, Object base, long offset, boolean vol){
+            super(f, base, offset, vol);
+            type = f.getType();
+        }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getObjectVolatile(o, offset) : unsafe.getObject(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || (value != null && !type.isInstance(value))) return false;
+            if(vol) unsafe.putObjectVolatile(o, offset, value);
+            else unsafe.putObject(o, offset, value);
+            return true;
+        }
+    }
+
+    private static final class IntAccessor extends FieldAccessor {
+        IntAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getIntVolatile(o, offset) : unsafe.getInt(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !isInt(value)) return false;
+            if(vol) unsafe.putIntVolatile(o, offset, toInt(value));
+            else unsafe.putInt(o, offset, toInt(value));
+            return true;
+        }
+    }
+
+    private static final class LongAccessor extends FieldAccessor {
+        LongAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getLongVolatile(o, offset) : unsafe.getLong(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !isLong(value)) return false;
+            if(vol) unsafe.putLongVolatile(o, offset, toLong(value));
+            else unsafe.putLong(o, offset, toLong(value));
+            return true;
+        }
+    }
+
+    private static final class BooleanAccessor extends FieldAccessor {
+        BooleanAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getBooleanVolatile(o, offset) : unsafe.getBoolean(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !(value instanceof Boolean)) return false;
+            if(vol) unsafe.putBooleanVolatile(o, offset, (Boolean) value);
+            else unsafe.putBoolean(o, offset, (Boolean) value);
+            return true;
+        }
+    }
+
+    private static final class DoubleAccessor extends FieldAccessor {
+        DoubleAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getDoubleVolatile(o, offset) : unsafe.getDouble(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !isDouble(value)) return false;
+            if(vol) unsafe.putDoubleVolatile(o, offset, toDouble(value));
+            else unsafe.putDouble(o, offset, toDouble(value));
+            return true;
+        }
+    }
+
+    private static final class FloatAccessor extends FieldAccessor {
+        FloatAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getFloatVolatile(o, offset) : unsafe.getFloat(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !isFloat(value)) return false;
+            if(vol) unsafe.putFloatVolatile(o, offset, toFloat(value));
+            else unsafe.putFloat(o, offset, toFloat(value));
+            return true;
+        }
+    }
+
+    private static final class ByteAccessor extends FieldAccessor {
+        ByteAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getByteVolatile(o, offset) : unsafe.getByte(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !(value instanceof Byte)) return false;
+            if(vol) unsafe.putByteVolatile(o, offset, (Byte) value);
+            else unsafe.putByte(o, offset, (Byte) value);
+            return true;
+        }
+    }
+
+    private static final class ShortAccessor extends FieldAccessor {
+        ShortAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getShortVolatile(o, offset) : unsafe.getShort(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !(value instanceof Short || value instanceof Byte)) return false;
+            short s = ((Number) value).shortValue();
+            if(vol) unsafe.putShortVolatile(o, offset, s);
+            else unsafe.putShort(o, offset, s);
+            return true;
+        }
+    }
+
+    private static final class CharAccessor extends FieldAccessor {
+        CharAccessor(Field f, Object base, long offset, boolean vol){ super(f, base, offset, vol); }
+
+        Object get(Object target) {
+            Object o = base(target);
+            if(o == null) return null;
+            return vol ? unsafe.getCharVolatile(o, offset) : unsafe.getChar(o, offset);
+        }
+
+        boolean put(Object target, Object value) {
+            Object o = base(target);
+            if(o == null || !(value instanceof Character)) return false;
+            if(vol) unsafe.putCharVolatile(o, offset, (Character) value);
+            else unsafe.putChar(o, offset, (Character) value);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package net.tofvesson.reflection;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Typed, boxing-free access to a single field, modelled after the access modes of java.lang.invoke.VarHandle:
+ * <ul>
+ *     <li><i>plain</i> (get/put): no ordering guarantees, even if the field is declared volatile</li>
+ *     <li><i>volatile</i>: sequentially consistent</li>
+ *     <li><i>acquire/release</i>: reads aren't reordered with later accesses and writes aren't reordered with earlier accesses</li>
+ *     <li><i>compare-and-set</i>: atomic, with volatile semantics (floating point values are compared by their bits)</li>
+ * </ul>
+ * The base and offset of the field are resolved once, when the handle is created. Accessors must match the declared type of the
+ * field exactly; no widening is performed. Access checks don't apply and final fields can be written, so the same caveats as for
+ * {@link SafeReflection#setValue(Object, Class, String, Object, boolean)} apply.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class FieldHandle {
+
+    private static final Unsafe unsafe = SafeReflection.unsafe;
+    private static final boolean fences;
+
+    static{
+        boolean b;
+        try{
+            Unsafe.class.getMethod("loadFence");
+            b = true;
+        }catch(Throwable ignored){ b = false; } // Java 7 and older: fall back to volatile accesses for acquire/release
+        fences = b;
+    }
+
+    private final Field field;
+    private final Class<?> type, declaring;
+    private final Object base;
+    private final long offset;
+
+    private FieldHandle(Field field){
+        this.field = field;
+        type = field.getType();
+        declaring = field.getDeclaringClass();
+        if(Modifier.isStatic(field.getModifiers())){
+            unsafe.ensureClassInitialized(declaring);
+            base = unsafe.staticFieldBase(field);
+            offset = unsafe.staticFieldOffset(field);
+        }else{
+            base = null;
+            offset = unsafe.objectFieldOffset(field);
+        }
+    }
+
+    /**
+     * Get the handle for the given field.
+     * @param f Field to access.
+     * @return Cached handle.
+     */
+    public static FieldHandle of(Field f){
+        ConcurrentHashMap<String, FieldHandle> cache = FieldAccessor.handles(f.getDeclaringClass()); // Cached with the class, so it can still be unloaded
+        FieldHandle h = cache.get(f.getName());
+        if(h == null){
+            h = new FieldHandle(f);
+            FieldHandle prev = cache.putIfAbsent(f.getName(), h); // Two threads may have raced; keep whichever got there first
+            if(prev != null) h = prev;
+        }
+        return h;
+    }
+
+    /**
+     * Get the handle for the first field with the given name found in the given class or any of its superclasses.
+     * @param c Class to start searching in.
+     * @param name Name of field.
+     * @return Cached handle or null if no field with the given name exists.
+     */
+    public static FieldHandle of(Class<?> c, String name){
+        FieldAccessor a = FieldAccessor.of(c, name, false);
+        return a == FieldAccessor.MISSING ? null : of(a.field);
+    }
+
+    public Field getField(){ return field; }
+
+    public Class<?> getType(){ return type; }
+
+    public boolean isStatic(){ return base != null; }
+
+    /**
+     * Read the value of the field, boxing it if it's primitive.
+     * @param target Object to read from. Ignored for static fields.
+     */
+    public Object get(Object target){
+        Object o = base(target);
+        if(!type.isPrimitive()) return unsafe.getObject(o, offset);
+        if(type == int.class) return unsafe.getInt(o, offset);
+        if(type == long.class) return unsafe.getLong(o, offset);
+        if(type == boolean.class) return unsafe.getBoolean(o, offset);
+        if(type == double.class) return unsafe.getDouble(o, offset);
+        if(type == float.class) return unsafe.getFloat(o, offset);
+        if(type == byte.class) return unsafe.getByte(o, offset);
+        if(type == short.class) return unsafe.getShort(o, offset);
+        return unsafe.getChar(o, offset);
+    }
+
+    // ---- Object ----
+
+    public Object getObject(Object target){ return unsafe.getObject(objectBase(target), offset); }
+    public Object getObjectVolatile(Object target){ return unsafe.getObjectVolatile(objectBase(target), offset); }
+    public Object getObjectAcquire(Object target){
+        Object o = objectBase(target);
+        if(!fences) return unsafe.getObjectVolatile(o, offset);
+        Object v = unsafe.getObject(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putObject(Object target, Object value){ unsafe.putObject(objectBase(target, value), offset, value); }
+    public void putObjectVolatile(Object target, Object value){ unsafe.putObjectVolatile(objectBase(target, value), offset, value); }
+    public void putObjectRelease(Object target, Object value){ unsafe.putOrderedObject(objectBase(target, value), offset, value); }
+    public boolean compareAndSetObject(Object target, Object expect, Object update){ return unsafe.compareAndSwapObject(objectBase(target, update), offset, expect, update); }
+    public Object getAndSetObject(Object target, Object value){
+        Object o = objectBase(target, value);
+        Object v;
+        do v = unsafe.getObjectVolatile(o, offset);
+        while(!unsafe.compareAndSwapObject(o, offset, v, value));
+        return v;
+    }
+
+    // ---- int ----
+
+    public int getInt(Object target){ return unsafe.getInt(base(target, int.class), offset); }
+    public int getIntVolatile(Object target){ return unsafe.getIntVolatile(base(target, int.class), offset); }
+    public int getIntAcquire(Object target){
+        Object o = base(target, int.class);
+        if(!fences) return unsafe.getIntVolatile(o, offset);
+        int v = unsafe.getInt(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putInt(Object target, int value){ unsafe.putInt(base(target, int.class), offset, value); }
+    public void putIntVolatile(Object target, int value){ unsafe.putIntVolatile(base(target, int.class), offset, value); }
+    public void putIntRelease(Object target, int value){ unsafe.putOrderedInt(base(target, int.class), offset, value); }
+    public boolean compareAndSetInt(Object target, int expect, int update){ return unsafe.compareAndSwapInt(base(target, int.class), offset, expect, update); }
+    public int getAndSetInt(Object target, int value){
+        Object o = base(target, int.class);
+        int v;
+        do v = unsafe.getIntVolatile(o, offset);
+        while(!unsafe.compareAndSwapInt(o, offset, v, value));
+        return v;
+    }
+    public int getAndAddInt(Object target, int delta){
+        Object o = base(target, int.class);
+        int v;
+        do v = unsafe.getIntVolatile(o, offset);
+        while(!unsafe.compareAndSwapInt(o, offset, v, v + delta));
+        return v;
+    }
+
+    // ---- long ----
+
+    public long getLong(Object target){ return unsafe.getLong(base(target, long.class), offset); }
+    public long getLongVolatile(Object target){ return unsafe.getLongVolatile(base(target, long.class), offset); }
+    public long getLongAcquire(Object target){
+        Object o = base(target, long.class);
+        if(!fences) return unsafe.getLongVolatile(o, offset);
+        long v = unsafe.getLong(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putLong(Object target, long value){ unsafe.putLong(base(target, long.class), offset, value); }
+    public void putLongVolatile(Object target, long value){ unsafe.putLongVolatile(base(target, long.class), offset, value); }
+    public void putLongRelease(Object target, long value){ unsafe.putOrderedLong(base(target, long.class), offset, value); }
+    public boolean compareAndSetLong(Object target, long expect, long update){ return unsafe.compareAndSwapLong(base(target, long.class), offset, expect, update); }
+    public long getAndSetLong(Object target, long value){
+        Object o = base(target, long.class);
+        long v;
+        do v = unsafe.getLongVolatile(o, offset);
+        while(!unsafe.compareAndSwapLong(o, offset, v, value));
+        return v;
+    }
+    public long getAndAddLong(Object target, long delta){
+        Object o = base(target, long.class);
+        long v;
+        do v = unsafe.getLongVolatile(o, offset);
+        while(!unsafe.compareAndSwapLong(o, offset, v, v + delta));
+        return v;
+    }
+
+    // ---- double ----
+
+    public double getDouble(Object target){ return unsafe.getDouble(base(target, double.class), offset); }
+    public double getDoubleVolatile(Object target){ return unsafe.getDoubleVolatile(base(target, double.class), offset); }
+    public double getDoubleAcquire(Object target){
+        Object o = base(target, double.class);
+        if(!fences) return unsafe.getDoubleVolatile(o, offset);
+        double v = unsafe.getDouble(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putDouble(Object target, double value){ unsafe.putDouble(base(target, double.class), offset, value); }
+    public void putDoubleVolatile(Object target, double value){ unsafe.putDoubleVolatile(base(target, double.class), offset, value); }
+    public void putDoubleRelease(Object target, double value){ unsafe.putOrderedLong(base(target, double.class), offset, Double.doubleToRawLongBits(value)); }
+    public boolean compareAndSetDouble(Object target, double expect, double update){
+        return unsafe.compareAndSwapLong(base(target, double.class), offset, Double.doubleToRawLongBits(expect), Double.doubleToRawLongBits(update));
+    }
+
+    // ---- float ----
+
+    public float getFloat(Object target){ return unsafe.getFloat(base(target, float.class), offset); }
+    public float getFloatVolatile(Object target){ return unsafe.getFloatVolatile(base(target, float.class), offset); }
+    public float getFloatAcquire(Object target){
+        Object o = base(target, float.class);
+        if(!fences) return unsafe.getFloatVolatile(o, offset);
+        float v = unsafe.getFloat(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putFloat(Object target, float value){ unsafe.putFloat(base(target, float.class), offset, value); }
+    public void putFloatVolatile(Object target, float value){ unsafe.putFloatVolatile(base(target, float.class), offset, value); }
+    public void putFloatRelease(Object target, float value){ unsafe.putOrderedInt(base(target, float.class), offset, Float.floatToRawIntBits(value)); }
+    public boolean compareAndSetFloat(Object target, float expect, float update){
+        return unsafe.compareAndSwapInt(base(target, float.class), offset, Float.floatToRawIntBits(expect), Float.floatToRawIntBits(update));
+    }
+
+    // ---- boolean ----
+
+    public boolean getBoolean(Object target){ return unsafe.getBoolean(base(target, boolean.class), offset); }
+    public boolean getBooleanVolatile(Object target){ return unsafe.getBooleanVolatile(base(target, boolean.class), offset); }
+    public boolean getBooleanAcquire(Object target){
+        Object o = base(target, boolean.class);
+        if(!fences) return unsafe.getBooleanVolatile(o, offset);
+        boolean v = unsafe.getBoolean(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putBoolean(Object target, boolean value){ unsafe.putBoolean(base(target, boolean.class), offset, value); }
+    public void putBooleanVolatile(Object target, boolean value){ unsafe.putBooleanVolatile(base(target, boolean.class), offset, value); }
+    public void putBooleanRelease(Object target, boolean value){
+        Object o = base(target, boolean.class);
+        if(!fences) unsafe.putBooleanVolatile(o, offset, value);
+        else{
+            unsafe.storeFence();
+            unsafe.putBoolean(o, offset, value);
+        }
+    }
+
+    // ---- byte ----
+
+    public byte getByte(Object target){ return unsafe.getByte(base(target, byte.class), offset); }
+    public byte getByteVolatile(Object target){ return unsafe.getByteVolatile(base(target, byte.class), offset); }
+    public byte getByteAcquire(Object target){
+        Object o = base(target, byte.class);
+        if(!fences) return unsafe.getByteVolatile(o, offset);
+        byte v = unsafe.getByte(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putByte(Object target, byte value){ unsafe.putByte(base(target, byte.class), offset, value); }
+    public void putByteVolatile(Object target, byte value){ unsafe.putByteVolatile(base(target, byte.class), offset, value); }
+    public void putByteRelease(Object target, byte value){
+        Object o = base(target, byte.class);
+        if(!fences) unsafe.putByteVolatile(o, offset, value);
+        else{
+            unsafe.storeFence();
+            unsafe.putByte(o, offset, value);
+        }
+    }
+
+    // ---- short ----
+
+    public short getShort(Object target){ return unsafe.getShort(base(target, short.class), offset); }
+    public short getShortVolatile(Object target){ return unsafe.getShortVolatile(base(target, short.class), offset); }
+    public short getShortAcquire(Object target){
+        Object o = base(target, short.class);
+        if(!fences) return unsafe.getShortVolatile(o, offset);
+        short v = unsafe.getShort(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putShort(Object target, short value){ unsafe.putShort(base(target, short.class), offset, value); }
+    public void putShortVolatile(Object target, short value){ unsafe.putShortVolatile(base(target, short.class), offset, value); }
+    public void putShortRelease(Object target, short value){
+        Object o = base(target, short.class);
+        if(!fences) unsafe.putShortVolatile(o, offset, value);
+        else{
+            unsafe.storeFence();
+            unsafe.putShort(o, offset, value);
+        }
+    }
+
+    // ---- char ----
+
+    public char getChar(Object target){ return unsafe.getChar(base(target, char.class), offset); }
+    public char getCharVolatile(Object target){ return unsafe.getCharVolatile(base(target, char.class), offset); }
+    public char getCharAcquire(Object target){
+        Object o = base(target, char.class);
+        if(!fences) return unsafe.getCharVolatile(o, offset);
+        char v = unsafe.getChar(o, offset);
+        unsafe.loadFence();
+        return v;
+    }
+    public void putChar(Object target, char value){ unsafe.putChar(base(target, char.class), offset, value); }
+    public void putCharVolatile(Object target, char value){ unsafe.putCharVolatile(base(target, char.class), offset, value); }
+    public void putCharRelease(Object target, char value){
+        Object o = base(target, char.class);
+        if(!fences) unsafe.putCharVolatile(o, offset, value);
+        else{
+            unsafe.storeFence();
+            unsafe.putChar(o, offset, value);
+        }
+    }
+
+    /**
+     * Get the object that the offset of the field is relative to, checking that the given target can be accessed.
+     */
+    private Object base(Object target){
+        if(base != null) return base;
+        if(!declaring.isInstance(target)){
+            if(target == null) throw new NullPointerException("Instance field "+field.getName()+" requires a target");
+            throw new IllegalArgumentException("Object of type "+target.getClass().getName()+" doesn't declare field "+field.getName());
+        }
+        return target;
+    }
+
+    private Object base(Object target, Class<?> expected){
+        if(type != expected) throw new IllegalArgumentException("Field "+field.getName()+" is of type "+type.getName()+", not "+expected.getName());
+        return base(target);
+    }
+
+    private Object objectBase(Object target){
+        if(type.isPrimitive()) throw new IllegalArgumentException("Field "+field.getName()+" is of primitive type "+type.getName());
+        return base(target);
+    }
+
+    private Object objectBase(Object target, Object value){
+        Object o = objectBase(target);
+        if(value != null && !type.isInstance(value))
+            throw new IllegalArgumentException("Can't assign "+value.getClass().getName()+" to field "+field.getName()+" of type "+type.getName());
+        return o;
+    }
+}
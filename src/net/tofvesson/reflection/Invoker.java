@@ -0,0 +1,243 @@
+package net.tofvesson.reflection;
+
+import jdk.internal.org.objectweb.asm.ClassWriter;
+import jdk.internal.org.objectweb.asm.MethodVisitor;
+import jdk.internal.org.objectweb.asm.Opcodes;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cached, JIT-friendly replacement for {@link Method#invoke(Object, Object...)} and {@link Constructor#newInstance(Object...)}.
+ * Where supported, every member gets a generated invoker class that calls a constant method handle, so repeated invocations can be
+ * inlined all the way down to the target. Otherwise, invocations fall back to plain reflection.
+ * Just like reflection, exceptions thrown by the target are wrapped in an {@link InvocationTargetException}.
+ * Invokers are cached per declaring class through a {@link ClassValue} where available, and generated invokers are unnamed classes,
+ * so neither keeps the class of the target (or its class loader) from being unloaded.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public abstract class Invoker {
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final Cache cache = Cache.create();
+    private static final boolean methodHandles;
+
+    static{
+        boolean b;
+        try{
+            Class.forName("java.lang.invoke.MethodHandle");
+            b = true;
+        }catch(Throwable ignored){ b = false; } // Java 6 and older Android versions don't have method handles
+        methodHandles = b;
+    }
+
+    protected Invoker(){}
+
+    /**
+     * Get the invoker for the given method. The method is made accessible.
+     * @param m Method to invoke.
+     * @return Cached invoker.
+     */
+    public static Invoker of(Method m){ return lookup(m); }
+
+    /**
+     * Get the invoker for the given constructor. The constructor is made accessible and the target passed on invocation is ignored.
+     * @param c Constructor to invoke.
+     * @return Cached invoker.
+     */
+    public static Invoker of(Constructor<?> c){ return lookup(c); }
+
+    /**
+     * Invoke the underlying member.
+     * @param target Object to invoke method on. Ignored for static methods and constructors.
+     * @param args Parameters to supply to the member. May be null if it doesn't take any.
+     * @return Return value of the method, null for void methods, or the constructed object.
+     * @throws InvocationTargetException If the member (or the conversion of the given arguments) threw an exception.
+     */
+    public final Object invoke(Object target, Object... args) throws InvocationTargetException {
+        try{
+            return invoke0(target, args == null ? NO_ARGS : args);
+        }catch(Throwable t){
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Invoke the underlying member without wrapping anything it throws.
+     */
+    protected abstract Object invoke0(Object target, Object[] args) throws Throwable;
+
+    private static Invoker lookup(Member m){
+        ConcurrentHashMap<Member, Invoker> invokers = cache.get(m.getDeclaringClass());
+        Invoker i = invokers.get(m);
+        if(i == null){
+            ((java.lang.reflect.AccessibleObject) m).setAccessible(true);
+            i = methodHandles ? HandleSupport.generate(m) : null;
+            if(i == null) i = new Reflective(m);
+            Invoker prev = invokers.putIfAbsent(m, i);  // Two threads may have raced; keep whichever got there first
+            if(prev != null) i = prev;
+        }
+        return i;
+    }
+
+    /**
+     * Invokers by declaring class.
+     */
+    private static abstract class Cache {
+        abstract ConcurrentHashMap<Member, Invoker> get(Class<?> c);
+
+        static Cache create(){
+            try{
+                return ClassValueCache.create();
+            }catch(Throwable ignored){                  // Java 6 and older Android versions don't have ClassValue
+                return new MapCache();
+            }
+        }
+    }
+
+    /**
+     * Isolates all references to ClassValue so that they are only resolved on platforms that have it.
+     */
+    private static final class ClassValueCache extends Cache {
+        private final ClassValue<ConcurrentHashMap<Member, Invoker>> invokers = new ClassValue<ConcurrentHashMap<Member, Invoker>>() {
+            protected ConcurrentHashMap<Member, Invoker> computeValue(Class<?> type) { return new ConcurrentHashMap<Member, Invoker>(); }
+        };
+
+        static Cache create(){ return new ClassValueCache(); }
+
+        ConcurrentHashMap<Member, Invoker> get(Class<?> c) { return invokers.get(c); }
+    }
+
+    /**
+     * Fallback that keeps every class it has seen reachable.
+     */
+    private static final class MapCache extends Cache {
+        private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<Member, Invoker>> invokers = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<Member, Invoker>>();
+
+        ConcurrentHashMap<Member, Invoker> get(Class<?> c) {
+            ConcurrentHashMap<Member, Invoker> m = invokers.get(c);
+            if(m == null){
+                m = new ConcurrentHashMap<Member, Invoker>();
+                ConcurrentHashMap<Member, Invoker> prev = invokers.putIfAbsent(c, m);
+                if(prev != null) m = prev;
+            }
+            return m;
+        }
+    }
+
+    /**
+     * Invoker backed by plain reflection. Used when invokers can't be generated.
+     */
+    private static final class Reflective extends Invoker {
+        private final Method method;
+        private final Constructor<?> constructor;
+
+        Reflective(Member m){
+            method = m instanceof Method ? (Method) m : null;
+            constructor = m instanceof Constructor ? (Constructor<?>) m : null;
+        }
+
+        @Override
+        protected Object invoke0(Object target, Object[] args) throws Throwable {
+            try{
+                return method != null ? method.invoke(target, args) : constructor.newInstance(args);
+            }catch(InvocationTargetException e){
+                throw e.getCause();                     // Don't wrap twice
+            }
+        }
+    }
+
+    /**
+     * Isolates all references to method handles so that they are only resolved on platforms that have them.
+     */
+    static final class HandleSupport {
+        private static final MethodType erased = MethodType.methodType(Object.class, Object.class, Object[].class);
+        private static final AtomicInteger count = new AtomicInteger();
+        private static final String handleOwner = HandleSupport.class.getName().replace('.', '/');
+        private static MethodHandle handoff;
+
+        /**
+         * Called from the static initializer of a generated invoker to pick up its handle.
+         */
+        static MethodHandle take(){
+            MethodHandle h = handoff;
+            handoff = null;
+            return h;
+        }
+
+        /**
+         * Generate an invoker class holding a handle to the given member in a static final field. The JIT treats such fields as
+         * constants, so calls through the handle can be inlined.
+         * @return Invoker or null if it couldn't be generated.
+         */
+        static synchronized Invoker generate(Member m){
+            try{
+                MethodHandle h;
+                int params;
+                if(m instanceof Method){
+                    h = MethodHandles.lookup().unreflect((Method) m);
+                    params = ((Method) m).getParameterTypes().length;
+                }else{
+                    h = MethodHandles.lookup().unreflectConstructor((Constructor<?>) m);
+                    params = ((Constructor<?>) m).getParameterTypes().length;
+                }
+                h = h.asSpreader(Object[].class, params);
+                if(m instanceof Constructor || Modifier.isStatic(m.getModifiers())) h = MethodHandles.dropArguments(h, 0, Object.class);
+                handoff = h.asType(erased);
+
+                String name = Invoker.class.getName().replace('.', '/')+"$Generated"+count.incrementAndGet();
+                Class<?> c = Classes.defineUnnamed(bytecode(name)); // Unnamed, so it's unloaded along with the handle it holds
+                return c == null ? null : (Invoker) c.newInstance(); // Runs static initializer, which takes the handle
+            }catch(Throwable ignored){
+                return null;
+            }finally{
+                handoff = null;
+            }
+        }
+
+        private static byte[] bytecode(String name){
+            String superName = Invoker.class.getName().replace('.', '/');
+            String handle = "Ljava/lang/invoke/MethodHandle;";
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+            writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, name, null, superName, null);
+            writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "handle", handle, null, null).visitEnd();
+
+            MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, handleOwner, "take", "()"+handle, false);
+            mv.visitFieldInsn(Opcodes.PUTSTATIC, name, "handle", handle);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = writer.visitMethod(Opcodes.ACC_PROTECTED, "invoke0", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", null, new String[]{ "java/lang/Throwable" });
+            mv.visitCode();
+            mv.visitFieldInsn(Opcodes.GETSTATIC, name, "handle", handle);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitVarInsn(Opcodes.ALOAD, 2);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            writer.visitEnd();
+            return writer.toByteArray();
+        }
+    }
+}
@@ -73,10 +73,20 @@ public final class SafeReflection {
 
     public static Object getFieldValue(Field f, Object o){
         try{
-            return o==null?unsafe.getObject(f.getDeclaringClass(), unsafe.staticFieldOffset(f)):unsafe.getObject(o, unsafe.objectFieldOffset(f));
+            return FieldHandle.of(f).get(o); // Primitive values are boxed
         }catch(Exception e){ throw new RuntimeException(e); } // Fatal and unexpected error
     }
 
+    /**
+     * Gets a typed handle to the field with the specified name in the defined class or any of its superclasses.
+     * Unlike {@link #getValue(Object, Class, String)} and {@link #setValue(Object, Class, String, Object, boolean)}, primitive values
+     * aren't boxed and the handle supports volatile, acquire/release and compare-and-set accesses.
+     * @param c Class to find field in.
+     * @param name Name of field.
+     * @return Handle or null if no field with specified name exists.
+     */
+    public static FieldHandle getFieldHandle(Class<?> c, String name){ return FieldHandle.of(c, name); }
+
     /**
      * Java 9-safe version of {@link Field#setAccessible(boolean)}
      * @param f Field to set accessible
@@ -217,9 +227,7 @@ public final class SafeReflection {
      * @return Object or null if object is null or field doesn't exist.
      */
     public static Object getValue(Object from, Class<?> c, String name){
-        try{ return getFieldValue(getField(from!=null?from.getClass():c, name), from); }catch(Throwable ignored){}
-        for(Class<?> c1 : getSupers(from!=null?from.getClass():c)) try{ return getFieldValue(getField(c1, name), from); }catch(Exception e){} // Find first field with the given value
-        return null;
+        return FieldAccessor.of(from!=null?from.getClass():c, name, false).get(from); // Resolved once per class and name
     }
 
     /**
@@ -291,6 +299,7 @@ public final class SafeReflection {
      * (not by java.lang.reflect.Field or sun.misc.Unsafe) to the field in the source will not be affected.
      * This should only happen, though, if the field isn't set during runtime i.e. in a static block or constructor. This means that only fields that are truly constant
      * like<br>"<i>public static final boolean b = false;</i>"<br>might be problematic.
+     * <br>The field is looked up once per class, name and volatility; later calls reuse the resolved accessor.
      * @param inv Object whose field to set the value of. Can be null.
      * @param in Class to find field in
      * @param name Name of field to modify.
@@ -299,18 +308,8 @@ public final class SafeReflection {
      * @return True if setting value succeeded.
      */
     public static boolean setValue(Object inv, Class<?> in, String name, Object value, boolean vol){
-        try{
-            Field f = getField(in, name); // Search defined class first
-            getPutMethod(f.getType(), vol).invoke(unsafe, createUnsafePutParams(inv, f, value));
-            return true;
-        }catch(Exception e){ e.printStackTrace(); }
-        for(Class<?> c : getSupers(inv==null?in:inv.getClass())) // Hierarchical upward search
-            try{
-                Field f = getField(c, name);
-                getPutMethod(f.getType(), vol).invoke(unsafe, createUnsafePutParams(inv, f, value));
-                return true;
-            }catch(Exception e){ e.printStackTrace(); }
-        return false;
+        if(FieldAccessor.of(in, name, vol).put(inv, value)) return true; // Search defined class and its supers first
+        return inv!=null && inv.getClass()!=in && FieldAccessor.of(inv.getClass(), name, vol).put(inv, value);
     }
 
     /**